@@ -0,0 +1,124 @@
+package name.neykov.secrets.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The callbacks injected in the TLS providers, called with synthetic contexts. The secrets go to
+ * the null device, so the numbers cover extraction, encoding and the hand-over to the writer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CallbackBenchmark {
+    static final String NULL_DEVICE =
+            File.separatorChar == '\\' ? "NUL" : new File("/dev/null").getPath();
+
+    @Param({AgentOptions.WRITER_SYNC, AgentOptions.WRITER_ASYNC})
+    public String writer;
+
+    // With dedupe, the repeated secrets of the benchmarks are skipped after the first call
+    @Param({"0", "65536"})
+    public int dedupe;
+
+    private SyntheticContexts.HandshakeContext handshakeContext;
+    private SecretKey trafficSecret;
+    private SSLSession session;
+    private SyntheticContexts.RandomCookie randomCookie;
+    private SecretKey masterSecret;
+    private SyntheticContexts.TlsContext bcContext;
+    private byte[] clientRandom;
+    private byte[] secret;
+    private KeyLogEntry entry;
+
+    @Setup
+    public void setUp() {
+        configure(writer, dedupe);
+        handshakeContext = new SyntheticContexts.HandshakeContext();
+        trafficSecret =
+                new SecretKeySpec(
+                        SyntheticContexts.randomBytes(48), "TlsClientAppTrafficSecret");
+        session = new SyntheticContexts.Session();
+        randomCookie = new SyntheticContexts.RandomCookie();
+        masterSecret = new SecretKeySpec(SyntheticContexts.randomBytes(48), "TlsMasterSecret");
+        bcContext = new SyntheticContexts.TlsContext();
+        clientRandom = SyntheticContexts.randomBytes(32);
+        secret = SyntheticContexts.randomBytes(48);
+        entry = fill(KeyLogEntry.get());
+    }
+
+    @TearDown
+    public void tearDown() {
+        // Flushes and stops the async writer
+        configure(AgentOptions.WRITER_SYNC, 0);
+    }
+
+    private static void configure(String writer, int dedupe) {
+        AgentOptions options =
+                AgentOptions.parse(NULL_DEVICE + ",writer=" + writer + ",dedupe=" + dedupe);
+        MasterSecretCallback.configure(options, NULL_DEVICE);
+    }
+
+    @Benchmark
+    public void onKeyDerivation() {
+        MasterSecretCallback.onKeyDerivation(handshakeContext, trafficSecret);
+    }
+
+    @Benchmark
+    public void onCalculateKeys() {
+        MasterSecretCallback.onCalculateKeys(session, randomCookie, masterSecret);
+    }
+
+    @Benchmark
+    public void onBcMasterSecret() {
+        MasterSecretCallback.onBcMasterSecret(bcContext);
+    }
+
+    /** Formerly bytesToHex() and the string concatenation of the lines. */
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        entry.encode(true);
+        blackhole.consume(entry.buffer());
+    }
+
+    /** Formerly write(String...), the part of the callbacks after extracting the secrets. */
+    @Benchmark
+    public void write() throws IOException {
+        // Untimed, as with latency=false
+        MasterSecretCallback.write(fill(KeyLogEntry.get()), CaptureHook.ON_KEY_DERIVATION, 0);
+    }
+
+    /** The same with the latency histograms, as by default. */
+    @Benchmark
+    public void writeTimed() throws IOException {
+        MasterSecretCallback.write(
+                fill(KeyLogEntry.get()), CaptureHook.ON_KEY_DERIVATION, System.nanoTime());
+    }
+
+    private KeyLogEntry fill(KeyLogEntry target) {
+        target.setSessionDetails(session);
+        target.setClientRandom(clientRandom);
+        target.addSecret(KeyLogLabel.CLIENT_TRAFFIC_SECRET_0, secret);
+        return target;
+    }
+}
@@ -0,0 +1,187 @@
+package name.neykov.secrets.agent;
+
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.util.Random;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Stand-ins for the provider objects the hooks receive. They carry only the fields the callbacks
+ * read, under the same names, so the reflective accessors take the same path as in a real
+ * handshake.
+ */
+final class SyntheticContexts {
+    private SyntheticContexts() {}
+
+    static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /** sun.security.ssl.RandomCookie */
+    static class RandomCookie {
+        @SuppressWarnings("unused")
+        private final byte[] randomBytes = randomBytes(32);
+
+        @SuppressWarnings("unused")
+        private final byte[] random_bytes = randomBytes;
+    }
+
+    /** sun.security.ssl.HandshakeContext */
+    static class HandshakeContext {
+        @SuppressWarnings("unused")
+        private final SSLSession handshakeSession = new Session();
+
+        @SuppressWarnings("unused")
+        private final RandomCookie clientHelloRandom = new RandomCookie();
+    }
+
+    /** org.bouncycastle.tls.crypto.TlsSecret */
+    static class TlsSecret {
+        @SuppressWarnings("unused")
+        private final byte[] data;
+
+        TlsSecret(int length) {
+            data = randomBytes(length);
+        }
+    }
+
+    /** org.bouncycastle.tls.SecurityParameters */
+    static class SecurityParameters {
+        @SuppressWarnings("unused")
+        private final byte[] clientRandom = randomBytes(32);
+
+        @SuppressWarnings("unused")
+        private final TlsSecret masterSecret = new TlsSecret(48);
+
+        @SuppressWarnings("unused")
+        private final TlsSecret trafficSecretClient = new TlsSecret(48);
+
+        @SuppressWarnings("unused")
+        private final TlsSecret trafficSecretServer = new TlsSecret(48);
+
+        @SuppressWarnings("unused")
+        private final TlsSecret exporterMasterSecret = new TlsSecret(48);
+
+        @SuppressWarnings("unused")
+        private final String negotiatedVersion = "TLS 1.2";
+
+        @SuppressWarnings("unused")
+        private final int cipherSuite = 0xCCA8;
+    }
+
+    /** org.bouncycastle.tls.AbstractTlsContext */
+    static class TlsContext {
+        @SuppressWarnings("unused")
+        private final SecurityParameters securityParametersHandshake = new SecurityParameters();
+    }
+
+    static class Session implements SSLSession {
+        private final byte[] id = randomBytes(32);
+        private final long creationTime = System.currentTimeMillis();
+
+        @Override
+        public byte[] getId() {
+            return id.clone();
+        }
+
+        @Override
+        public SSLSessionContext getSessionContext() {
+            return null;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        @Override
+        public long getLastAccessedTime() {
+            return creationTime;
+        }
+
+        @Override
+        public void invalidate() {}
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public void putValue(String name, Object value) {}
+
+        @Override
+        public Object getValue(String name) {
+            return null;
+        }
+
+        @Override
+        public void removeValue(String name) {}
+
+        @Override
+        public String[] getValueNames() {
+            return new String[0];
+        }
+
+        @Override
+        public Certificate[] getPeerCertificates() throws SSLPeerUnverifiedException {
+            throw new SSLPeerUnverifiedException("Synthetic session");
+        }
+
+        @Override
+        public Certificate[] getLocalCertificates() {
+            return null;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public javax.security.cert.X509Certificate[] getPeerCertificateChain()
+                throws SSLPeerUnverifiedException {
+            throw new SSLPeerUnverifiedException("Synthetic session");
+        }
+
+        @Override
+        public Principal getPeerPrincipal() throws SSLPeerUnverifiedException {
+            throw new SSLPeerUnverifiedException("Synthetic session");
+        }
+
+        @Override
+        public Principal getLocalPrincipal() {
+            return null;
+        }
+
+        @Override
+        public String getCipherSuite() {
+            return "TLS_AES_256_GCM_SHA384";
+        }
+
+        @Override
+        public String getProtocol() {
+            return "TLSv1.3";
+        }
+
+        @Override
+        public String getPeerHost() {
+            return "example.com";
+        }
+
+        @Override
+        public int getPeerPort() {
+            return 443;
+        }
+
+        @Override
+        public int getPacketBufferSize() {
+            return 16709;
+        }
+
+        @Override
+        public int getApplicationBufferSize() {
+            return 16384;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package name.neykov.secrets.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Transformer#transform} as called by the JVM for every class loaded while attached. The
+ * non-target case is what all the application classes pay, the target case is the instrumentation
+ * of the running JDK's own TLS classes. {@link #transform} gets the instrumented target classes
+ * from the bytecode cache after the first call, as a retransform does, {@link #transformUncached}
+ * runs Javassist every time. The per-call setup of the latter skews nanosecond scores, so it's only
+ * meaningful for the target classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransformerBenchmark {
+    /** Classes loaded by any application, followed by the ones the agent instruments. */
+    @Param({
+        "java/util/ArrayList",
+        "javax/net/ssl/SSLContext",
+        "sun/security/ssl/SSLTrafficKeyDerivation",
+        "sun/security/ssl/SSLSessionImpl"
+    })
+    public String classPath;
+
+    private final Transformer transformer = new Transformer();
+    private ClassLoader loader;
+    private byte[] classfileBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The application class loader stands in for the loader of a non-JDK class.
+        loader = TransformerBenchmark.class.getClassLoader();
+        classfileBuffer = readClass(classPath);
+    }
+
+    @Benchmark
+    public byte[] transform() {
+        return transformer.transform(loader, classPath, null, null, classfileBuffer);
+    }
+
+    @Benchmark
+    public byte[] transformUncached(Uncached uncached) {
+        return transformer.transform(loader, classPath, null, null, classfileBuffer);
+    }
+
+    /** Clears the bytecode cache before each call, the clearing isn't measured. */
+    @State(Scope.Thread)
+    public static class Uncached {
+        @Setup(Level.Invocation)
+        public void clear() {
+            Transformer.clearBytecodeCache();
+        }
+    }
+
+    private static byte[] readClass(String classPath) throws IOException {
+        InputStream in = ClassLoader.getSystemResourceAsStream(classPath + ".class");
+        if (in == null) {
+            throw new IllegalStateException("Class " + classPath + " not found in this JDK");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
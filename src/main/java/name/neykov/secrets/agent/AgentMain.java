@@ -10,9 +10,11 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.Provider;
 import java.security.Security;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.jar.JarFile;
@@ -35,19 +37,61 @@ public class AgentMain {
     public static void premain(String agentArgs, Instrumentation inst) {
         File jarFile = getJarFile();
         initClassPath(inst, jarFile);
-        attach(agentArgs, inst, jarFile);
+        attach(agentArgs, inst, jarFile, new AttachReport());
     }
 
     // Called from inside the target process when attaching at runtime.
     public static void agentmain(String agentArgs, Instrumentation inst) {
+        AttachReport report = new AttachReport();
         File jarFile = getJarFile();
         initClassPath(inst, jarFile);
-        if ("detach".equals(agentArgs)) {
-            detach(jarFile);
+        // AgentOptions is passed to the boot class loader so must be loaded from there, i.e. after
+        // initClassPath(). Keep it out of the method signatures of this class, the JVM resolves
+        // them when looking up agentmain().
+        AgentOptions options;
+        try {
+            options = AgentOptions.parse(agentArgs);
+        } catch (IllegalArgumentException e) {
+            // Reply why, the CLI only learns the agent failed to initialize otherwise
+            log.warning("Invalid agent options: " + e.getMessage());
+            report.message("Invalid agent options: " + e.getMessage() + ".");
+            report.write(replyPath(agentArgs));
+            throw e;
+        }
+        report.phase("Class path setup");
+        boolean changed;
+        if (AgentOptions.COMMAND_DETACH.equals(options.getCommand())) {
+            changed = detach(jarFile, report);
+        } else if (AgentOptions.COMMAND_CONFIG.equals(options.getCommand())) {
+            changed = false;
+            reconfigure(agentArgs, report);
+        } else if (AgentOptions.COMMAND_DUMP.equals(options.getCommand())) {
+            changed = false;
+            dump(options.getSecretsPath(), report);
+        } else if (AgentOptions.COMMAND_LOOKUP.equals(options.getCommand())) {
+            changed = false;
+            lookup(options.getSecretsPath(), options.getOutputPath(), report);
+        } else if (AgentOptions.COMMAND_STATS.equals(options.getCommand())) {
+            changed = false;
+            stats(report);
         } else {
-            attach(agentArgs, inst, jarFile);
+            changed = attach(agentArgs, inst, jarFile, report);
+        }
+        if (changed) {
+            reloadClasses(inst, report);
+        }
+        report.write(options.getReplyPath());
+    }
+
+    // The reply option of agent arguments that don't parse
+    private static String replyPath(String agentArgs) {
+        String[] segments = agentArgs.split(",");
+        for (int i = segments.length - 1; i >= 0; i--) {
+            if (segments[i].startsWith("reply=")) {
+                return segments[i].substring("reply=".length());
+            }
         }
-        reloadClasses(inst);
+        return null;
     }
 
     /**
@@ -132,62 +176,171 @@ public class AgentMain {
 
     // When attaching to a running VM, the classes we are interested
     // in might already have been loaded and used. Need to force a reload
-    // so our transformer kicks in.
-    private static void reloadClasses(Instrumentation inst) {
-        for (Class<?> loadedClass : inst.getAllLoadedClasses()) {
+    // so our transformer kicks in. On detach, with the transformer removed, the reload restores
+    // the original bytecode of the instrumented classes.
+    private static void reloadClasses(Instrumentation inst, AttachReport report) {
+        Class<?>[] loadedClasses = inst.getAllLoadedClasses();
+        List<Class<?>> targets = new ArrayList<Class<?>>();
+        for (Class<?> loadedClass : loadedClasses) {
             if (Transformer.needsTransform(loadedClass.getName())) {
-                try {
-                    inst.retransformClasses(loadedClass);
-                } catch (Throwable e) {
-                    log.log(
-                            Level.WARNING,
-                            "Failed instrumenting "
-                                    + loadedClass.getName()
-                                    + ". Shared secret extraction might fail.",
-                            e);
-                    throw new IllegalStateException(e);
+                targets.add(loadedClass);
+            }
+        }
+        report.phase("Scan " + loadedClasses.length + " loaded classes");
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        // A single call redefines all the classes in one safepoint
+        int failed = 0;
+        try {
+            inst.retransformClasses(targets.toArray(new Class<?>[targets.size()]));
+        } catch (Throwable e) {
+            log.log(Level.FINE, "Failed retransforming " + targets + " together", e);
+            for (Class<?> target : targets) {
+                if (!retransform(inst, target)) {
+                    failed++;
                 }
             }
         }
+        report.phase("Retransform " + targets.size() + " classes");
+        if (failed > 0) {
+            report.message(
+                    "Failed instrumenting "
+                            + failed
+                            + " of "
+                            + targets.size()
+                            + " classes, see the target process log."
+                            + " Shared secret extraction might fail.");
+        }
+    }
+
+    private static boolean retransform(Instrumentation inst, Class<?> target) {
+        try {
+            inst.retransformClasses(target);
+            return true;
+        } catch (Throwable e) {
+            log.log(
+                    Level.WARNING,
+                    "Failed instrumenting "
+                            + target.getName()
+                            + ". Shared secret extraction might fail.",
+                    e);
+            return false;
+        }
     }
 
-    private static void attach(String secretsPath, Instrumentation inst, File jarFile) {
+    private static boolean attach(
+            String agentArgs, Instrumentation inst, File jarFile, AttachReport report) {
         if (activeTransformer != null) {
             log.warning("Already attached; ignoring attach request.");
-            return;
+            report.message("Already attached; ignoring attach request.");
+            return false;
         }
 
+        AgentOptions options = AgentOptions.parse(agentArgs);
+
         openBaseModule(inst);
 
         // MasterSecretCallback is loaded in boot class loader
-        String canonicalSecretsPath = getCanonicalSecretsPath(secretsPath);
-        MasterSecretCallback.setSecretsFileName(canonicalSecretsPath);
+        String canonicalSecretsPath = getCanonicalSecretsPath(options.getSecretsPath());
+        MasterSecretCallback.configure(options, canonicalSecretsPath);
 
         activeTransformer = new Transformer();
         attachInstr = inst;
         inst.addTransformer(activeTransformer, true);
+        MasterSecretCallback.registerStats();
+        report.phase("Start writer and transformer");
 
         logSecurityProviders();
 
-        log.info(
-                "Successfully attached agent "
-                        + jarFile
-                        + ". Logging to "
-                        + canonicalSecretsPath
-                        + ". ");
+        String destination =
+                AgentOptions.WRITER_MEMORY.equals(options.getWriter())
+                        ? "Keeping the secrets in memory, get them with the dump command."
+                        : "Logging to " + canonicalSecretsPath + ".";
+        log.info("Successfully attached agent " + jarFile + ". " + destination + " ");
+        report.message(destination);
+        return true;
     }
 
-    private static void detach(File jarFile) {
+    private static void reconfigure(String agentArgs, AttachReport report) {
         if (activeTransformer == null) {
-            log.warning("Not attached; ignoring detach request.");
+            log.warning("Not attached; ignoring config request.");
+            report.message("Not attached; ignoring config request.");
+            return;
+        }
+        String stats = MasterSecretCallback.reconfigure(AgentOptions.parse(agentArgs));
+        log.info("Reconfigured agent. " + stats);
+        report.message(stats);
+    }
+
+    private static void dump(String path, AttachReport report) {
+        if (activeTransformer == null) {
+            log.warning("Not attached; ignoring dump request.");
+            report.message("Not attached; ignoring dump request.");
+            return;
+        }
+        String outcome = MasterSecretCallback.dump(path);
+        log.info(outcome);
+        report.message(outcome);
+    }
+
+    private static void lookup(String requestPath, String outputPath, AttachReport report) {
+        if (activeTransformer == null) {
+            log.warning("Not attached; ignoring lookup request.");
+            report.message("Not attached; ignoring lookup request.");
+            return;
+        }
+        if (outputPath == null) {
+            report.message("The lookup command requires the output option.");
+            return;
+        }
+        String outcome = MasterSecretCallback.lookup(requestPath, outputPath);
+        log.fine(outcome);
+        report.message(outcome);
+    }
+
+    private static void stats(AttachReport report) {
+        if (activeTransformer == null) {
+            log.warning("Not attached; ignoring stats request.");
+            report.message("Not attached; ignoring stats request.");
             return;
         }
+        report.message(MasterSecretCallback.getStats());
+    }
+
+    private static boolean detach(File jarFile, AttachReport report) {
+        if (activeTransformer == null) {
+            log.warning("Not attached; ignoring detach request.");
+            report.message("Not attached; ignoring detach request.");
+            return false;
+        }
 
+        // Stop the callbacks right away, the retransform restoring the original classes comes
+        // after removing the transformer.
+        MasterSecretCallback.disable();
+        MasterSecretCallback.unregisterStats();
         attachInstr.removeTransformer(activeTransformer);
+        String captureStats = MasterSecretCallback.getCaptureStats();
+        log.info(captureStats);
+        report.message(captureStats);
+        long timedClasses = activeTransformer.getTimedClasses();
+        if (timedClasses > 0) {
+            log.info(
+                    "Filtering the classes loaded while attached took about "
+                            + activeTransformer.getFilterNanos() / timedClasses
+                            + " ns per class, timed on a sample of "
+                            + timedClasses
+                            + " less "
+                            + activeTransformer.getClockNanos()
+                            + " ns of clock reads each.");
+        }
         activeTransformer = null;
         attachInstr = null;
+        report.phase("Disable callbacks and remove transformer");
 
         log.info("Successfully detached agent " + jarFile + ". ");
+        return true;
     }
 
     private static void logSecurityProviders() {
@@ -0,0 +1,408 @@
+package name.neykov.secrets.agent;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Options passed to the agent, either as {@code -javaagent:<jar>=<options>} or by the attach CLI.
+ *
+ * <p>The format is {@code [<secrets_file>][,<name>=<value>...]}. A comma separated segment that
+ * isn't of the form {@code <letters>=<value>} is treated as part of the file name, so existing
+ * paths containing commas keep working. Instead of the secrets file the first segment can be a
+ * command to an already attached agent, for example {@code detach[,<name>=<value>...]}, or {@code
+ * config[,<name>=<value>...]} to change the options that can be changed at runtime, {@code
+ * dump,<file>} to write the secrets kept in memory to the file, or {@code
+ * lookup,<file>,output=<file>} to write the ones of the client randoms listed in the first file, or
+ * {@code stats} to report the counters.
+ */
+public class AgentOptions {
+    public static final String COMMAND_DETACH = "detach";
+    public static final String COMMAND_CONFIG = "config";
+    public static final String COMMAND_DUMP = "dump";
+    public static final String COMMAND_LOOKUP = "lookup";
+    public static final String COMMAND_STATS = "stats";
+
+    /** The options the config command changes, the others only apply when attaching. */
+    public static final List<String> RUNTIME_OPTIONS = Arrays.asList("sample", "rateLimit");
+
+    // Only the sync and async writers append to a file that can be rotated
+    private static final List<String> ROTATION_OPTIONS =
+            Arrays.asList("rotateSize", "rotateIntervalMin", "maxSegments", "compress");
+
+    public static final String WRITER_SYNC = "sync";
+    public static final String WRITER_ASYNC = "async";
+    public static final String WRITER_RING = "ring";
+    public static final String WRITER_FIFO = "fifo";
+    public static final String WRITER_MEMORY = "memory";
+
+    public static final String FORMAT_NSS = "nss";
+    public static final String FORMAT_BINARY = "binary";
+
+    private String command;
+    private String replyPath;
+    private String outputPath;
+    private String secretsPath = "";
+    private String writer = WRITER_SYNC;
+    private int queueCapacity = 4096;
+    private int batchSize = 256;
+    private long flushIntervalMs = 100;
+    private AsyncSecretsWriter.Overflow overflow = AsyncSecretsWriter.Overflow.BLOCK;
+    private int ringSize = 4 * 1024 * 1024;
+    private int rotateSize = 0;
+    private int rotateIntervalMin = 0;
+    private int maxSegments = 0;
+    private boolean compress = true;
+    private int storeEntries = 4096;
+    private int storeMinutes = 0;
+    private int dedupe = 0;
+    private boolean comments = true;
+    private String format = FORMAT_NSS;
+    private boolean latency = true;
+    private int latencyLogMinutes = 0;
+    private int sample = 1;
+    private int rateLimit = 0;
+    private final CaptureFilter filter = new CaptureFilter();
+
+    // The options given explicitly, the config command changes only these
+    private final Set<String> given = new HashSet<String>();
+
+    public static AgentOptions parse(String agentArgs) {
+        AgentOptions options = new AgentOptions();
+        if (agentArgs == null || agentArgs.isEmpty()) {
+            return options;
+        }
+        String[] segments = agentArgs.split(",", -1);
+        int first = 0;
+        if (COMMAND_DETACH.equals(segments[0])
+                || COMMAND_CONFIG.equals(segments[0])
+                || COMMAND_DUMP.equals(segments[0])
+                || COMMAND_LOOKUP.equals(segments[0])
+                || COMMAND_STATS.equals(segments[0])) {
+            options.command = segments[0];
+            first = 1;
+        }
+        StringBuilder path = new StringBuilder();
+        boolean firstPathSegment = true;
+        for (int i = first; i < segments.length; i++) {
+            String segment = segments[i];
+            int eq = segment.indexOf('=');
+            String name = eq > 0 ? segment.substring(0, eq) : "";
+            String value = segment.substring(eq + 1);
+            if (isOptionName(name) && options.set(name, value)) {
+                options.given.add(name);
+            } else if (isOptionName(name) && !isPathLike(value)) {
+                throw new IllegalArgumentException("Unknown agent option '" + name + "'");
+            } else {
+                // Part of the path, "b=c/keys.log" of "/data/a,b=c/keys.log" included
+                if (!firstPathSegment) {
+                    path.append(',');
+                }
+                path.append(segment);
+                firstPathSegment = false;
+            }
+        }
+        options.secretsPath = path.toString();
+        if (!WRITER_SYNC.equals(options.writer) && !WRITER_ASYNC.equals(options.writer)) {
+            for (String name : ROTATION_OPTIONS) {
+                if (options.given.contains(name)) {
+                    // The ring is bounded already, the pipe and memory have no file
+                    throw new IllegalArgumentException(
+                            "Agent option '"
+                                    + name
+                                    + "' is not supported by the '"
+                                    + options.writer
+                                    + "' writer");
+                }
+            }
+        }
+        if (WRITER_FIFO.equals(options.writer) && options.given.contains("overflow")) {
+            // The handshake threads never wait on the pipe nor write to it
+            throw new IllegalArgumentException(
+                    "Agent option 'overflow' is not supported by the 'fifo' writer,"
+                            + " it always drops");
+        }
+        if (COMMAND_CONFIG.equals(options.command)) {
+            for (String name : options.given) {
+                if (!RUNTIME_OPTIONS.contains(name) && !"reply".equals(name)) {
+                    throw new IllegalArgumentException(
+                            "Agent option '"
+                                    + name
+                                    + "' can't be changed at runtime, only "
+                                    + RUNTIME_OPTIONS);
+                }
+            }
+        }
+        if (FORMAT_BINARY.equals(options.format)
+                && (WRITER_FIFO.equals(options.writer) || WRITER_MEMORY.equals(options.writer))) {
+            // Wireshark reads the pipe, lookup indexes the text lines
+            throw new IllegalArgumentException(
+                    "Agent option 'format=binary' is not supported by the '"
+                            + options.writer
+                            + "' writer");
+        }
+        return options;
+    }
+
+    private static boolean isOptionName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isLetter(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // An unknown name with a separator in its value starts a directory of the path, else a typo
+    private static boolean isPathLike(String value) {
+        return value.indexOf('/') >= 0 || value.indexOf('\\') >= 0;
+    }
+
+    /** Sets the option, returns false if there's no option with the name. */
+    private boolean set(String name, String value) {
+        if ("reply".equals(name)) {
+            replyPath = value;
+        } else if ("output".equals(name)) {
+            outputPath = value;
+        } else if ("writer".equals(name)) {
+            if (!WRITER_SYNC.equals(value)
+                    && !WRITER_ASYNC.equals(value)
+                    && !WRITER_RING.equals(value)
+                    && !WRITER_FIFO.equals(value)
+                    && !WRITER_MEMORY.equals(value)) {
+                throw invalid(name, value, "expected 'sync', 'async', 'ring', 'fifo' or 'memory'");
+            }
+            writer = value;
+        } else if ("queueCapacity".equals(name)) {
+            queueCapacity = parsePositiveInt(name, value);
+        } else if ("batchSize".equals(name)) {
+            batchSize = parsePositiveInt(name, value);
+        } else if ("flushIntervalMs".equals(name)) {
+            flushIntervalMs = parsePositiveInt(name, value);
+        } else if ("overflow".equals(name)) {
+            try {
+                overflow = AsyncSecretsWriter.Overflow.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw invalid(name, value, "expected 'block', 'drop' or 'spill'");
+            }
+        } else if ("ringSize".equals(name)) {
+            ringSize = parsePositiveInt(name, value);
+        } else if ("rotateSize".equals(name)) {
+            rotateSize = parseNonNegativeInt(name, value);
+        } else if ("rotateIntervalMin".equals(name)) {
+            rotateIntervalMin = parseNonNegativeInt(name, value);
+        } else if ("maxSegments".equals(name)) {
+            maxSegments = parseNonNegativeInt(name, value);
+        } else if ("compress".equals(name)) {
+            compress = parseBoolean(name, value);
+        } else if ("storeEntries".equals(name)) {
+            storeEntries = parsePositiveInt(name, value);
+        } else if ("storeMinutes".equals(name)) {
+            storeMinutes = parseNonNegativeInt(name, value);
+        } else if ("dedupe".equals(name)) {
+            dedupe = parseNonNegativeInt(name, value);
+        } else if ("latency".equals(name)) {
+            latency = parseBoolean(name, value);
+        } else if ("latencyLogMinutes".equals(name)) {
+            latencyLogMinutes = parseNonNegativeInt(name, value);
+        } else if ("comments".equals(name)) {
+            comments = parseBoolean(name, value);
+        } else if ("format".equals(name)) {
+            if (!FORMAT_NSS.equals(value) && !FORMAT_BINARY.equals(value)) {
+                throw invalid(name, value, "expected 'nss' or 'binary'");
+            }
+            format = value;
+        } else if ("sample".equals(name)) {
+            sample = parsePositiveInt(name, value);
+        } else if ("rateLimit".equals(name)) {
+            rateLimit = parseNonNegativeInt(name, value);
+        } else if ("peer".equals(name)) {
+            filter.addPeer(value);
+        } else if ("port".equals(name)) {
+            int port = parsePositiveInt(name, value);
+            if (port > 65535) {
+                throw invalid(name, value, "expected a port number");
+            }
+            filter.addPort(port);
+        } else if ("protocol".equals(name)) {
+            filter.addProtocol(value);
+        } else if ("cipherSuite".equals(name)) {
+            filter.addCipherSuite(value);
+        } else if ("provider".equals(name)) {
+            filter.addProvider(value);
+        } else if ("label".equals(name)) {
+            filter.addLabel(value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static int parsePositiveInt(String name, String value) {
+        int parsed = parseInt(name, value);
+        if (parsed <= 0) {
+            throw invalid(name, value, "expected a positive number");
+        }
+        return parsed;
+    }
+
+    private static int parseNonNegativeInt(String name, String value) {
+        int parsed = parseInt(name, value);
+        if (parsed < 0) {
+            throw invalid(name, value, "expected a positive number or 0 for no limit");
+        }
+        return parsed;
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw invalid(name, value, "expected a number");
+        }
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        if (!"true".equals(value) && !"false".equals(value)) {
+            throw invalid(name, value, "expected 'true' or 'false'");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private static IllegalArgumentException invalid(String name, String value, String expected) {
+        return new IllegalArgumentException(
+                "Invalid value '" + value + "' for agent option '" + name + "', " + expected);
+    }
+
+    /** The command for the attached agent, null when attaching. */
+    public String getCommand() {
+        return command;
+    }
+
+    /** Whether the option was given explicitly rather than left at its default. */
+    public boolean isGiven(String name) {
+        return given.contains(name);
+    }
+
+    /** The file to report the outcome to the CLI in, null if not requested. */
+    public String getReplyPath() {
+        return replyPath;
+    }
+
+    /** The file the lookup command writes the secrets found to. */
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    public String getSecretsPath() {
+        return secretsPath;
+    }
+
+    public String getWriter() {
+        return writer;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    public AsyncSecretsWriter.Overflow getOverflow() {
+        return overflow;
+    }
+
+    /** The size of the ring file in bytes, rounded up to a power of two. */
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    /** Rotate the secrets file before it grows over this many bytes, 0 to not rotate by size. */
+    public int getRotateSize() {
+        return rotateSize;
+    }
+
+    /** Rotate the secrets file after this many minutes, 0 to not rotate by time. */
+    public int getRotateIntervalMin() {
+        return rotateIntervalMin;
+    }
+
+    /** Whether the secrets file gets rotated at all. */
+    public boolean isRotating() {
+        return rotateSize > 0 || rotateIntervalMin > 0;
+    }
+
+    /** The number of rotated segments to keep, 0 for all. */
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /** Whether to gzip the rotated segments. */
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /** The number of secret groups kept in memory. */
+    public int getStoreEntries() {
+        return storeEntries;
+    }
+
+    /** Keep the secrets in memory for this many minutes, 0 for no limit. */
+    public int getStoreMinutes() {
+        return storeMinutes;
+    }
+
+    /** The number of recent secrets to skip the duplicates of, 0 to not skip them. */
+    public int getDedupe() {
+        return dedupe;
+    }
+
+    /** Whether to log the connection details in a comment line before the secrets. */
+    public boolean isComments() {
+        return comments;
+    }
+
+    /** The format of the secrets file, {@value #FORMAT_NSS} or {@value #FORMAT_BINARY}. */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Whether to time the captured callbacks for the latency histograms, on unless turned off, and
+     * implied by logging them.
+     */
+    public boolean isLatency() {
+        return latency || latencyLogMinutes > 0;
+    }
+
+    /** How often to log the latency histograms of the callbacks, 0 to only log them on detach. */
+    public int getLatencyLogMinutes() {
+        return latencyLogMinutes;
+    }
+
+    /** Capture 1 in this many handshakes. */
+    public int getSample() {
+        return sample;
+    }
+
+    /** The maximum handshakes captured per second, 0 for no limit. */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    /** The filter options, repeat an option to match any of its values. */
+    CaptureFilter getFilter() {
+        return filter;
+    }
+}
@@ -0,0 +1,331 @@
+package name.neykov.secrets.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what the callbacks do, for JMX and the {@code stats} command. The counters only get
+ * updated once a handshake is captured or filtered, the skipped handshakes are counted by {@link
+ * CaptureGate} already, so the unfiltered callbacks of handshakes that aren't logged cost nothing
+ * extra. The counters are striped by thread, see {@link StripedCounters}, so the handshake threads
+ * of a busy server don't contend on them.
+ */
+public class AgentStats implements AgentStatsMXBean {
+    private static final Logger log = Logger.getLogger(AgentStats.class.getName());
+    private static final String NL = System.getProperty("line.separator");
+    private static final CaptureHook[] HOOKS = CaptureHook.values();
+
+    static final String OBJECT_NAME = "name.neykov.secrets:type=ExtractTlsSecrets";
+
+    // The indexes in counters
+    private static final int FILTERED = 0;
+    private static final int SECRETS_WRITTEN = 1;
+    private static final int BYTES_WRITTEN = 2;
+    private static final int WRITES = 3;
+    private static final int WRITE_NANOS = 4;
+    private static final int MAX_WRITE_NANOS = 5;
+
+    private final CaptureGate gate;
+    // Of the current attach, the counters outlive the detach
+    private volatile boolean attached;
+    private volatile SecretsDedupe dedupe;
+    private volatile SecretsWriter writer;
+
+    // By hook
+    private final StripedCounters captured = new StripedCounters(HOOKS.length);
+    private final StripedCounters failures = new StripedCounters(HOOKS.length);
+    private final StripedCounters counters = new StripedCounters(MAX_WRITE_NANOS + 1);
+    private final LatencyHistograms latency = new LatencyHistograms();
+    // Logs the latency periodically, null unless the latencyLogMinutes option is given
+    private ScheduledExecutorService latencyLogger;
+
+    AgentStats(CaptureGate gate) {
+        this.gate = gate;
+    }
+
+    /** Clears the counters for a new attach, reading the rest from the new dedupe and writer. */
+    void reset(SecretsDedupe dedupe, SecretsWriter writer) {
+        captured.reset();
+        failures.reset();
+        counters.reset();
+        latency.reset();
+        this.dedupe = dedupe;
+        this.writer = writer;
+        attached = true;
+    }
+
+    void detached() {
+        attached = false;
+        logLatencyEvery(0);
+        if (latency.isRecorded()) {
+            log.info("Callback latency:" + NL + latency);
+        }
+    }
+
+    /** Logs the latency histograms every given minutes from a background thread, 0 to stop. */
+    synchronized void logLatencyEvery(int minutes) {
+        if (latencyLogger != null) {
+            latencyLogger.shutdownNow();
+            latencyLogger = null;
+        }
+        if (minutes <= 0) {
+            return;
+        }
+        latencyLogger =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable task) {
+                                Thread thread = new Thread(task, "extract-tls-secrets-latency");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+        latencyLogger.scheduleAtFixedRate(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        log.info("Callback latency:" + NL + latency);
+                    }
+                },
+                minutes,
+                minutes,
+                TimeUnit.MINUTES);
+    }
+
+    void captured(CaptureHook hook) {
+        captured.increment(captured.stripe(), hook.ordinal());
+    }
+
+    void failed(CaptureHook hook) {
+        failures.increment(failures.stripe(), hook.ordinal());
+    }
+
+    void filtered() {
+        counters.increment(counters.stripe(), FILTERED);
+    }
+
+    /** Records the phases of a captured callback, see {@link LatencyHistograms#record}. */
+    void timed(CaptureHook hook, long start, long extracted, long formatted, long written) {
+        latency.record(hook, start, extracted, formatted, written);
+    }
+
+    void written(int secrets, int bytes, long nanos) {
+        int stripe = counters.stripe();
+        counters.add(stripe, SECRETS_WRITTEN, secrets);
+        counters.add(stripe, BYTES_WRITTEN, bytes);
+        counters.increment(stripe, WRITES);
+        counters.add(stripe, WRITE_NANOS, nanos);
+        counters.raise(stripe, MAX_WRITE_NANOS, nanos);
+    }
+
+    /** Registers in the platform MBean server, replacing the instance of a previous attach. */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            // Not worth failing the attach for
+            log.log(Level.WARNING, "Failed registering the " + OBJECT_NAME + " MBean", e);
+        } catch (RuntimeException e) {
+            // The platform server can fail to start during premain, for example with a custom
+            // javax.management.builder.initial not loadable yet, which must not abort the JVM
+            log.log(Level.WARNING, "Failed registering the " + OBJECT_NAME + " MBean", e);
+        }
+    }
+
+    void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Failed unregistering the " + OBJECT_NAME + " MBean", e);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Failed unregistering the " + OBJECT_NAME + " MBean", e);
+        }
+    }
+
+    @Override
+    public boolean isAttached() {
+        return attached;
+    }
+
+    @Override
+    public long getCaptured() {
+        return sum(captured, 0);
+    }
+
+    @Override
+    public long getSunJsseCaptured() {
+        return sum(captured, CaptureFilter.PROVIDER_SUN_JSSE);
+    }
+
+    @Override
+    public long getBcJsseCaptured() {
+        return sum(captured, CaptureFilter.PROVIDER_BC_JSSE);
+    }
+
+    @Override
+    public long getIbmJsse2Captured() {
+        return sum(captured, CaptureFilter.PROVIDER_IBM_JSSE2);
+    }
+
+    @Override
+    public Map<String, Long> getCapturedByHook() {
+        return byHook(captured);
+    }
+
+    @Override
+    public long getSecretsWritten() {
+        return counters.sum(SECRETS_WRITTEN);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return counters.sum(BYTES_WRITTEN);
+    }
+
+    @Override
+    public long getFiltered() {
+        return counters.sum(FILTERED);
+    }
+
+    @Override
+    public long getSampledOut() {
+        return gate.getSampledOut();
+    }
+
+    @Override
+    public long getRateLimited() {
+        return gate.getRateLimited();
+    }
+
+    @Override
+    public long getDuplicates() {
+        SecretsDedupe current = dedupe;
+        return current != null ? current.getDuplicates() : 0;
+    }
+
+    @Override
+    public long getDropped() {
+        SecretsWriter current = writer;
+        if (current instanceof AsyncSecretsWriter) {
+            return ((AsyncSecretsWriter) current).getDropped();
+        }
+        if (current instanceof RingSecretsWriter) {
+            return ((RingSecretsWriter) current).getDropped();
+        }
+        return 0;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        SecretsWriter current = writer;
+        return current instanceof AsyncSecretsWriter
+                ? ((AsyncSecretsWriter) current).getQueueDepth()
+                : 0;
+    }
+
+    @Override
+    public long getHookFailures() {
+        return sum(failures, 0);
+    }
+
+    @Override
+    public Map<String, Long> getHookFailuresByHook() {
+        return byHook(failures);
+    }
+
+    @Override
+    public long getWrites() {
+        return counters.sum(WRITES);
+    }
+
+    @Override
+    public long getWriteNanos() {
+        return counters.sum(WRITE_NANOS);
+    }
+
+    @Override
+    public long getMaxWriteNanos() {
+        return counters.max(MAX_WRITE_NANOS);
+    }
+
+    @Override
+    public String getLatencyHistograms() {
+        return latency.toString();
+    }
+
+    // Of the hooks of the provider, or all of them for 0
+    private static long sum(StripedCounters counters, int provider) {
+        long sum = 0;
+        for (CaptureHook hook : HOOKS) {
+            if (provider == 0 || hook.provider == provider) {
+                sum += counters.sum(hook.ordinal());
+            }
+        }
+        return sum;
+    }
+
+    private static Map<String, Long> byHook(StripedCounters counters) {
+        Map<String, Long> byHook = new LinkedHashMap<String, Long>();
+        for (CaptureHook hook : HOOKS) {
+            byHook.put(hook.method, counters.sum(hook.ordinal()));
+        }
+        return byHook;
+    }
+
+    /** The attributes of the MBean, one "name: value" line each, then the latency histograms. */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        line(out, "Attached", isAttached());
+        line(out, "Captured", getCaptured());
+        line(out, "SunJsseCaptured", getSunJsseCaptured());
+        line(out, "BcJsseCaptured", getBcJsseCaptured());
+        line(out, "IbmJsse2Captured", getIbmJsse2Captured());
+        lines(out, "CapturedByHook", getCapturedByHook());
+        line(out, "SecretsWritten", getSecretsWritten());
+        line(out, "BytesWritten", getBytesWritten());
+        line(out, "Filtered", getFiltered());
+        line(out, "SampledOut", getSampledOut());
+        line(out, "RateLimited", getRateLimited());
+        line(out, "Duplicates", getDuplicates());
+        line(out, "Dropped", getDropped());
+        line(out, "QueueDepth", getQueueDepth());
+        line(out, "HookFailures", getHookFailures());
+        lines(out, "HookFailuresByHook", getHookFailuresByHook());
+        line(out, "Writes", getWrites());
+        line(out, "WriteNanos", getWriteNanos());
+        line(out, "MaxWriteNanos", getMaxWriteNanos());
+        // No trailing line separator, the reply adds it
+        return out.append("LatencyHistograms:").append(NL).append(latency).toString();
+    }
+
+    private static void line(StringBuilder out, String name, Object value) {
+        out.append(name).append(": ").append(value).append(NL);
+    }
+
+    private static void lines(StringBuilder out, String name, Map<String, Long> values) {
+        for (Map.Entry<String, Long> value : values.entrySet()) {
+            line(out, name + "." + value.getKey(), value.getValue());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package name.neykov.secrets.agent;
+
+import java.util.Map;
+
+/**
+ * The counters of the agent, registered in the platform MBean server as {@value
+ * AgentStats#OBJECT_NAME} while attached. Reset on every attach.
+ */
+public interface AgentStatsMXBean {
+    /** Whether the callbacks are logging secrets. */
+    boolean isAttached();
+
+    /** The callbacks that passed the filters, sampling and rate limit, all providers. */
+    long getCaptured();
+
+    long getSunJsseCaptured();
+
+    long getBcJsseCaptured();
+
+    long getIbmJsse2Captured();
+
+    /** The captured callbacks by callback method name. */
+    Map<String, Long> getCapturedByHook();
+
+    /** The secrets handed to the writer, a line each. */
+    long getSecretsWritten();
+
+    /** The bytes handed to the writer, including the comment lines. */
+    long getBytesWritten();
+
+    /** The callbacks skipped by the provider, label and connection filters. */
+    long getFiltered();
+
+    /** The handshakes skipped by the {@code sample} option. */
+    long getSampledOut();
+
+    /** The handshakes skipped by the {@code rateLimit} option. */
+    long getRateLimited();
+
+    /** The secrets skipped by the {@code dedupe} option. */
+    long getDuplicates();
+
+    /** The secret groups the {@code async}, {@code fifo} or {@code ring} writer dropped. */
+    long getDropped();
+
+    /** The secret groups waiting in the queue of the {@code async} or {@code fifo} writer. */
+    long getQueueDepth();
+
+    /** The callbacks that failed reading or writing the secrets, see the process log. */
+    long getHookFailures();
+
+    /** The failed callbacks by callback method name. */
+    Map<String, Long> getHookFailuresByHook();
+
+    /** The calls to the writer. */
+    long getWrites();
+
+    /** The total time spent in the writer, from the handshake threads. */
+    long getWriteNanos();
+
+    /** The longest a single call to the writer took. */
+    long getMaxWriteNanos();
+
+    /**
+     * The time the captured callbacks spent reading, formatting and writing the secrets, a line of
+     * power of two microsecond buckets per callback and phase.
+     */
+    String getLatencyHistograms();
+}
@@ -0,0 +1,434 @@
+package name.neykov.secrets.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands the lines over to a background thread through a bounded lock-free queue, so the TLS
+ * handshake threads never wait on the file system. The background thread keeps the secrets file
+ * open and appends the queued lines in batches.
+ *
+ * <p>The queue slots own reusable byte arrays that the producers copy the encoded lines into, and
+ * the background thread gathers them in a preallocated buffer, so the steady state doesn't
+ * allocate.
+ *
+ * <p>Created with {@link #toPipe}, it streams to a named pipe (FIFO) instead, for example one
+ * Wireshark reads the secrets from live. Opening a pipe waits for a reader and writing fails once
+ * the reader goes away, both only on the background thread, which then reopens the pipe for the
+ * next reader. The queue buffers the lines in the meantime and the overflow is dropped.
+ */
+public class AsyncSecretsWriter implements SecretsWriter {
+    private static final Logger log = Logger.getLogger(AsyncSecretsWriter.class.getName());
+    private static final int SLOT_SIZE = 512;
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
+    /** What to do with lines when the queue is full. */
+    public enum Overflow {
+        /** Wait for the background thread to make room. */
+        BLOCK,
+        /** Discard the lines, counting the secret groups dropped. */
+        DROP,
+        /** Write the lines from the calling thread, bypassing the queue. */
+        SPILL
+    }
+
+    private final File file;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Overflow overflow;
+    private final SecretsRotation rotation;
+    private final boolean pipe;
+
+    // Bounded multi-producer queue (D. Vyukov). sequences[i] tells whether slot i is free for
+    // the producer at position "tail" (== tail) or holds an element for the consumer at
+    // position "head" (== head + 1). The slot contents are published by the sequence updates.
+    private final int mask;
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only written by the writer thread
+    private volatile long head;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+
+    // Guards the channel, shared between the writer thread and spilling producers
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+
+    private final Thread writerThread;
+    private final Thread shutdownHook;
+    private volatile boolean closed;
+    // Pipe only: whether the writer thread is waiting for a reader to open the pipe, and whether
+    // close() released it without one
+    private volatile boolean opening;
+    private volatile boolean abandoned;
+    private boolean missingLogged;
+
+    public AsyncSecretsWriter(
+            String secretsFileName,
+            int queueCapacity,
+            int batchSize,
+            long flushIntervalMs,
+            Overflow overflow) {
+        this(secretsFileName, queueCapacity, batchSize, flushIntervalMs, overflow, null);
+    }
+
+    /**
+     * Streams to the named pipe {@code fifoName}, created beforehand with {@code mkfifo}. Buffers
+     * up to {@code queueCapacity} groups of lines while no reader is connected, dropping the rest.
+     */
+    public static AsyncSecretsWriter toPipe(
+            String fifoName, int queueCapacity, int batchSize, long flushIntervalMs) {
+        return new AsyncSecretsWriter(
+                fifoName, queueCapacity, batchSize, flushIntervalMs, Overflow.DROP, null, true);
+    }
+
+    /** Rotates the file with {@code rotation}, if not null. */
+    public AsyncSecretsWriter(
+            String secretsFileName,
+            int queueCapacity,
+            int batchSize,
+            long flushIntervalMs,
+            Overflow overflow,
+            SecretsRotation rotation) {
+        this(secretsFileName, queueCapacity, batchSize, flushIntervalMs, overflow, rotation, false);
+    }
+
+    private AsyncSecretsWriter(
+            String secretsFileName,
+            int queueCapacity,
+            int batchSize,
+            long flushIntervalMs,
+            Overflow overflow,
+            SecretsRotation rotation,
+            boolean pipe) {
+        this.file = new File(secretsFileName);
+        this.rotation = rotation;
+        this.pipe = pipe;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.overflow = overflow;
+
+        int capacity = Integer.highestOneBit(Math.max(queueCapacity - 1, 1)) << 1;
+        this.mask = capacity - 1;
+        this.slots = new byte[capacity][];
+        this.lengths = new int[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+
+        writerThread =
+                new Thread("extract-tls-secrets-writer") {
+                    @Override
+                    public void run() {
+                        drainLoop();
+                    }
+                };
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        // Daemon threads are abandoned on exit; flush whatever is still queued.
+        shutdownHook =
+                new Thread("extract-tls-secrets-writer-shutdown") {
+                    @Override
+                    public void run() {
+                        flushAndStop();
+                    }
+                };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        if (offer(buffer, offset, length)) {
+            return;
+        }
+        switch (overflow) {
+            case BLOCK:
+                while (!closed) {
+                    LockSupport.unpark(writerThread);
+                    LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(100));
+                    if (offer(buffer, offset, length)) {
+                        return;
+                    }
+                }
+                dropped.incrementAndGet();
+                break;
+            case SPILL:
+                spilled.incrementAndGet();
+                try {
+                    writeToChannel(ByteBuffer.wrap(buffer, offset, length));
+                } catch (IOException e) {
+                    dropped.incrementAndGet();
+                    log.log(Level.WARNING, "Failed writing secrets to " + file, e);
+                }
+                break;
+            case DROP:
+            default:
+                if (dropped.getAndIncrement() == 0) {
+                    log.warning(
+                            "Secrets queue is full, dropping secret groups."
+                                    + " Consider increasing queueCapacity.");
+                }
+                break;
+        }
+    }
+
+    private boolean offer(byte[] buffer, int offset, int length) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    byte[] slot = slots[index];
+                    if (slot == null || slot.length < length) {
+                        slot = new byte[Math.max(length, SLOT_SIZE)];
+                        slots[index] = slot;
+                    }
+                    System.arraycopy(buffer, offset, slot, 0, length);
+                    lengths[index] = length;
+                    sequences.set(index, pos + 1);
+                    if ((pos + 1 - head) % batchSize == 0) {
+                        LockSupport.unpark(writerThread);
+                    }
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Moves the next queued group to the batch buffer, writing out the batch first if the group
+     * doesn't fit. Returns false if the queue is empty. Writer thread only.
+     */
+    private boolean poll(ByteBuffer batch) throws IOException {
+        long pos = head;
+        int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) {
+            return false;
+        }
+        int length = lengths[index];
+        if (length > batch.remaining()) {
+            // Leaves the group queued if the write fails
+            writeBatch(batch);
+        }
+        try {
+            if (length > batch.capacity()) {
+                writeToChannel(ByteBuffer.wrap(slots[index], 0, length));
+            } else {
+                batch.put(slots[index], 0, length);
+            }
+        } catch (IOException e) {
+            // Written on its own, so not counted with the batch by the caller
+            dropped.incrementAndGet();
+            throw e;
+        } finally {
+            sequences.set(index, pos + mask + 1);
+            head = pos + 1;
+        }
+        return true;
+    }
+
+    private void drainLoop() {
+        ByteBuffer batch = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+        while (true) {
+            if (pipe && isPipeMissing()) {
+                // Keep the lines queued until it's created
+                if (closed) {
+                    abandoned = true;
+                    break;
+                }
+                LockSupport.parkNanos(this, flushIntervalNanos);
+                continue;
+            }
+            int count = 0;
+            try {
+                while (count < batchSize && poll(batch)) {
+                    count++;
+                }
+                writeBatch(batch);
+            } catch (IOException e) {
+                dropped.addAndGet(count);
+                batch.clear();
+                closeChannel();
+                if (abandoned) {
+                    break;
+                } else if (pipe) {
+                    log.info("The reader of " + file + " went away, waiting for another one.");
+                } else {
+                    log.log(Level.WARNING, "Failed writing secrets to " + file, e);
+                }
+            }
+            if (count == batchSize) {
+                continue;
+            }
+            if (closed && head == tail.get()) {
+                break;
+            }
+            LockSupport.parkNanos(this, flushIntervalNanos);
+        }
+        closeChannel();
+        if (abandoned) {
+            dropped.addAndGet(tail.get() - head);
+        }
+    }
+
+    private boolean isPipeMissing() {
+        synchronized (channelLock) {
+            if (channel != null || file.exists()) {
+                missingLogged = false;
+                return false;
+            }
+        }
+        if (!missingLogged) {
+            log.warning("The pipe " + file + " doesn't exist, create it with mkfifo.");
+            missingLogged = true;
+        }
+        return true;
+    }
+
+    private void writeBatch(ByteBuffer batch) throws IOException {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        try {
+            writeToChannel(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void writeToChannel(ByteBuffer buffer) throws IOException {
+        synchronized (channelLock) {
+            if (channel == null) {
+                channel = open();
+            }
+            // The buffer holds whole groups, so they stay in one segment
+            if (rotation != null && rotation.isDue(channel.size(), buffer.remaining())) {
+                closeChannel();
+                rotation.rotate();
+                channel = open();
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        if (!pipe) {
+            return new FileOutputStream(file, true).getChannel();
+        }
+        // Blocks until a reader opens the pipe, or close() releases it
+        opening = true;
+        FileChannel opened;
+        try {
+            opened = new FileOutputStream(file, true).getChannel();
+        } finally {
+            opening = false;
+        }
+        if (abandoned) {
+            opened.close();
+            throw new IOException("Closed while waiting for a reader of " + file);
+        }
+        log.info("Streaming secrets to a new reader of " + file);
+        return opened;
+    }
+
+    private void closeChannel() {
+        synchronized (channelLock) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.log(Level.FINE, "Failed closing " + file, e);
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Opening the pipe for reading and writing doesn't block, but wakes up the writer thread
+     * waiting for a reader, which then drops the queued lines.
+     */
+    private void releasePipe() {
+        abandoned = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            new RandomAccessFile(file, "rw").close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed releasing the writer of " + file, e);
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** The groups of lines queued and not yet taken by the writer thread. */
+    public long getQueueDepth() {
+        // Racing producers may have claimed slots they're still filling, counted as queued
+        return Math.max(tail.get() - head, 0);
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            // Already shutting down
+        }
+        flushAndStop();
+        if (rotation != null) {
+            rotation.close();
+        }
+    }
+
+    private void flushAndStop() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        try {
+            while (writerThread.isAlive() && System.nanoTime() < deadline) {
+                if (opening) {
+                    releasePipe();
+                }
+                writerThread.join(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped.get() > 0 || spilled.get() > 0) {
+            log.info(
+                    "Secrets writer closed. Dropped "
+                            + dropped.get()
+                            + " secret groups, spilled "
+                            + spilled.get()
+                            + " secret groups.");
+        }
+    }
+}
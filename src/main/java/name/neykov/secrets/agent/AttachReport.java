@@ -0,0 +1,62 @@
+package name.neykov.secrets.agent;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The outcome of an attach or detach request, including the time spent in each phase, handed back
+ * to the CLI through the file passed in the "reply" agent option. Used by AgentMain so only JDK
+ * types in the API.
+ */
+public class AttachReport {
+    private static final Logger log = Logger.getLogger(AttachReport.class.getName());
+    private static final String NL = System.getProperty("line.separator");
+
+    private final StringBuilder messages = new StringBuilder();
+    private final StringBuilder phases = new StringBuilder();
+    private final long start = System.nanoTime();
+    private long phaseStart = start;
+
+    public void message(String message) {
+        messages.append(message).append(NL);
+    }
+
+    /** Ends the current phase, which started at the end of the previous one. */
+    public void phase(String name) {
+        long now = System.nanoTime();
+        phases.append("  ").append(name).append(": ").append(millis(now - phaseStart)).append(NL);
+        phaseStart = now;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f ms", nanos / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return messages + "Phases:" + NL + phases + "  Total: " + millis(phaseStart - start) + NL;
+    }
+
+    /** Writes the report to the reply file, if the CLI asked for one. */
+    public void write(String replyPath) {
+        log.fine(toString());
+        if (replyPath == null) {
+            return;
+        }
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(replyPath), "UTF-8");
+            try {
+                out.write(toString());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed writing the attach report to " + replyPath, e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package name.neykov.secrets.agent;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The compact binary alternative to the NSS key log text written with {@code format=binary}, and
+ * its conversion back to text by the {@code convert} command. The text spells out the label and the
+ * client random in hex on every line, five times for a TLS 1.3 handshake, the binary records keep
+ * the raw bytes and the client random once per group, about a third of the size.
+ *
+ * <p>A record per group of secrets, the integers big endian:
+ *
+ * <pre>
+ * u8   0xB1, marks the start of a record
+ * u16  length of the rest of the record
+ * u8   details: 0 none, 1 session, 2 BCJSSE
+ *      details, unless none:
+ *      i64  time in milliseconds since the epoch
+ *      session: str peer host, i32 peer port (-1 unknown), str cipher suite
+ *      BCJSSE:  u16 cipher suite code
+ *      str  protocol
+ * u8   length of the client random (or session ID), the bytes
+ * u8   number of secrets, each:
+ *      u8  ordinal of the {@link KeyLogLabel}, u8 length of the secret, the bytes
+ * </pre>
+ *
+ * <p>A str is a length byte and that many bytes of UTF-8, cut at {@value #MAX_STRING_LENGTH} bytes,
+ * or {@value #NULL_STRING} alone for null. New labels are only ever appended to the enum, keeping
+ * the ordinals of the existing files.
+ *
+ * <p>The conversion reads the records in a single pass and encodes them with the same code as the
+ * agent, into reused buffers, so it runs about as fast as the disk. The comment lines are formatted
+ * in the time zone of the conversion.
+ */
+public final class BinaryKeyLog {
+    static final byte MAGIC = (byte) 0xB1;
+    // The magic and the length
+    static final int HEADER_LENGTH = 3;
+    static final byte DETAILS_NONE = 0;
+    static final byte DETAILS_SESSION = 1;
+    static final byte DETAILS_BCJSSE = 2;
+    static final int NULL_STRING = 0xFF;
+    static final int MAX_STRING_LENGTH = 254;
+
+    private static final KeyLogLabel[] LABELS = KeyLogLabel.values();
+
+    private final CaptureFilter filter;
+    private final boolean comments;
+    private long records;
+    private long secrets;
+    private long written;
+
+    /** Converts only the secrets matching the filter options, with comments unless disabled. */
+    public BinaryKeyLog(AgentOptions options) {
+        this.filter = options.getFilter();
+        this.comments = options.isComments();
+    }
+
+    /**
+     * Converts the records of the binary key log to NSS key log text, to the end of the input.
+     * Fails on a malformed record, after writing out the ones before it, including a record cut
+     * short by the end of the input.
+     */
+    public void convert(InputStream in, OutputStream out) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        byte[] record = new byte[1024];
+        long position = 0;
+        int first;
+        while ((first = data.read()) >= 0) {
+            if ((byte) first != MAGIC) {
+                throw new IOException(
+                        "Not a binary key log record at byte "
+                                + position
+                                + (position == 0 && first < 0x80 ? ", the input is text" : ""));
+            }
+            int length;
+            try {
+                length = data.readUnsignedShort();
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+                data.readFully(record, 0, length);
+            } catch (EOFException e) {
+                throw new IOException("Truncated record at byte " + position);
+            }
+            KeyLogEntry entry = KeyLogEntry.get();
+            try {
+                decode(entry, new Cursor(record, length, position));
+                records++;
+                if (entry.secretCount() > 0
+                        && (!filter.checksConnection() || filter.matchesConnection(entry))) {
+                    entry.encode(comments);
+                    out.write(entry.buffer(), 0, entry.length());
+                    written += entry.secretCount();
+                }
+            } finally {
+                entry.clear();
+            }
+            position += HEADER_LENGTH + length;
+        }
+    }
+
+    // Adds the secrets of the labels the filter emits
+    private void decode(KeyLogEntry entry, Cursor cursor) throws IOException {
+        int details = cursor.u8();
+        if (details != DETAILS_NONE) {
+            long time = cursor.i64();
+            if (details == DETAILS_SESSION) {
+                String peerHost = cursor.str();
+                int peerPort = cursor.i32();
+                String cipherSuite = cursor.str();
+                entry.setSessionDetails(peerHost, peerPort, cipherSuite, cursor.str());
+            } else if (details == DETAILS_BCJSSE) {
+                int cipherSuiteCode = cursor.u16();
+                entry.setBcDetails(cipherSuiteCode, cursor.str());
+            } else {
+                throw cursor.malformed("unknown details type " + details);
+            }
+            entry.setTime(time);
+        }
+        entry.setClientRandom(cursor.bytes(cursor.u8()));
+        int count = cursor.u8();
+        if (count > KeyLogEntry.MAX_SECRETS) {
+            throw cursor.malformed(count + " secrets");
+        }
+        for (int i = 0; i < count; i++) {
+            int ordinal = cursor.u8();
+            if (ordinal >= LABELS.length) {
+                throw cursor.malformed("unknown label " + ordinal);
+            }
+            byte[] secret = cursor.bytes(cursor.u8());
+            secrets++;
+            if (filter.emits(LABELS[ordinal])) {
+                entry.addSecret(LABELS[ordinal], secret);
+            }
+        }
+        cursor.end();
+    }
+
+    /** The number of records converted so far. */
+    public long getRecords() {
+        return records;
+    }
+
+    /** The number of secrets in the records converted so far. */
+    public long getSecrets() {
+        return secrets;
+    }
+
+    /** The number of secrets written out so far, the ones matching the filter. */
+    public long getWritten() {
+        return written;
+    }
+
+    // Reads the fields of a record, checking they are within it
+    private static final class Cursor {
+        private final byte[] record;
+        private final int end;
+        private final long position;
+        private int pos;
+
+        Cursor(byte[] record, int end, long position) {
+            this.record = record;
+            this.end = end;
+            this.position = position;
+        }
+
+        int u8() throws IOException {
+            need(1);
+            return record[pos++] & 0xFF;
+        }
+
+        int u16() throws IOException {
+            return u8() << 8 | u8();
+        }
+
+        int i32() throws IOException {
+            return u16() << 16 | u16();
+        }
+
+        long i64() throws IOException {
+            return (long) i32() << 32 | (i32() & 0xFFFFFFFFL);
+        }
+
+        byte[] bytes(int length) throws IOException {
+            need(length);
+            pos += length;
+            return Arrays.copyOfRange(record, pos - length, pos);
+        }
+
+        String str() throws IOException {
+            int length = u8();
+            if (length == NULL_STRING) {
+                return null;
+            }
+            need(length);
+            pos += length;
+            return new String(record, pos - length, length, "UTF-8");
+        }
+
+        void end() throws IOException {
+            if (pos != end) {
+                throw malformed((end - pos) + " bytes left over");
+            }
+        }
+
+        private void need(int length) throws IOException {
+            if (end - pos < length) {
+                throw malformed("fields past the end");
+            }
+        }
+
+        IOException malformed(String reason) {
+            return new IOException("Malformed record at byte " + position + ", " + reason);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package name.neykov.secrets.agent;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The instrumented bytecode of recently transformed classes, keyed by the original class bytes.
+ * Retransforming a class passes the same original bytes again, so re-attaching and retransforms
+ * triggered by other agents skip the Javassist work.
+ */
+class BytecodeCache {
+    // A handful of classes is instrumented in a JVM, more than that are stale versions.
+    private static final int MAX_ENTRIES = 16;
+
+    private final Map<Key, byte[]> entries = new LruMap();
+
+    synchronized byte[] get(byte[] original) {
+        return entries.get(new Key(original));
+    }
+
+    synchronized void put(byte[] original, byte[] instrumented) {
+        entries.put(new Key(original.clone()), instrumented);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private static final class LruMap extends LinkedHashMap<Key, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        LruMap() {
+            super(MAX_ENTRIES, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    }
+
+    private static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(bytes, ((Key) obj).bytes);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package name.neykov.secrets.agent;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Restricts the logged secrets to the given providers, NSS labels and connections (peer host or
+ * CIDR, peer port, protocol, cipher suite). Built from the agent options while parsing them, then
+ * only read by the callbacks, which match without allocating unless checking a peer CIDR.
+ *
+ * <p>The callbacks check the provider and labels first, as they are known without touching the
+ * handshake. The connection is matched once its details are in the {@link KeyLogEntry}, before
+ * reading the secrets. Connection details the provider doesn't expose never match, for example the
+ * peer of a BCJSSE handshake or anything about an IBM JSSE2 one.
+ */
+final class CaptureFilter {
+    static final int PROVIDER_SUN_JSSE = 1;
+    static final int PROVIDER_BC_JSSE = 1 << 1;
+    static final int PROVIDER_IBM_JSSE2 = 1 << 2;
+
+    // Bit masks, 0 for any
+    private int providers = 0;
+    private int labels = 0;
+
+    // Empty for any
+    private String[] hosts = new String[0];
+    private byte[][] networks = new byte[0][];
+    private int[] prefixLengths = new int[0];
+    private int[] ports = new int[0];
+    private String[] protocols = new String[0];
+    private String[] cipherSuites = new String[0];
+    private int[] cipherSuiteCodes = new int[0];
+    private boolean checksConnection = false;
+
+    static int mask(KeyLogLabel... labels) {
+        int mask = 0;
+        for (KeyLogLabel label : labels) {
+            mask |= label.mask;
+        }
+        return mask;
+    }
+
+    void addProvider(String value) {
+        if ("SunJSSE".equalsIgnoreCase(value)) {
+            providers |= PROVIDER_SUN_JSSE;
+        } else if ("BCJSSE".equalsIgnoreCase(value)) {
+            providers |= PROVIDER_BC_JSSE;
+        } else if ("IBMJSSE2".equalsIgnoreCase(value)) {
+            providers |= PROVIDER_IBM_JSSE2;
+        } else {
+            throw new IllegalArgumentException(
+                    "Unknown provider '" + value + "', expected SunJSSE, BCJSSE or IBMJSSE2");
+        }
+    }
+
+    void addLabel(String value) {
+        try {
+            labels |= KeyLogLabel.valueOf(value.toUpperCase(Locale.ROOT)).mask;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown NSS key log label '" + value + "'");
+        }
+    }
+
+    /** A host name, {@code *.<domain>} for any host in the domain, or an IP address or CIDR. */
+    void addPeer(String value) {
+        int slash = value.indexOf('/');
+        String address = slash >= 0 ? value.substring(0, slash) : value;
+        byte[] network = parseAddress(address);
+        if (network == null) {
+            if (slash >= 0 || value.isEmpty()) {
+                throw new IllegalArgumentException("Invalid peer CIDR '" + value + "'");
+            }
+            hosts = append(hosts, value);
+            checksConnection = true;
+            return;
+        }
+        int prefixLength = network.length * 8;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(value.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                prefixLength = -1;
+            }
+            if (prefixLength < 0 || prefixLength > network.length * 8) {
+                throw new IllegalArgumentException("Invalid peer CIDR '" + value + "'");
+            }
+        }
+        networks = Arrays.copyOf(networks, networks.length + 1);
+        networks[networks.length - 1] = network;
+        prefixLengths = append(prefixLengths, prefixLength);
+        checksConnection = true;
+    }
+
+    void addPort(int port) {
+        ports = append(ports, port);
+        checksConnection = true;
+    }
+
+    void addProtocol(String value) {
+        protocols = append(protocols, normalizeProtocol(value));
+        checksConnection = true;
+    }
+
+    /** A cipher suite name, or its {@code 0x} code for BCJSSE, which only reports the code. */
+    void addCipherSuite(String value) {
+        if (value.startsWith("0x") || value.startsWith("0X")) {
+            try {
+                cipherSuiteCodes =
+                        append(cipherSuiteCodes, Integer.parseInt(value.substring(2), 16));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cipher suite code '" + value + "'");
+            }
+        } else {
+            cipherSuites = append(cipherSuites, value);
+        }
+        checksConnection = true;
+    }
+
+    private static String[] append(String[] values, String value) {
+        String[] appended = Arrays.copyOf(values, values.length + 1);
+        appended[values.length] = value;
+        return appended;
+    }
+
+    private static int[] append(int[] values, int value) {
+        int[] appended = Arrays.copyOf(values, values.length + 1);
+        appended[values.length] = value;
+        return appended;
+    }
+
+    /** Whether any of the given labels of the given provider are logged. */
+    boolean matches(int provider, int labelMask) {
+        return (providers == 0 || (providers & provider) != 0)
+                && (labels == 0 || (labels & labelMask) != 0);
+    }
+
+    boolean emits(KeyLogLabel label) {
+        return labels == 0 || (labels & label.mask) != 0;
+    }
+
+    /** Whether the connection details need checking, see {@link #matchesConnection}. */
+    boolean checksConnection() {
+        return checksConnection;
+    }
+
+    boolean matchesConnection(KeyLogEntry entry) {
+        if ((hosts.length > 0 || networks.length > 0) && !matchesPeer(entry.getPeerHost())) {
+            return false;
+        }
+        // The port is -1 when unknown, never matching
+        if (ports.length > 0 && !contains(ports, entry.getPeerPort())) {
+            return false;
+        }
+        if (protocols.length > 0 && !matchesProtocol(entry.getProtocol())) {
+            return false;
+        }
+        return (cipherSuites.length == 0 && cipherSuiteCodes.length == 0)
+                || matchesCipherSuite(entry.getCipherSuite(), entry.getCipherSuiteCode());
+    }
+
+    private boolean matchesPeer(String peerHost) {
+        if (peerHost == null) {
+            return false;
+        }
+        for (String pattern : hosts) {
+            if (pattern.startsWith("*.")) {
+                int suffix = pattern.length() - 1;
+                if (peerHost.regionMatches(true, peerHost.length() - suffix, pattern, 1, suffix)) {
+                    return true;
+                }
+            } else if (pattern.equalsIgnoreCase(peerHost)) {
+                return true;
+            }
+        }
+        if (networks.length == 0) {
+            return false;
+        }
+        byte[] address = parseAddress(peerHost);
+        if (address == null) {
+            return false;
+        }
+        for (int i = 0; i < networks.length; i++) {
+            if (inNetwork(address, networks[i], prefixLengths[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean inNetwork(byte[] address, byte[] network, int prefixLength) {
+        if (address.length != network.length) {
+            return false;
+        }
+        for (int bit = 0; bit < prefixLength; bit += 8) {
+            int bits = Math.min(8, prefixLength - bit);
+            int mask = (0xFF << (8 - bits)) & 0xFF;
+            if ((address[bit / 8] & mask) != (network[bit / 8] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesProtocol(String protocol) {
+        if (protocol == null) {
+            return false;
+        }
+        for (String normalized : protocols) {
+            if (isProtocol(normalized, protocol)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesCipherSuite(String cipherSuite, int cipherSuiteCode) {
+        if (cipherSuite != null) {
+            for (String name : cipherSuites) {
+                if (name.equalsIgnoreCase(cipherSuite)) {
+                    return true;
+                }
+            }
+        }
+        return contains(cipherSuiteCodes, cipherSuiteCode);
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int candidate : values) {
+            if (candidate == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // "TLSv1.3" (JSSE) and "TLS 1.3" (BCJSSE) both become "tls13"
+    private static String normalizeProtocol(String protocol) {
+        StringBuilder normalized = new StringBuilder();
+        for (int i = 0; i < protocol.length(); i++) {
+            char c = Character.toLowerCase(protocol.charAt(i));
+            if (isProtocolChar(protocol, i)) {
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    // Same as normalizeProtocol(protocol).equals(normalized), without the garbage
+    private static boolean isProtocol(String normalized, String protocol) {
+        int pos = 0;
+        for (int i = 0; i < protocol.length(); i++) {
+            if (isProtocolChar(protocol, i)) {
+                if (pos == normalized.length()
+                        || normalized.charAt(pos) != Character.toLowerCase(protocol.charAt(i))) {
+                    return false;
+                }
+                pos++;
+            }
+        }
+        return pos == normalized.length();
+    }
+
+    // Letters and digits, except the "v" of "TLSv"
+    private static boolean isProtocolChar(String protocol, int i) {
+        char c = protocol.charAt(i);
+        if (!Character.isLetterOrDigit(c)) {
+            return false;
+        }
+        return !(i == 3 && (c == 'v' || c == 'V') && protocol.regionMatches(true, 0, "tls", 0, 3));
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 literal, null for anything else. Done by hand so host names are never
+     * resolved from a TLS callback.
+     */
+    static byte[] parseAddress(String address) {
+        if (address.indexOf(':') >= 0) {
+            return parseIpv6(address);
+        }
+        byte[] bytes = new byte[4];
+        return parseIpv4(address, bytes, 0) ? bytes : null;
+    }
+
+    private static boolean parseIpv4(String address, byte[] bytes, int offset) {
+        String[] parts = address.split("\\.", -1);
+        if (parts.length != 4) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            int value = parseNumber(parts[i], 10, 3);
+            if (value < 0 || value > 255) {
+                return false;
+            }
+            bytes[offset + i] = (byte) value;
+        }
+        return true;
+    }
+
+    private static byte[] parseIpv6(String address) {
+        if (address.startsWith("[") && address.endsWith("]")) {
+            address = address.substring(1, address.length() - 1);
+        }
+        int zone = address.indexOf('%');
+        if (zone >= 0) {
+            address = address.substring(0, zone);
+        }
+        byte[] bytes = new byte[16];
+        int gap = address.indexOf("::");
+        if (gap >= 0 && address.indexOf("::", gap + 1) >= 0) {
+            return null;
+        }
+        String head = gap >= 0 ? address.substring(0, gap) : address;
+        String tail = gap >= 0 ? address.substring(gap + 2) : "";
+        byte[] headBytes = parseGroups(head);
+        byte[] tailBytes = parseGroups(tail);
+        if (headBytes == null
+                || tailBytes == null
+                || headBytes.length + tailBytes.length > 16
+                || (gap < 0 && headBytes.length != 16)) {
+            return null;
+        }
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        System.arraycopy(tailBytes, 0, bytes, 16 - tailBytes.length, tailBytes.length);
+        return bytes;
+    }
+
+    // Colon separated hex groups, the last one optionally an embedded IPv4 address
+    private static byte[] parseGroups(String groups) {
+        if (groups.isEmpty()) {
+            return new byte[0];
+        }
+        String[] parts = groups.split(":", -1);
+        boolean ipv4Tail = parts[parts.length - 1].indexOf('.') >= 0;
+        byte[] bytes = new byte[parts.length * 2 + (ipv4Tail ? 2 : 0)];
+        if (bytes.length > 16) {
+            return null;
+        }
+        int hexParts = ipv4Tail ? parts.length - 1 : parts.length;
+        for (int i = 0; i < hexParts; i++) {
+            int value = parseNumber(parts[i], 16, 4);
+            if (value < 0) {
+                return null;
+            }
+            bytes[i * 2] = (byte) (value >> 8);
+            bytes[i * 2 + 1] = (byte) value;
+        }
+        if (ipv4Tail && !parseIpv4(parts[parts.length - 1], bytes, hexParts * 2)) {
+            return null;
+        }
+        return bytes;
+    }
+
+    private static int parseNumber(String digits, int radix, int maxLength) {
+        if (digits.isEmpty() || digits.length() > maxLength) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = Character.digit(digits.charAt(i), radix);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * radix + digit;
+        }
+        return value;
+    }
+}
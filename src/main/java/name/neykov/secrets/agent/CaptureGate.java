@@ -0,0 +1,170 @@
+package name.neykov.secrets.agent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which handshakes get logged, capturing 1 in {@code sample} handshakes and at most {@code
+ * rateLimit} per second. The callbacks ask before doing any work, so a skipped handshake costs an
+ * identity hash and a counter update.
+ *
+ * <p>A handshake reaches several callbacks (one per TLS 1.3 secret) and its secrets are only useful
+ * together, so the decision is made once per handshake object and remembered in a small 4-way set
+ * associative table keyed by its identity hash. With many more handshakes in flight than table
+ * slots a handshake can get evicted, decided again and end up partially logged.
+ */
+class CaptureGate {
+    // Power of two, in sets of WAYS adjacent slots
+    private static final int DECISIONS = 4096;
+    private static final int WAYS = 4;
+    private static final long VALID = 1;
+    private static final long CAPTURE = 2;
+
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Limits {
+        final int sample;
+        final int rateLimit;
+        final long intervalNanos;
+
+        Limits(int sample, int rateLimit) {
+            this.sample = sample;
+            this.rateLimit = rateLimit;
+            this.intervalNanos = rateLimit > 0 ? Math.max(SECOND_NANOS / rateLimit, 1) : 0;
+        }
+
+        boolean isUnlimited() {
+            return sample == 1 && rateLimit == 0;
+        }
+    }
+
+    private volatile Limits limits = new Limits(1, 0);
+
+    // <identity hash> << 32 | CAPTURE | VALID
+    private final AtomicLongArray decisions = new AtomicLongArray(DECISIONS);
+
+    private final AtomicLong handshakes = new AtomicLong();
+    // Generic cell rate algorithm: the theoretical arrival time of the next handshake, a token
+    // bucket holding a second worth of handshakes in a single CAS-updated value.
+    private final AtomicLong nextArrival = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * Sets the limits, taking effect for the next handshake.
+     *
+     * @param sample capture 1 in {@code sample} handshakes
+     * @param rateLimit maximum handshakes captured per second, 0 for no limit
+     */
+    void setLimits(int sample, int rateLimit) {
+        limits = new Limits(sample, rateLimit);
+    }
+
+    int getSample() {
+        return limits.sample;
+    }
+
+    int getRateLimit() {
+        return limits.rateLimit;
+    }
+
+    /** Clears the counters and remembered decisions, for a new attach. */
+    void reset() {
+        for (int i = 0; i < DECISIONS; i++) {
+            decisions.set(i, 0);
+        }
+        handshakes.set(0);
+        captured.set(0);
+        sampledOut.set(0);
+        rateLimited.set(0);
+    }
+
+    /** Whether to log the secrets of the handshake identified by the given context or session. */
+    boolean capture(Object handshake) {
+        Limits current = limits;
+        if (current.isUnlimited()) {
+            return true;
+        }
+        int hash = System.identityHashCode(handshake);
+        int set = (hash * WAYS) & (DECISIONS - 1);
+        int victim = -1;
+        for (int i = set; i < set + WAYS; i++) {
+            long decision = decisions.get(i);
+            if ((decision & VALID) == 0) {
+                victim = victim < 0 ? i : victim;
+            } else if ((int) (decision >>> 32) == hash) {
+                return (decision & CAPTURE) != 0;
+            }
+        }
+        boolean capture = decide(current);
+        if (victim < 0) {
+            // Full set, evict a way picked by the upper bits of the hash
+            victim = set + ((hash >>> 24) & (WAYS - 1));
+        }
+        decisions.set(victim, ((long) hash << 32) | (capture ? CAPTURE : 0) | VALID);
+        return capture;
+    }
+
+    private boolean decide(Limits current) {
+        if (current.sample > 1 && handshakes.getAndIncrement() % current.sample != 0) {
+            sampledOut.incrementAndGet();
+            return false;
+        }
+        if (current.rateLimit > 0 && !acquire(current.intervalNanos)) {
+            rateLimited.incrementAndGet();
+            return false;
+        }
+        captured.incrementAndGet();
+        return true;
+    }
+
+    private boolean acquire(long intervalNanos) {
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = nextArrival.get();
+            long next = (arrival - now < 0 ? now : arrival) + intervalNanos;
+            if (next - now > SECOND_NANOS) {
+                return false;
+            }
+            if (nextArrival.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    long getCaptured() {
+        return captured.get();
+    }
+
+    long getSampledOut() {
+        return sampledOut.get();
+    }
+
+    long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    @Override
+    public String toString() {
+        Limits current = limits;
+        if (current.isUnlimited()) {
+            return "Capturing all handshakes.";
+        }
+        StringBuilder msg = new StringBuilder();
+        msg.append("Capturing 1 in ").append(current.sample).append(" handshakes");
+        if (current.rateLimit > 0) {
+            msg.append(", at most ").append(current.rateLimit).append(" per second");
+        }
+        return msg.append(". Captured ")
+                .append(captured.get())
+                .append(", skipped ")
+                .append(sampledOut.get())
+                .append(" by sampling and ")
+                .append(rateLimited.get())
+                .append(" by the rate limit.")
+                .toString();
+    }
+}
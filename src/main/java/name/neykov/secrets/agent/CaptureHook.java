@@ -0,0 +1,21 @@
+package name.neykov.secrets.agent;
+
+/** The callbacks of {@link MasterSecretCallback} called by the instrumented TLS providers. */
+enum CaptureHook {
+    ON_MASTER_SECRET("onMasterSecret", CaptureFilter.PROVIDER_SUN_JSSE),
+    ON_CALCULATE_KEYS("onCalculateKeys", CaptureFilter.PROVIDER_SUN_JSSE),
+    ON_KEY_DERIVATION("onKeyDerivation", CaptureFilter.PROVIDER_SUN_JSSE),
+    ON_BC_MASTER_SECRET("onBcMasterSecret", CaptureFilter.PROVIDER_BC_JSSE),
+    ON_BC_TLS13_HANDSHAKE_SECRETS("onBcTls13HandshakeSecrets", CaptureFilter.PROVIDER_BC_JSSE),
+    ON_BC_TLS13_APPLICATION_SECRETS("onBcTls13ApplicationSecrets", CaptureFilter.PROVIDER_BC_JSSE),
+    ON_IBM_KEY_MATERIAL("onIbmKeyMaterial", CaptureFilter.PROVIDER_IBM_JSSE2);
+
+    final String method;
+    // One of the CaptureFilter.PROVIDER_* bits
+    final int provider;
+
+    CaptureHook(String method, int provider) {
+        this.method = method;
+        this.provider = provider;
+    }
+}
@@ -0,0 +1,86 @@
+package name.neykov.secrets.agent;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches a value computed from a class, so reflective lookups happen once per concrete class
+ * instead of on every handshake. A null value is cached too, for negative results.
+ *
+ * <p>Each hook sees a handful of classes (client and server contexts, the secret implementations of
+ * a provider), so the entries are kept in a small copy-on-write array that is scanned by identity.
+ *
+ * <p>The caches are static in classes of the boot class loader, so they must not keep classes of
+ * other loaders alive, for example of an undeployed web application bundling BouncyCastle. The
+ * classes are held weakly, and their values, which reference the class as a Field or Method does,
+ * softly: the JVM clears the values that haven't been used for a while, then the class and its
+ * loader can go. The entries of collected classes are dropped on the next update. The values of
+ * boot classes are held strongly, the boot loader never goes away.
+ */
+abstract class ClassCache<V> {
+    private static final int MAX_ENTRIES = 8;
+    private static final Object NULL = new Object();
+
+    private volatile Entry[] entries = new Entry[0];
+
+    private static final class Entry extends WeakReference<Class<?>> {
+        // One of them is set, to the value or NULL
+        private final Object strong;
+        private final SoftReference<Object> soft;
+
+        Entry(Class<?> type, Object value) {
+            super(type);
+            if (type.getClassLoader() == null) {
+                strong = value;
+                soft = null;
+            } else {
+                strong = null;
+                soft = new SoftReference<Object>(value);
+            }
+        }
+
+        // Null once cleared
+        Object value() {
+            return strong != null ? strong : soft.get();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V lookup(Class<?> type) {
+        Entry[] current = entries;
+        for (Entry entry : current) {
+            if (entry.get() == type) {
+                Object value = entry.value();
+                if (value != null) {
+                    return value == NULL ? null : (V) value;
+                }
+                // Cleared, compute it again
+                break;
+            }
+        }
+        V value = compute(type);
+        List<Entry> updated = new ArrayList<Entry>(current.length + 1);
+        for (Entry entry : current) {
+            Class<?> cached = entry.get();
+            if (cached != null && cached != type && entry.value() != null) {
+                updated.add(entry);
+            }
+        }
+        if (updated.size() >= MAX_ENTRIES) {
+            updated.clear();
+        }
+        updated.add(new Entry(type, value == null ? NULL : value));
+        // Racing updates can lose an entry, costing one more compute() later.
+        entries = updated.toArray(new Entry[0]);
+        return value;
+    }
+
+    /** The number of entries, including the ones of collected classes not dropped yet. */
+    int size() {
+        return entries.length;
+    }
+
+    protected abstract V compute(Class<?> type);
+}
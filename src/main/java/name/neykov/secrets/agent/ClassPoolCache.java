@@ -0,0 +1,45 @@
+package name.neykov.secrets.agent;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.LoaderClassPath;
+
+/**
+ * One Javassist ClassPool per defining class loader, so the classes referenced by an instrumented
+ * class resolve against its own loader (for example BouncyCastle bundled in a web application) and
+ * the parsed classes are reused between transformations.
+ *
+ * <p>The pools of non-boot loaders are children of the shared system pool, which resolves through
+ * the system class loader rather than the context class loader of whichever thread transforms
+ * first, so it doesn't pin a web application loader for the life of the agent. They are held in a
+ * WeakHashMap and reference their loader through a weak {@link LoaderClassPath}, so they don't keep
+ * the loader from being unloaded.
+ */
+class ClassPoolCache {
+    private final Map<ClassLoader, ClassPool> pools = new WeakHashMap<ClassLoader, ClassPool>();
+    private ClassPool systemPool;
+
+    synchronized ClassPool get(ClassLoader loader) {
+        if (systemPool == null) {
+            systemPool = new ClassPool();
+            systemPool.appendClassPath(new LoaderClassPath(ClassLoader.getSystemClassLoader()));
+            // Needed for Java 9+
+            systemPool.insertClassPath(new ClassClassPath(Transformer.class));
+        }
+        if (loader == null) {
+            return systemPool;
+        }
+        ClassPool pool = pools.get(loader);
+        if (pool == null) {
+            pool = new ClassPool(systemPool);
+            // The system pool can see the application class path too, resolve through the
+            // loader first so its own version of a class wins.
+            pool.childFirstLookup = true;
+            pool.appendClassPath(new LoaderClassPath(loader));
+            pools.put(loader, pool);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,117 @@
+package name.neykov.secrets.agent;
+
+/**
+ * Maps 32 byte client randoms, as four longs, to the sequence number of the latest secrets logged
+ * for them in {@link MemorySecretsWriter}. An open addressing table of fixed size in primitive
+ * arrays, so it never allocates after construction.
+ *
+ * <p>The table is 8-way set associative: a client random can only be in one of the 8 entries of the
+ * set its hash selects. When the set is full the entry with the oldest sequence number is evicted,
+ * which the ring of the writer has most likely overwritten already. Each set has its own lock, so
+ * concurrent handshakes only contend when hashing to the same set.
+ */
+final class ClientRandomIndex {
+    private static final int WAYS = 8;
+    private static final long EMPTY = -1;
+
+    // Four longs per entry
+    private final long[] keys;
+    private final long[] sequences;
+    private final Object[] locks;
+    private final int setMask;
+
+    /** Sized for about {@code capacity} client randoms, with room to spare for the collisions. */
+    ClientRandomIndex(int capacity) {
+        int sets = Integer.highestOneBit(Math.max(capacity * 2 / WAYS - 1, 1)) << 1;
+        this.setMask = sets - 1;
+        this.keys = new long[sets * WAYS * 4];
+        this.sequences = new long[sets * WAYS];
+        this.locks = new Object[sets];
+        for (int i = 0; i < sets; i++) {
+            locks[i] = new Object();
+        }
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = EMPTY;
+        }
+    }
+
+    /** Maps the client random to the sequence, returns the previous one or -1. */
+    long put(long k0, long k1, long k2, long k3, long sequence) {
+        int set = set(k0, k1, k2, k3);
+        int first = set * WAYS;
+        synchronized (locks[set]) {
+            int victim = first;
+            for (int entry = first; entry < first + WAYS; entry++) {
+                if (sequences[entry] == EMPTY) {
+                    if (sequences[victim] != EMPTY) {
+                        victim = entry;
+                    }
+                } else if (matches(entry, k0, k1, k2, k3)) {
+                    long previous = sequences[entry];
+                    sequences[entry] = Math.max(previous, sequence);
+                    return previous;
+                } else if (sequences[victim] != EMPTY && sequences[entry] < sequences[victim]) {
+                    victim = entry;
+                }
+            }
+            keys[victim * 4] = k0;
+            keys[victim * 4 + 1] = k1;
+            keys[victim * 4 + 2] = k2;
+            keys[victim * 4 + 3] = k3;
+            sequences[victim] = sequence;
+            return EMPTY;
+        }
+    }
+
+    /** The latest sequence of the client random, -1 if not found. */
+    long get(long k0, long k1, long k2, long k3) {
+        int set = set(k0, k1, k2, k3);
+        int first = set * WAYS;
+        synchronized (locks[set]) {
+            for (int entry = first; entry < first + WAYS; entry++) {
+                if (sequences[entry] != EMPTY && matches(entry, k0, k1, k2, k3)) {
+                    return sequences[entry];
+                }
+            }
+            return EMPTY;
+        }
+    }
+
+    private boolean matches(int entry, long k0, long k1, long k2, long k3) {
+        int at = entry * 4;
+        return keys[at] == k0 && keys[at + 1] == k1 && keys[at + 2] == k2 && keys[at + 3] == k3;
+    }
+
+    private int set(long k0, long k1, long k2, long k3) {
+        // Up to TLS 1.2 the first 4 bytes are the time, so mix in all of it
+        long hash = (k0 * 31 + k1) * 31 + k2 * 0x9E3779B97F4A7C15L + k3;
+        hash ^= hash >>> 32;
+        hash *= 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 40) & setMask;
+    }
+
+    /**
+     * Parses the {@code index}-th long of a client random in hex, at {@code offset} of the buffer.
+     * The caller checks the digits with {@link #isHex}.
+     */
+    static long hexLong(byte[] buffer, int offset, int index) {
+        long value = 0;
+        for (int i = offset + index * 16; i < offset + index * 16 + 16; i++) {
+            value = value << 4 | Character.digit(buffer[i], 16);
+        }
+        return value;
+    }
+
+    /** Whether the buffer has the 64 hex digits of a client random at the offset. */
+    static boolean isHex(byte[] buffer, int offset, int end) {
+        if (end - offset < 64) {
+            return false;
+        }
+        for (int i = offset; i < offset + 64; i++) {
+            if (Character.digit(buffer[i], 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
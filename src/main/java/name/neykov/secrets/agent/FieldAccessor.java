@@ -0,0 +1,41 @@
+package name.neykov.secrets.agent;
+
+import java.lang.reflect.Field;
+
+/**
+ * Reads a (private) field by name, looking it up in the class hierarchy of the target. The lookup
+ * and setAccessible() are done once per concrete class, including when the field is missing.
+ */
+class FieldAccessor extends ClassCache<Field> {
+    private final String name;
+
+    FieldAccessor(String name) {
+        this.name = name;
+    }
+
+    Object get(Object target) throws IllegalAccessException, NoSuchFieldException {
+        Field field = lookup(target.getClass());
+        if (field == null) {
+            throw new NoSuchFieldException(name);
+        }
+        return field.get(target);
+    }
+
+    boolean isPresent(Object target) {
+        return lookup(target.getClass()) != null;
+    }
+
+    @Override
+    protected Field compute(Class<?> type) {
+        while (type != null) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                type = type.getSuperclass();
+            }
+        }
+        return null;
+    }
+}
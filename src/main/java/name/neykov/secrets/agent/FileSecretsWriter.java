@@ -0,0 +1,45 @@
+package name.neykov.secrets.agent;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Opens, appends to and closes the secrets file on every write. Slow, but tolerates the file being
+ * moved or deleted while attached.
+ */
+public class FileSecretsWriter implements SecretsWriter {
+    private final String secretsFileName;
+    private final SecretsRotation rotation;
+
+    public FileSecretsWriter(String secretsFileName) {
+        this(secretsFileName, null);
+    }
+
+    /** Rotates the file with {@code rotation}, if not null. */
+    public FileSecretsWriter(String secretsFileName, SecretsRotation rotation) {
+        this.secretsFileName = secretsFileName;
+        this.rotation = rotation;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(secretsFileName, true);
+        try {
+            if (rotation != null && rotation.isDue(out.getChannel().size(), length)) {
+                out.close();
+                rotation.rotate();
+                out = new FileOutputStream(secretsFileName, true);
+            }
+            out.write(buffer, offset, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (rotation != null) {
+            rotation.close();
+        }
+    }
+}
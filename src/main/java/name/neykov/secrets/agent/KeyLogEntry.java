@@ -0,0 +1,426 @@
+package name.neykov.secrets.agent;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import javax.net.ssl.SSLSession;
+
+/**
+ * The key log lines produced by a single callback: an optional "# ..." comment line with the
+ * connection details followed by one line per secret, all sharing the same client random. Encodes
+ * to NSS key log text or a record of the {@link BinaryKeyLog}, which is also decoded back into
+ * entries to convert it to text.
+ *
+ * <p>Instances are reused per thread and encode straight into an ASCII byte buffer, so apart from
+ * the copies the TLS provider APIs return (Key.getEncoded(), SSLSession.getId()) a captured
+ * handshake doesn't allocate.
+ */
+final class KeyLogEntry {
+    static final int MAX_SECRETS = 3;
+
+    private static final byte[] NL = ascii(System.getProperty("line.separator"));
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+    private static final byte[] COMMENT = ascii("# ");
+    private static final byte[] PEER = ascii(" Peer: ");
+    private static final byte[] CIPHER_SUITE = ascii(" CipherSuite: ");
+    private static final byte[] BC_CIPHER_SUITE = ascii(" BCJSSE CipherSuite: 0x");
+    private static final byte[] PROTOCOL = ascii(", Protocol: ");
+
+    private static final String DATE_PATTERN = "yyyy-MM-dd HH:mm:ss.SSSZ";
+
+    // The date of the current second, shared by all threads and replaced without locking when the
+    // second changes. Racing threads may format the same second twice, which is harmless.
+    private static volatile FormattedSecond lastSecond =
+            new FormattedSecond(Long.MIN_VALUE, new byte[0], new byte[0]);
+
+    private static final ThreadLocal<KeyLogEntry> ENTRIES =
+            new ThreadLocal<KeyLogEntry>() {
+                @Override
+                protected KeyLogEntry initialValue() {
+                    return new KeyLogEntry();
+                }
+            };
+
+    private static final class FormattedSecond {
+        final long second;
+        // "yyyy-MM-dd HH:mm:ss." and the time zone offset, the milliseconds go in between
+        final byte[] prefix;
+        final byte[] zone;
+
+        FormattedSecond(long second, byte[] prefix, byte[] zone) {
+            this.second = second;
+            this.prefix = prefix;
+            this.zone = zone;
+        }
+    }
+
+    private enum Details {
+        NONE,
+        SESSION,
+        BCJSSE
+    }
+
+    private Details details;
+    private String peerHost;
+    private int peerPort;
+    private String cipherSuite;
+    private int cipherSuiteCode;
+    private String protocol;
+    // Of the comment line, 0 for the time of encoding
+    private long time;
+
+    private byte[] clientRandom;
+    private int secretCount;
+    private final KeyLogLabel[] labels = new KeyLogLabel[MAX_SECRETS];
+    private final byte[][] secrets = new byte[MAX_SECRETS][];
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+    // Of this entry's thread, only used once a second
+    private SimpleDateFormat dateFormat;
+
+    private KeyLogEntry() {
+        clear();
+    }
+
+    /** Returns the empty entry of the current thread. */
+    static KeyLogEntry get() {
+        KeyLogEntry entry = ENTRIES.get();
+        entry.clear();
+        return entry;
+    }
+
+    /** Drops the references to the connection and its secrets. */
+    void clear() {
+        details = Details.NONE;
+        peerHost = null;
+        peerPort = -1;
+        cipherSuite = null;
+        cipherSuiteCode = -1;
+        protocol = null;
+        time = 0;
+        clientRandom = null;
+        for (int i = 0; i < secretCount; i++) {
+            labels[i] = null;
+            secrets[i] = null;
+        }
+        secretCount = 0;
+        length = 0;
+    }
+
+    void setSessionDetails(SSLSession sslSession) {
+        setSessionDetails(
+                sslSession.getPeerHost(),
+                sslSession.getPeerPort(),
+                sslSession.getCipherSuite(),
+                sslSession.getProtocol());
+    }
+
+    void setSessionDetails(String peerHost, int peerPort, String cipherSuite, String protocol) {
+        details = Details.SESSION;
+        this.peerHost = peerHost;
+        this.peerPort = peerPort;
+        this.cipherSuite = cipherSuite;
+        this.protocol = protocol;
+    }
+
+    void setBcDetails(int cipherSuiteCode, String protocol) {
+        details = Details.BCJSSE;
+        this.cipherSuiteCode = cipherSuiteCode;
+        this.protocol = protocol;
+    }
+
+    String getPeerHost() {
+        return peerHost;
+    }
+
+    /** -1 if unknown. */
+    int getPeerPort() {
+        return peerPort;
+    }
+
+    String getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /** Only known for BCJSSE, -1 otherwise. */
+    int getCipherSuiteCode() {
+        return cipherSuiteCode;
+    }
+
+    String getProtocol() {
+        return protocol;
+    }
+
+    /** The time of the comment line, when decoded from a binary record. */
+    void setTime(long millis) {
+        this.time = millis;
+    }
+
+    /** The client random, or the session ID for {@link KeyLogLabel#RSA_SESSION_ID}. */
+    void setClientRandom(byte[] clientRandom) {
+        this.clientRandom = clientRandom;
+    }
+
+    void addSecret(KeyLogLabel label, byte[] secret) {
+        labels[secretCount] = label;
+        secrets[secretCount] = secret;
+        secretCount++;
+    }
+
+    /** Drops the secrets logged recently already, returns the number of secrets left. */
+    int removeDuplicates(SecretsDedupe dedupe) {
+        int kept = 0;
+        for (int i = 0; i < secretCount; i++) {
+            if (dedupe.firstSeen(labels[i], clientRandom, secrets[i])) {
+                labels[kept] = labels[i];
+                secrets[kept] = secrets[i];
+                kept++;
+            }
+        }
+        for (int i = kept; i < secretCount; i++) {
+            labels[i] = null;
+            secrets[i] = null;
+        }
+        secretCount = kept;
+        return kept;
+    }
+
+    /**
+     * Encodes the entry in NSS key log format, see {@link #buffer()} and {@link #length()}. The
+     * connection details go to a comment line if {@code comments} is set and any are known.
+     */
+    void encode(boolean comments) {
+        ensureCapacity(encodedLengthBound());
+        int pos = 0;
+        if (comments && details != Details.NONE) {
+            pos = encodeDetails(pos);
+        }
+        for (int i = 0; i < secretCount; i++) {
+            pos = put(labels[i].prefix, pos);
+            pos = putHex(clientRandom, pos);
+            pos = put(labels[i].separator, pos);
+            pos = putHex(secrets[i], pos);
+            pos = put(NL, pos);
+        }
+        length = pos;
+    }
+
+    /**
+     * Encodes the entry as a record of the {@link BinaryKeyLog}, see {@link #buffer()} and {@link
+     * #length()}. The time and connection details are included if {@code comments} is set and any
+     * are known.
+     */
+    void encodeBinary(boolean comments) {
+        // The raw bytes take less than the hex of the text
+        ensureCapacity(encodedLengthBound());
+        int pos = 0;
+        buffer[pos++] = BinaryKeyLog.MAGIC;
+        // The length of the rest goes in once known
+        pos += 2;
+        if (comments && details != Details.NONE) {
+            boolean bc = details == Details.BCJSSE;
+            buffer[pos++] = bc ? BinaryKeyLog.DETAILS_BCJSSE : BinaryKeyLog.DETAILS_SESSION;
+            pos = putLong(time != 0 ? time : System.currentTimeMillis(), pos);
+            if (bc) {
+                buffer[pos++] = (byte) (cipherSuiteCode >>> 8);
+                buffer[pos++] = (byte) cipherSuiteCode;
+            } else {
+                pos = putShortString(peerHost, pos);
+                pos = putInt(peerPort, pos);
+                pos = putShortString(cipherSuite, pos);
+            }
+            pos = putShortString(protocol, pos);
+        } else {
+            buffer[pos++] = BinaryKeyLog.DETAILS_NONE;
+        }
+        buffer[pos++] = (byte) clientRandom.length;
+        pos = put(clientRandom, pos);
+        buffer[pos++] = (byte) secretCount;
+        for (int i = 0; i < secretCount; i++) {
+            buffer[pos++] = (byte) labels[i].ordinal();
+            buffer[pos++] = (byte) secrets[i].length;
+            pos = put(secrets[i], pos);
+        }
+        int recordLength = pos - BinaryKeyLog.HEADER_LENGTH;
+        buffer[1] = (byte) (recordLength >>> 8);
+        buffer[2] = (byte) recordLength;
+        length = pos;
+    }
+
+    int secretCount() {
+        return secretCount;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    private int encodeDetails(int pos) {
+        pos = put(COMMENT, pos);
+        pos = putDate(time != 0 ? time : System.currentTimeMillis(), pos);
+        if (details == Details.BCJSSE) {
+            pos = put(BC_CIPHER_SUITE, pos);
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                buffer[pos++] = HEX[(cipherSuiteCode >>> shift) & 0x0F];
+            }
+        } else {
+            if (peerHost != null) {
+                pos = put(PEER, pos);
+                pos = putString(peerHost, pos);
+                buffer[pos++] = ':';
+                pos = putDecimal(peerPort, pos);
+                buffer[pos++] = ',';
+            }
+            pos = put(CIPHER_SUITE, pos);
+            pos = putString(cipherSuite, pos);
+        }
+        pos = put(PROTOCOL, pos);
+        pos = putString(protocol, pos);
+        return put(NL, pos);
+    }
+
+    /** Writes the time in {@value #DATE_PATTERN} format, only formatting it once a second. */
+    int putDate(long millis, int pos) {
+        long second = millis / 1000;
+        int millisOfSecond = (int) (millis % 1000);
+        if (millisOfSecond < 0) {
+            second--;
+            millisOfSecond += 1000;
+        }
+        FormattedSecond formatted = lastSecond;
+        if (formatted.second != second) {
+            formatted = formatSecond(second);
+            lastSecond = formatted;
+        }
+        pos = put(formatted.prefix, pos);
+        buffer[pos++] = (byte) ('0' + millisOfSecond / 100);
+        buffer[pos++] = (byte) ('0' + millisOfSecond / 10 % 10);
+        buffer[pos++] = (byte) ('0' + millisOfSecond % 10);
+        return put(formatted.zone, pos);
+    }
+
+    private FormattedSecond formatSecond(long second) {
+        if (dateFormat == null) {
+            dateFormat = new SimpleDateFormat(DATE_PATTERN);
+        }
+        // The time zone offset only changes on whole seconds too
+        String date = dateFormat.format(new Date(second * 1000));
+        int dot = date.lastIndexOf('.');
+        return new FormattedSecond(
+                second, ascii(date.substring(0, dot + 1)), ascii(date.substring(dot + 4)));
+    }
+
+    private int encodedLengthBound() {
+        int bound = 0;
+        if (details != Details.NONE) {
+            // Fixed parts, date, port and cipher suite code
+            bound += 128;
+            bound += 3 * (lengthOf(peerHost) + lengthOf(cipherSuite) + lengthOf(protocol));
+        }
+        for (int i = 0; i < secretCount; i++) {
+            bound += labels[i].prefix.length + labels[i].separator.length + NL.length;
+            bound += 2 * (clientRandom.length + secrets[i].length);
+        }
+        return bound;
+    }
+
+    private static int lengthOf(String value) {
+        return value != null ? value.length() : 4;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            buffer = new byte[Math.max(capacity, buffer.length * 2)];
+        }
+    }
+
+    private int put(byte[] src, int pos) {
+        System.arraycopy(src, 0, buffer, pos, src.length);
+        return pos + src.length;
+    }
+
+    private int putHex(byte[] src, int pos) {
+        for (byte b : src) {
+            buffer[pos++] = HEX[(b >>> 4) & 0x0F];
+            buffer[pos++] = HEX[b & 0x0F];
+        }
+        return pos;
+    }
+
+    private int putDecimal(int value, int pos) {
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int end = pos + 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            end++;
+        }
+        for (int i = end - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    private int putInt(int value, int pos) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    private int putLong(long value, int pos) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    // UTF-8 after a length byte, cut at MAX_STRING_LENGTH bytes
+    private int putShortString(String value, int pos) {
+        if (value == null) {
+            buffer[pos++] = (byte) BinaryKeyLog.NULL_STRING;
+            return pos;
+        }
+        int start = pos + 1;
+        int end = Math.min(putString(value, start), start + BinaryKeyLog.MAX_STRING_LENGTH);
+        buffer[pos] = (byte) (end - start);
+        return end;
+    }
+
+    // UTF-8, written out by hand to avoid the intermediate byte[] of String.getBytes()
+    private int putString(String value, int pos) {
+        if (value == null) {
+            value = "null";
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                buffer[pos++] = '?';
+            } else {
+                buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,37 @@
+package name.neykov.secrets.agent;
+
+/**
+ * The NSS key log line types written by the agent. Each line is {@code <prefix><hex client
+ * random><separator><hex secret>}.
+ */
+public enum KeyLogLabel {
+    // TLS 1.0-1.2, keyed by the session ID
+    RSA_SESSION_ID("RSA Session-ID:", " Master-Key:"),
+    // TLS 1.0-1.2
+    CLIENT_RANDOM,
+    // TLS 1.3
+    CLIENT_EARLY_TRAFFIC_SECRET,
+    EARLY_EXPORTER_SECRET,
+    CLIENT_HANDSHAKE_TRAFFIC_SECRET,
+    SERVER_HANDSHAKE_TRAFFIC_SECRET,
+    CLIENT_TRAFFIC_SECRET_0,
+    SERVER_TRAFFIC_SECRET_0,
+    EXPORTER_SECRET;
+
+    final byte[] prefix;
+    final byte[] separator;
+    // The bit of the label in the label masks of CaptureFilter
+    final int mask;
+
+    KeyLogLabel() {
+        this.prefix = KeyLogEntry.ascii(name() + " ");
+        this.separator = KeyLogEntry.ascii(" ");
+        this.mask = 1 << ordinal();
+    }
+
+    KeyLogLabel(String prefix, String separator) {
+        this.prefix = KeyLogEntry.ascii(prefix);
+        this.separator = KeyLogEntry.ascii(separator);
+        this.mask = 1 << ordinal();
+    }
+}
@@ -0,0 +1,138 @@
+package name.neykov.secrets.agent;
+
+import java.util.Locale;
+
+/**
+ * The time the captured callbacks add to a handshake, by callback and phase: reading the secrets
+ * out of the TLS provider, formatting them, writing them and the total. Each histogram has fixed
+ * power of two buckets in microseconds, so recording a time is a division, a leading zeros count
+ * and an atomic increment, without allocating or locking. The counters are striped by thread, see
+ * {@link StripedCounters}, so the handshake threads don't contend on them and the histograms are on
+ * by default, the {@code latency=false} option saves the two {@code System.nanoTime()} calls they
+ * add to every captured callback.
+ *
+ * <p>Bucket 0 counts the times under 1 us, bucket {@code b} the ones from {@code 2^(b-1)} up to
+ * {@code 2^b} us and the last bucket everything longer.
+ */
+final class LatencyHistograms {
+    static final int REFLECTION = 0;
+    static final int FORMAT = 1;
+    static final int WRITE = 2;
+    static final int TOTAL = 3;
+    private static final String[] PHASES = {"reflection", "format", "write", "total"};
+
+    // The last one from 2^22 us, about 4 seconds
+    static final int BUCKETS = 24;
+    private static final CaptureHook[] HOOKS = CaptureHook.values();
+    private static final String NL = System.getProperty("line.separator");
+
+    // [hook][phase] flattened, each the buckets then the total nanos for the mean
+    private static final int HISTOGRAM = BUCKETS + 1;
+    private final StripedCounters counts =
+            new StripedCounters(HOOKS.length * PHASES.length * HISTOGRAM);
+
+    void reset() {
+        counts.reset();
+    }
+
+    boolean isRecorded() {
+        for (CaptureHook hook : HOOKS) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (getCount(hook, TOTAL, bucket) > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Records the phases of a callback from the times it started each of them and ended. */
+    void record(CaptureHook hook, long start, long extracted, long formatted, long written) {
+        int stripe = counts.stripe();
+        record(stripe, hook, REFLECTION, extracted - start);
+        record(stripe, hook, FORMAT, formatted - extracted);
+        record(stripe, hook, WRITE, written - formatted);
+        record(stripe, hook, TOTAL, written - start);
+    }
+
+    private void record(int stripe, CaptureHook hook, int phase, long nanos) {
+        int histogram = index(hook, phase);
+        counts.increment(stripe, histogram + bucket(nanos));
+        counts.add(stripe, histogram + BUCKETS, nanos);
+    }
+
+    private static int index(CaptureHook hook, int phase) {
+        return (hook.ordinal() * PHASES.length + phase) * HISTOGRAM;
+    }
+
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    long getCount(CaptureHook hook, int phase, int bucket) {
+        return counts.sum(index(hook, phase) + bucket);
+    }
+
+    /**
+     * A line per phase of the callbacks that got captured, with the number of calls, the mean, the
+     * upper bound of the median, 99th percentile and maximum, and the non-empty buckets.
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (CaptureHook hook : HOOKS) {
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                long[] histogram = new long[BUCKETS];
+                long calls = 0;
+                for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                    histogram[bucket] = getCount(hook, phase, bucket);
+                    calls += histogram[bucket];
+                }
+                if (calls == 0) {
+                    continue;
+                }
+                long nanos = counts.sum(index(hook, phase) + BUCKETS);
+                out.append(hook.method).append(' ').append(PHASES[phase]).append(": ");
+                out.append(calls).append(" calls, mean ");
+                out.append(String.format(Locale.ROOT, "%.1f", nanos / 1e3 / calls)).append(" us");
+                out.append(", p50 ").append(bound(percentile(histogram, calls, 0.5)));
+                out.append(", p99 ").append(bound(percentile(histogram, calls, 0.99)));
+                out.append(", max ").append(bound(percentile(histogram, calls, 1))).append(" [");
+                String separator = "";
+                for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                    if (histogram[bucket] > 0) {
+                        out.append(separator).append(bound(bucket)).append(": ");
+                        out.append(histogram[bucket]);
+                        separator = ", ";
+                    }
+                }
+                out.append(']').append(NL);
+            }
+        }
+        if (out.length() == 0) {
+            return "No captured callbacks timed yet.";
+        }
+        // The reply and the log add their own line separator
+        return out.substring(0, out.length() - NL.length());
+    }
+
+    private static int percentile(long[] histogram, long calls, double fraction) {
+        long rank = Math.max((long) Math.ceil(calls * fraction), 1);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                return bucket;
+            }
+        }
+        return BUCKETS - 1;
+    }
+
+    private static String bound(int bucket) {
+        if (bucket == BUCKETS - 1) {
+            return ">=" + (1L << (bucket - 1)) + " us";
+        }
+        return "<" + (1L << bucket) + " us";
+    }
+}
@@ -1,16 +1,19 @@
 package name.neykov.secrets.agent;
 
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.security.Key;
-import java.text.SimpleDateFormat;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.SecretKey;
@@ -23,23 +26,236 @@ import javax.net.ssl.SSLSession;
 // https://www.ietf.org/archive/id/draft-thomson-tls-keylogfile-00.html
 public class MasterSecretCallback {
     private static final Logger log = Logger.getLogger(MasterSecretCallback.class.getName());
-    private static final String NL = System.getProperty("line.separator");
-    private static final SimpleDateFormat DATE_FMT =
-            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ");
-    private static String secretsFileName;
+    private static volatile SecretsWriter writer;
+    // Kill switch checked first thing in every callback. Instrumented classes can still call in
+    // while detaching, until their original bytecode is restored.
+    private static volatile boolean enabled;
+    // Checked right after the kill switch, decide which handshakes are logged
+    private static volatile CaptureFilter filter = new CaptureFilter();
+    private static final CaptureGate GATE = new CaptureGate();
+    // Null unless the dedupe option is given
+    private static volatile SecretsDedupe dedupe;
+    private static volatile boolean comments = true;
+    private static volatile boolean binary;
+    // Whether the callbacks get timed for the latency histograms, unless latency=false
+    private static volatile boolean timed;
+    private static final AgentStats STATS = new AgentStats(GATE);
 
-    public static void setSecretsFileName(String secretsFileName) {
-        MasterSecretCallback.secretsFileName = secretsFileName;
+    private static final int SUN_JSSE = CaptureFilter.PROVIDER_SUN_JSSE;
+    private static final int BC_JSSE = CaptureFilter.PROVIDER_BC_JSSE;
+    private static final int IBM_JSSE2 = CaptureFilter.PROVIDER_IBM_JSSE2;
+    private static final int BC_HANDSHAKE_LABELS =
+            CaptureFilter.mask(
+                    KeyLogLabel.CLIENT_HANDSHAKE_TRAFFIC_SECRET,
+                    KeyLogLabel.SERVER_HANDSHAKE_TRAFFIC_SECRET);
+    private static final int BC_APPLICATION_LABELS =
+            CaptureFilter.mask(
+                    KeyLogLabel.CLIENT_TRAFFIC_SECRET_0,
+                    KeyLogLabel.SERVER_TRAFFIC_SECRET_0,
+                    KeyLogLabel.EXPORTER_SECRET);
+
+    // JSSE
+    private static final FieldAccessor RANDOM_BYTES_TLS12 = new FieldAccessor("random_bytes");
+    private static final FieldAccessor HANDSHAKE_SESSION = new FieldAccessor("handshakeSession");
+    private static final FieldAccessor CLIENT_HELLO_RANDOM = new FieldAccessor("clientHelloRandom");
+    private static final FieldAccessor RANDOM_BYTES = new FieldAccessor("randomBytes");
+
+    // BCJSSE
+    private static final FieldAccessor SECURITY_PARAMETERS_HANDSHAKE =
+            new FieldAccessor("securityParametersHandshake");
+    private static final FieldAccessor SECURITY_PARAMETERS =
+            new FieldAccessor("securityParameters");
+    private static final FieldAccessor CLIENT_RANDOM = new FieldAccessor("clientRandom");
+    private static final FieldAccessor MASTER_SECRET = new FieldAccessor("masterSecret");
+    private static final FieldAccessor TRAFFIC_SECRET_CLIENT =
+            new FieldAccessor("trafficSecretClient");
+    private static final FieldAccessor TRAFFIC_SECRET_SERVER =
+            new FieldAccessor("trafficSecretServer");
+    private static final FieldAccessor EXPORTER_MASTER_SECRET =
+            new FieldAccessor("exporterMasterSecret");
+    private static final FieldAccessor NEGOTIATED_VERSION = new FieldAccessor("negotiatedVersion");
+    private static final FieldAccessor CIPHER_SUITE = new FieldAccessor("cipherSuite");
+    private static final FieldAccessor DATA = new FieldAccessor("data");
+
+    /**
+     * Starts logging to the secrets file, replacing any previous configuration. Called from the App
+     * class loader so only JDK types and {@link AgentOptions} may appear in the signature - agent
+     * classes referenced by AgentMain are at risk of getting loaded in both class loaders.
+     */
+    public static void configure(AgentOptions options, String secretsPath) {
+        filter = options.getFilter();
+        GATE.reset();
+        GATE.setLimits(options.getSample(), options.getRateLimit());
+        dedupe = options.getDedupe() > 0 ? new SecretsDedupe(options.getDedupe()) : null;
+        comments = options.isComments();
+        binary = AgentOptions.FORMAT_BINARY.equals(options.getFormat());
+        timed = options.isLatency();
+        SecretsWriter created = createWriter(options, secretsPath);
+        STATS.reset(dedupe, created);
+        STATS.logLatencyEvery(options.getLatencyLogMinutes());
+        SecretsWriter previous = writer;
+        writer = created;
+        enabled = true;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Applies the options of the config command, leaving the ones not given as they are. Returns
+     * the resulting capture settings and counters.
+     */
+    public static String reconfigure(AgentOptions options) {
+        GATE.setLimits(
+                options.isGiven("sample") ? options.getSample() : GATE.getSample(),
+                options.isGiven("rateLimit") ? options.getRateLimit() : GATE.getRateLimit());
+        return getCaptureStats();
+    }
+
+    /** The capture settings and counters of the sampling, rate limit and dedupe. */
+    public static String getCaptureStats() {
+        SecretsDedupe current = dedupe;
+        return current != null ? GATE + " " + current : GATE.toString();
+    }
+
+    /** Registers the {@link AgentStatsMXBean} in the platform MBean server. */
+    public static void registerStats() {
+        STATS.register();
+    }
+
+    public static void unregisterStats() {
+        STATS.unregister();
+    }
+
+    /** The counters of the {@link AgentStatsMXBean}, one "name: value" line each. */
+    public static String getStats() {
+        return STATS.toString();
+    }
+
+    /** Writes the secrets kept in memory to the file, returns the outcome. */
+    public static String dump(String path) {
+        SecretsWriter current = writer;
+        if (!(current instanceof MemorySecretsWriter)) {
+            return "Not keeping the secrets in memory, attach with --writer=memory to dump them.";
+        }
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+            int count;
+            try {
+                count = ((MemorySecretsWriter) current).dump(out);
+            } finally {
+                out.close();
+            }
+            return "Dumped " + count + " secret groups.";
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed dumping the secrets to " + path, e);
+            return "Failed dumping the secrets to " + path + ": " + e.getMessage();
+        }
+    }
+
+    /**
+     * Writes the secrets kept in memory for the client randoms listed in the request file, one in
+     * hex per line, to the output file. Returns the outcome.
+     */
+    public static String lookup(String requestPath, String outputPath) {
+        SecretsWriter current = writer;
+        if (!(current instanceof MemorySecretsWriter)) {
+            return "Not keeping the secrets in memory, attach with --writer=memory to find them.";
+        }
+        try {
+            BufferedReader in =
+                    new BufferedReader(
+                            new InputStreamReader(new FileInputStream(requestPath), "US-ASCII"));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(outputPath));
+            int requested = 0;
+            int found = 0;
+            try {
+                String clientRandom;
+                while ((clientRandom = in.readLine()) != null) {
+                    requested++;
+                    if (((MemorySecretsWriter) current).lookup(clientRandom.trim(), out) > 0) {
+                        found++;
+                    }
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+            return "Found the secrets of " + found + " of " + requested + " client randoms.";
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed looking up the secrets of " + requestPath, e);
+            return "Failed looking up the secrets of " + requestPath + ": " + e.getMessage();
+        }
+    }
+
+    /** Stops logging, turning the callbacks into no-ops, and closes the secrets file. */
+    public static void disable() {
+        enabled = false;
+        STATS.detached();
+        SecretsWriter previous = writer;
+        writer = null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private static SecretsWriter createWriter(AgentOptions options, String secretsPath) {
+        if (AgentOptions.WRITER_RING.equals(options.getWriter())) {
+            // Bounded already, the rotation options are rejected by AgentOptions
+            return new RingSecretsWriter(secretsPath, options.getRingSize());
+        }
+        if (AgentOptions.WRITER_MEMORY.equals(options.getWriter())) {
+            return new MemorySecretsWriter(
+                    options.getStoreEntries(),
+                    TimeUnit.MINUTES.toMillis(options.getStoreMinutes()));
+        }
+        if (AgentOptions.WRITER_FIFO.equals(options.getWriter())) {
+            return AsyncSecretsWriter.toPipe(
+                    secretsPath,
+                    options.getQueueCapacity(),
+                    options.getBatchSize(),
+                    options.getFlushIntervalMs());
+        }
+        SecretsRotation rotation = null;
+        if (options.isRotating()) {
+            rotation =
+                    new SecretsRotation(
+                            secretsPath,
+                            options.getRotateSize(),
+                            options.getRotateIntervalMin(),
+                            options.getMaxSegments(),
+                            options.isCompress());
+        }
+        if (AgentOptions.WRITER_ASYNC.equals(options.getWriter())) {
+            return new AsyncSecretsWriter(
+                    secretsPath,
+                    options.getQueueCapacity(),
+                    options.getBatchSize(),
+                    options.getFlushIntervalMs(),
+                    options.getOverflow(),
+                    rotation);
+        }
+        return new FileSecretsWriter(secretsPath, rotation);
     }
 
     @SuppressWarnings("unused")
     public static void onMasterSecret(SSLSession sslSession, Key masterSecret) {
+        CaptureFilter current = filter;
+        if (!enabled || !admit(current, SUN_JSSE, KeyLogLabel.RSA_SESSION_ID.mask, sslSession)) {
+            return;
+        }
+        long start = startTime();
         try {
-            String connectionDetails = getConnectionDetails(sslSession);
-            String sessionKey = bytesToHex(sslSession.getId());
-            String masterKey = bytesToHex(masterSecret.getEncoded());
-            write(connectionDetails, "RSA Session-ID:" + sessionKey + " Master-Key:" + masterKey);
+            KeyLogEntry entry = KeyLogEntry.get();
+            entry.setSessionDetails(sslSession);
+            if (!admitConnection(current, entry, sslSession)) {
+                return;
+            }
+            entry.setClientRandom(sslSession.getId());
+            entry.addSecret(KeyLogLabel.RSA_SESSION_ID, masterSecret.getEncoded());
+            write(entry, CaptureHook.ON_MASTER_SECRET, start);
         } catch (Exception e) {
+            STATS.failed(CaptureHook.ON_MASTER_SECRET);
             log.log(Level.WARNING, "Error retrieving master secret from " + sslSession, e);
         }
     }
@@ -47,53 +263,72 @@ public class MasterSecretCallback {
     @SuppressWarnings("unused")
     public static void onCalculateKeys(
             SSLSession sslSession, Object randomCookie, Key masterSecret) {
+        CaptureFilter current = filter;
+        if (!enabled || !admit(current, SUN_JSSE, KeyLogLabel.CLIENT_RANDOM.mask, sslSession)) {
+            return;
+        }
+        long start = startTime();
         try {
-            String connectionDetails = getConnectionDetails(sslSession);
-            String clientRandom = bytesToHex((byte[]) get(randomCookie, "random_bytes"));
-            String masterKey = bytesToHex(masterSecret.getEncoded());
-            write(connectionDetails, "CLIENT_RANDOM " + clientRandom + " " + masterKey);
+            KeyLogEntry entry = KeyLogEntry.get();
+            entry.setSessionDetails(sslSession);
+            if (!admitConnection(current, entry, sslSession)) {
+                return;
+            }
+            entry.setClientRandom((byte[]) RANDOM_BYTES_TLS12.get(randomCookie));
+            entry.addSecret(KeyLogLabel.CLIENT_RANDOM, masterSecret.getEncoded());
+            write(entry, CaptureHook.ON_CALCULATE_KEYS, start);
         } catch (Exception e) {
+            STATS.failed(CaptureHook.ON_CALCULATE_KEYS);
             log.log(Level.WARNING, "Error retrieving master secret from " + sslSession, e);
         }
     }
 
-    private static Map<String, String> TLS13_SECRET_NAMES;
+    private static Map<String, KeyLogLabel> TLS13_SECRET_NAMES;
 
     static {
-        Map<String, String> secrets = new HashMap<String, String>();
+        Map<String, KeyLogLabel> secrets = new HashMap<String, KeyLogLabel>();
 
         // TLS 1.1
-        secrets.put("TlsMasterSecret", "CLIENT_RANDOM");
+        secrets.put("TlsMasterSecret", KeyLogLabel.CLIENT_RANDOM);
 
         // TLS 1.3
         // Early data is not supported in Java
         // https://bugs.openjdk.org/browse/JDK-8209392
-        secrets.put("TlsClientEarlyTrafficSecret", "CLIENT_EARLY_TRAFFIC_SECRET");
-        secrets.put("TlsEarlyExporterMasterSecret", "EARLY_EXPORTER_SECRET");
-        secrets.put("TlsClientHandshakeTrafficSecret", "CLIENT_HANDSHAKE_TRAFFIC_SECRET");
-        secrets.put("TlsServerHandshakeTrafficSecret", "SERVER_HANDSHAKE_TRAFFIC_SECRET");
-        secrets.put("TlsClientAppTrafficSecret", "CLIENT_TRAFFIC_SECRET_0");
-        secrets.put("TlsServerAppTrafficSecret", "SERVER_TRAFFIC_SECRET_0");
-        secrets.put("TlsExporterMasterSecret", "EXPORTER_SECRET");
+        secrets.put("TlsClientEarlyTrafficSecret", KeyLogLabel.CLIENT_EARLY_TRAFFIC_SECRET);
+        secrets.put("TlsEarlyExporterMasterSecret", KeyLogLabel.EARLY_EXPORTER_SECRET);
+        secrets.put("TlsClientHandshakeTrafficSecret", KeyLogLabel.CLIENT_HANDSHAKE_TRAFFIC_SECRET);
+        secrets.put("TlsServerHandshakeTrafficSecret", KeyLogLabel.SERVER_HANDSHAKE_TRAFFIC_SECRET);
+        secrets.put("TlsClientAppTrafficSecret", KeyLogLabel.CLIENT_TRAFFIC_SECRET_0);
+        secrets.put("TlsServerAppTrafficSecret", KeyLogLabel.SERVER_TRAFFIC_SECRET_0);
+        secrets.put("TlsExporterMasterSecret", KeyLogLabel.EXPORTER_SECRET);
 
         TLS13_SECRET_NAMES = Collections.unmodifiableMap(secrets);
     }
 
     @SuppressWarnings("unused")
     public static void onKeyDerivation(Object context, SecretKey key) {
-        String secretName = TLS13_SECRET_NAMES.get(key.getAlgorithm());
-        if (secretName == null) {
+        if (!enabled) {
             return;
         }
+        KeyLogLabel label = TLS13_SECRET_NAMES.get(key.getAlgorithm());
+        CaptureFilter current = filter;
+        // Derivations of other keys, like the key updates, don't count as handshakes
+        if (label == null || !admit(current, SUN_JSSE, label.mask, context)) {
+            return;
+        }
+        long start = startTime();
         try {
-            SSLSession sslSession = (SSLSession) get(context, "handshakeSession");
-            String connectionDetails = getConnectionDetails(sslSession);
-            Object clientRandom = get(context, "clientHelloRandom");
-            String clientRandomBytes = bytesToHex((byte[]) get(clientRandom, "randomBytes"));
-            write(
-                    connectionDetails,
-                    secretName + " " + clientRandomBytes + " " + bytesToHex(key.getEncoded()));
+            KeyLogEntry entry = KeyLogEntry.get();
+            entry.setSessionDetails((SSLSession) HANDSHAKE_SESSION.get(context));
+            if (!admitConnection(current, entry, context)) {
+                return;
+            }
+            Object clientRandom = CLIENT_HELLO_RANDOM.get(context);
+            entry.setClientRandom((byte[]) RANDOM_BYTES.get(clientRandom));
+            entry.addSecret(label, key.getEncoded());
+            write(entry, CaptureHook.ON_KEY_DERIVATION, start);
         } catch (Exception e) {
+            STATS.failed(CaptureHook.ON_KEY_DERIVATION);
             log.log(Level.WARNING, "Error retrieving client random secret from " + context, e);
         }
     }
@@ -107,184 +342,266 @@ public class MasterSecretCallback {
     // "securityParametersHandshake".
     private static Object getBcSecurityParams(Object tlsContext)
             throws IllegalAccessException, NoSuchFieldException {
-        try {
-            return get(tlsContext, "securityParametersHandshake");
-        } catch (NoSuchFieldException e) {
-            return get(tlsContext, "securityParameters");
+        if (SECURITY_PARAMETERS_HANDSHAKE.isPresent(tlsContext)) {
+            return SECURITY_PARAMETERS_HANDSHAKE.get(tlsContext);
         }
+        return SECURITY_PARAMETERS.get(tlsContext);
     }
 
     @SuppressWarnings("unused")
     public static void onBcMasterSecret(Object tlsContext) {
+        CaptureFilter current = filter;
+        if (!enabled || !admit(current, BC_JSSE, KeyLogLabel.CLIENT_RANDOM.mask, tlsContext)) {
+            return;
+        }
+        long start = startTime();
         try {
             Object secParams = getBcSecurityParams(tlsContext);
-            String clientRandom = bytesToHex((byte[]) get(secParams, "clientRandom"));
-            Object masterSecret = get(secParams, "masterSecret");
-            String masterKey = bytesToHex((byte[]) get(masterSecret, "data"));
-            write(
-                    getBcConnectionDetails(secParams),
-                    "CLIENT_RANDOM " + clientRandom + " " + masterKey);
+            KeyLogEntry entry = bcEntry(secParams);
+            if (!admitConnection(current, entry, tlsContext)) {
+                return;
+            }
+            entry.addSecret(KeyLogLabel.CLIENT_RANDOM, bcSecret(MASTER_SECRET, secParams));
+            write(entry, CaptureHook.ON_BC_MASTER_SECRET, start);
         } catch (Exception e) {
+            STATS.failed(CaptureHook.ON_BC_MASTER_SECRET);
             log.log(Level.WARNING, "Error retrieving BCJSSE TLS 1.0-1.2 master secret", e);
         }
     }
 
     @SuppressWarnings("unused")
     public static void onBcTls13HandshakeSecrets(Object tlsContext) {
+        CaptureFilter current = filter;
+        if (!enabled || !admit(current, BC_JSSE, BC_HANDSHAKE_LABELS, tlsContext)) {
+            return;
+        }
+        long start = startTime();
         try {
             Object secParams = getBcSecurityParams(tlsContext);
-            String clientRandom = bytesToHex((byte[]) get(secParams, "clientRandom"));
-            Object trafficSecretClient = get(secParams, "trafficSecretClient");
-            Object trafficSecretServer = get(secParams, "trafficSecretServer");
-            String clientHandshakeTrafficSecret =
-                    bytesToHex((byte[]) get(trafficSecretClient, "data"));
-            String serverHandshakeTrafficSecret =
-                    bytesToHex((byte[]) get(trafficSecretServer, "data"));
-            write(
-                    getBcConnectionDetails(secParams),
-                    "CLIENT_HANDSHAKE_TRAFFIC_SECRET "
-                            + clientRandom
-                            + " "
-                            + clientHandshakeTrafficSecret,
-                    "SERVER_HANDSHAKE_TRAFFIC_SECRET "
-                            + clientRandom
-                            + " "
-                            + serverHandshakeTrafficSecret);
+            KeyLogEntry entry = bcEntry(secParams);
+            if (!admitConnection(current, entry, tlsContext)) {
+                return;
+            }
+            addBcSecret(
+                    current,
+                    entry,
+                    KeyLogLabel.CLIENT_HANDSHAKE_TRAFFIC_SECRET,
+                    TRAFFIC_SECRET_CLIENT,
+                    secParams);
+            addBcSecret(
+                    current,
+                    entry,
+                    KeyLogLabel.SERVER_HANDSHAKE_TRAFFIC_SECRET,
+                    TRAFFIC_SECRET_SERVER,
+                    secParams);
+            write(entry, CaptureHook.ON_BC_TLS13_HANDSHAKE_SECRETS, start);
         } catch (Exception e) {
+            STATS.failed(CaptureHook.ON_BC_TLS13_HANDSHAKE_SECRETS);
             log.log(Level.WARNING, "Error retrieving BCJSSE TLS 1.3 handshake secrets", e);
         }
     }
 
     @SuppressWarnings("unused")
     public static void onBcTls13ApplicationSecrets(Object tlsContext) {
+        CaptureFilter current = filter;
+        if (!enabled || !admit(current, BC_JSSE, BC_APPLICATION_LABELS, tlsContext)) {
+            return;
+        }
+        long start = startTime();
         try {
             Object secParams = getBcSecurityParams(tlsContext);
-            String clientRandom = bytesToHex((byte[]) get(secParams, "clientRandom"));
-            Object trafficSecretClient = get(secParams, "trafficSecretClient");
-            Object trafficSecretServer = get(secParams, "trafficSecretServer");
-            Object exporterMasterSecret = get(secParams, "exporterMasterSecret");
-            String clientAppTrafficSecret = bytesToHex((byte[]) get(trafficSecretClient, "data"));
-            String serverAppTrafficSecret = bytesToHex((byte[]) get(trafficSecretServer, "data"));
-            String exporterSecret = bytesToHex((byte[]) get(exporterMasterSecret, "data"));
-            write(
-                    getBcConnectionDetails(secParams),
-                    "CLIENT_TRAFFIC_SECRET_0 " + clientRandom + " " + clientAppTrafficSecret,
-                    "SERVER_TRAFFIC_SECRET_0 " + clientRandom + " " + serverAppTrafficSecret,
-                    "EXPORTER_SECRET " + clientRandom + " " + exporterSecret);
+            KeyLogEntry entry = bcEntry(secParams);
+            if (!admitConnection(current, entry, tlsContext)) {
+                return;
+            }
+            addBcSecret(
+                    current,
+                    entry,
+                    KeyLogLabel.CLIENT_TRAFFIC_SECRET_0,
+                    TRAFFIC_SECRET_CLIENT,
+                    secParams);
+            addBcSecret(
+                    current,
+                    entry,
+                    KeyLogLabel.SERVER_TRAFFIC_SECRET_0,
+                    TRAFFIC_SECRET_SERVER,
+                    secParams);
+            addBcSecret(
+                    current, entry, KeyLogLabel.EXPORTER_SECRET, EXPORTER_MASTER_SECRET, secParams);
+            write(entry, CaptureHook.ON_BC_TLS13_APPLICATION_SECRETS, start);
         } catch (Exception e) {
+            STATS.failed(CaptureHook.ON_BC_TLS13_APPLICATION_SECRETS);
             log.log(Level.WARNING, "Error retrieving BCJSSE TLS 1.3 application secrets", e);
         }
     }
 
+    private static KeyLogEntry bcEntry(Object secParams)
+            throws IllegalAccessException, NoSuchFieldException {
+        // negotiatedVersion was added in BC 1.61; pre-1.61 supported TLS 1.0-1.2 but
+        // did not record the negotiated version, so we cannot determine it after the
+        // fact.
+        String protocol = "unknown";
+        if (NEGOTIATED_VERSION.isPresent(secParams)) {
+            Object negotiatedVersion = NEGOTIATED_VERSION.get(secParams);
+            if (negotiatedVersion != null) {
+                protocol = negotiatedVersion.toString();
+            }
+        }
+        KeyLogEntry entry = KeyLogEntry.get();
+        entry.setBcDetails(((Integer) CIPHER_SUITE.get(secParams)).intValue(), protocol);
+        entry.setClientRandom((byte[]) CLIENT_RANDOM.get(secParams));
+        return entry;
+    }
+
+    private static void addBcSecret(
+            CaptureFilter current,
+            KeyLogEntry entry,
+            KeyLogLabel label,
+            FieldAccessor secret,
+            Object secParams)
+            throws IllegalAccessException, NoSuchFieldException {
+        if (current.emits(label)) {
+            entry.addSecret(label, bcSecret(secret, secParams));
+        }
+    }
+
+    // The secrets are TlsSecret instances, holding the raw bytes in "data"
+    private static byte[] bcSecret(FieldAccessor secret, Object secParams)
+            throws IllegalAccessException, NoSuchFieldException {
+        return (byte[]) DATA.get(secret.get(secParams));
+    }
+
     // IBM Java 8 JSSE2 uses obfuscated internal classes; the stable hook is the
     // TlsKeyMaterialGenerator. It holds a TlsKeyMaterialParameterSpec field that
     // exposes getClientRandom() and getMasterSecret(). The field name is
     // obfuscated and differs across provider implementations, so we scan
     // declared fields by type rather than hardcoding a name.
+    private static final ClassCache<Field> IBM_SPEC_FIELD =
+            new ClassCache<Field>() {
+                @Override
+                protected Field compute(Class<?> type) {
+                    for (Field f : type.getDeclaredFields()) {
+                        if (f.getType().getName().endsWith("TlsKeyMaterialParameterSpec")) {
+                            f.setAccessible(true);
+                            return f;
+                        }
+                    }
+                    return null;
+                }
+            };
+
+    // {getClientRandom, getMasterSecret}
+    private static final ClassCache<Method[]> IBM_SPEC_METHODS =
+            new ClassCache<Method[]>() {
+                @Override
+                protected Method[] compute(Class<?> type) {
+                    try {
+                        return new Method[] {
+                            type.getMethod("getClientRandom"), type.getMethod("getMasterSecret")
+                        };
+                    } catch (NoSuchMethodException e) {
+                        log.log(Level.WARNING, "Unsupported IBM JSSE2 key material " + type, e);
+                        return null;
+                    }
+                }
+            };
+
     @SuppressWarnings("unused")
     public static void onIbmKeyMaterial(Object generator) {
+        CaptureFilter current = filter;
+        if (!enabled || !admit(current, IBM_JSSE2, KeyLogLabel.CLIENT_RANDOM.mask, generator)) {
+            return;
+        }
+        long start = startTime();
         try {
-            Object spec = null;
-            for (java.lang.reflect.Field f : generator.getClass().getDeclaredFields()) {
-                if (f.getType().getName().endsWith("TlsKeyMaterialParameterSpec")) {
-                    f.setAccessible(true);
-                    spec = f.get(generator);
-                    break;
-                }
+            // No connection details, only matches without connection filters
+            KeyLogEntry entry = KeyLogEntry.get();
+            if (!admitConnection(current, entry, generator)) {
+                return;
             }
+            Field specField = IBM_SPEC_FIELD.lookup(generator.getClass());
+            Object spec = specField != null ? specField.get(generator) : null;
             if (spec == null) {
                 return;
             }
-            Method getClientRandom = spec.getClass().getMethod("getClientRandom");
-            Method getMasterSecret = spec.getClass().getMethod("getMasterSecret");
-            byte[] clientRandom = (byte[]) getClientRandom.invoke(spec);
-            Key masterSecret = (Key) getMasterSecret.invoke(spec);
-            String clientRandomHex = bytesToHex(clientRandom);
-            String masterKeyHex = bytesToHex(masterSecret.getEncoded());
-            write("CLIENT_RANDOM " + clientRandomHex + " " + masterKeyHex);
+            Method[] specMethods = IBM_SPEC_METHODS.lookup(spec.getClass());
+            if (specMethods == null) {
+                return;
+            }
+            Key masterSecret = (Key) specMethods[1].invoke(spec);
+            entry.setClientRandom((byte[]) specMethods[0].invoke(spec));
+            entry.addSecret(KeyLogLabel.CLIENT_RANDOM, masterSecret.getEncoded());
+            write(entry, CaptureHook.ON_IBM_KEY_MATERIAL, start);
         } catch (Exception e) {
+            STATS.failed(CaptureHook.ON_IBM_KEY_MATERIAL);
             log.log(Level.WARNING, "Error retrieving IBM JSSE2 master secret.", e);
         }
     }
 
-    private static String getConnectionDetails(SSLSession sslSession) {
-        String dateNow;
-        synchronized (DATE_FMT) {
-            dateNow = DATE_FMT.format(new Date());
-        }
-
-        String peerHost = sslSession.getPeerHost();
-        int portHost = sslSession.getPeerPort();
-        String protocol = sslSession.getProtocol();
-        String cipherSuite = sslSession.getCipherSuite();
-        String peerHostSection = "";
-        if (peerHost != null) {
-            peerHostSection = "Peer: " + peerHost + ":" + portHost + ", ";
-        }
-        return "# "
-                + dateNow
-                + " "
-                + peerHostSection
-                + "CipherSuite: "
-                + cipherSuite
-                + ", Protocol: "
-                + protocol;
-    }
-
-    private static String getBcConnectionDetails(Object secParams)
-            throws IllegalAccessException, NoSuchFieldException {
-        String dateNow;
-        synchronized (DATE_FMT) {
-            dateNow = DATE_FMT.format(new Date());
+    /**
+     * The checks done before touching the handshake: the provider and labels, then the sampling
+     * decision, unless it has to wait for the connection filters, see {@link #admitConnection}.
+     */
+    private static boolean admit(
+            CaptureFilter current, int provider, int labels, Object handshake) {
+        if (!current.matches(provider, labels)) {
+            STATS.filtered();
+            return false;
         }
-        // negotiatedVersion was added in BC 1.61; pre-1.61 supported TLS 1.0-1.2 but
-        // did not record the negotiated version, so we cannot determine it after the
-        // fact.
-        String protocol;
-        try {
-            Object negotiatedVersion = get(secParams, "negotiatedVersion");
-            protocol = negotiatedVersion != null ? negotiatedVersion.toString() : "unknown";
-        } catch (NoSuchFieldException e) {
-            protocol = "unknown";
-        }
-        int cipherSuiteCode = ((Integer) get(secParams, "cipherSuite")).intValue();
-        String cipherSuite = String.format("0x%04X", cipherSuiteCode);
-        return "# " + dateNow + " BCJSSE CipherSuite: " + cipherSuite + ", Protocol: " + protocol;
+        return current.checksConnection() || GATE.capture(handshake);
     }
 
-    private static synchronized void write(String... secrets) throws IOException {
-        Writer out = new FileWriter(secretsFileName, true);
-        for (String secret : secrets) {
-            out.write(secret);
-            out.write(NL);
+    /**
+     * The connection filters and the sampling decision, once the details are in the entry. Only
+     * matching handshakes count towards the sample and rate limit.
+     */
+    private static boolean admitConnection(
+            CaptureFilter current, KeyLogEntry entry, Object handshake) {
+        if (!current.checksConnection()) {
+            return true;
         }
-        out.close();
+        if (!current.matchesConnection(entry)) {
+            STATS.filtered();
+        } else if (GATE.capture(handshake)) {
+            return true;
+        }
+        entry.clear();
+        return false;
     }
 
-    private static final char[] hexArray = "0123456789ABCDEF".toCharArray();
-
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-        return new String(hexChars);
+    // When the callback started as per System.nanoTime(), 0 when not timed
+    private static long startTime() {
+        return timed ? System.nanoTime() : 0;
     }
 
-    private static Object get(Object newObj, String field)
-            throws IllegalAccessException, NoSuchFieldException {
-        Class<?> type = newObj.getClass();
-        while (type != null) {
-            try {
-                Field f = type.getDeclaredField(field);
-                f.setAccessible(true);
-                return f.get(newObj);
-            } catch (NoSuchFieldException e) {
-                type = type.getSuperclass();
+    /** Writes the entry of the hook, called at {@code start} as per {@link #startTime()}. */
+    static void write(KeyLogEntry entry, CaptureHook hook, long start) throws IOException {
+        try {
+            SecretsWriter current = writer;
+            if (current == null) {
+                // Disabled since the callback started
+                return;
+            }
+            STATS.captured(hook);
+            final long extracted = start != 0 ? System.nanoTime() : 0;
+            SecretsDedupe currentDedupe = dedupe;
+            if (currentDedupe != null && entry.removeDuplicates(currentDedupe) == 0) {
+                return;
+            }
+            if (binary) {
+                entry.encodeBinary(comments);
+            } else {
+                entry.encode(comments);
+            }
+            long formatted = System.nanoTime();
+            current.write(entry.buffer(), 0, entry.length());
+            long written = System.nanoTime();
+            STATS.written(entry.secretCount(), entry.length(), written - formatted);
+            if (start != 0) {
+                STATS.timed(hook, start, extracted, formatted, written);
             }
+        } finally {
+            entry.clear();
         }
-        throw new NoSuchFieldException(field);
     }
 }
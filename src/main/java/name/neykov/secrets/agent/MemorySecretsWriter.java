@@ -0,0 +1,169 @@
+package name.neykov.secrets.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent groups of lines in memory instead of writing them anywhere, optionally only
+ * the ones logged in the last few minutes, until the {@code dump} command asks for them. Logging a
+ * secret costs a copy into a preallocated slot, without any I/O.
+ *
+ * <p>Writers take the next sequence number and copy the lines into the slot it maps to, locking
+ * only that slot, so they contend just when the ring goes around while one of them is still
+ * copying. A slot remembers the sequence number of its lines, which the dump checks to skip the
+ * slots overwritten since it started.
+ *
+ * <p>The groups are also indexed by the client random of their lines, for {@link #lookup}. A
+ * handshake logs several groups, each slot links to the previous group of the same client random by
+ * its sequence number, and the index points to the latest one.
+ */
+public class MemorySecretsWriter implements SecretsWriter {
+    private static final int INITIAL_SLOT_SIZE = 256;
+
+    private final Slot[] slots;
+    private final long maxAgeMillis;
+    private final AtomicLong next = new AtomicLong();
+    private final ClientRandomIndex index;
+
+    private static final class Slot {
+        byte[] lines = new byte[INITIAL_SLOT_SIZE];
+        int length;
+        long sequence = -1;
+        long time;
+        // The sequence of the previous group with the same client random, -1 for none
+        long previous = -1;
+    }
+
+    /** Keeps the latest {@code capacity} groups, dropping the ones older than maxAgeMillis. */
+    public MemorySecretsWriter(int capacity, long maxAgeMillis) {
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.maxAgeMillis = maxAgeMillis;
+        this.index = new ClientRandomIndex(capacity);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        long sequence = next.getAndIncrement();
+        long previous = -1;
+        int at = clientRandomAt(buffer, offset, offset + length);
+        if (at >= 0) {
+            previous =
+                    index.put(
+                            ClientRandomIndex.hexLong(buffer, at, 0),
+                            ClientRandomIndex.hexLong(buffer, at, 1),
+                            ClientRandomIndex.hexLong(buffer, at, 2),
+                            ClientRandomIndex.hexLong(buffer, at, 3),
+                            sequence);
+        }
+        Slot slot = slots[(int) (sequence % slots.length)];
+        synchronized (slot) {
+            if (slot.sequence > sequence) {
+                // Lapped while waiting for the slot, the newer lines win
+                return;
+            }
+            if (slot.lines.length < length) {
+                slot.lines = new byte[Math.max(length, slot.lines.length * 2)];
+            }
+            System.arraycopy(buffer, offset, slot.lines, 0, length);
+            slot.length = length;
+            slot.sequence = sequence;
+            slot.previous = previous;
+            slot.time = maxAgeMillis > 0 ? System.currentTimeMillis() : 0;
+        }
+    }
+
+    /** Writes out the kept lines, oldest first, returning the number of groups written. */
+    public int dump(OutputStream out) throws IOException {
+        long end = next.get();
+        long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : 0;
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        int count = 0;
+        for (long sequence = Math.max(0, end - slots.length); sequence < end; sequence++) {
+            Slot slot = slots[(int) (sequence % slots.length)];
+            synchronized (slot) {
+                if (slot.sequence == sequence && slot.time >= cutoff) {
+                    kept.write(slot.lines, 0, slot.length);
+                    count++;
+                }
+            }
+        }
+        // Outside of the slot locks, the output can be slow
+        kept.writeTo(out);
+        return count;
+    }
+
+    /**
+     * Writes out the kept lines of the client random, given in hex, oldest first. Returns the
+     * number of groups written, 0 if none are kept or the client random isn't valid.
+     */
+    public int lookup(String clientRandom, OutputStream out) throws IOException {
+        byte[] hex = clientRandom.getBytes("US-ASCII");
+        if (hex.length != 64 || !ClientRandomIndex.isHex(hex, 0, hex.length)) {
+            return 0;
+        }
+        long sequence =
+                index.get(
+                        ClientRandomIndex.hexLong(hex, 0, 0),
+                        ClientRandomIndex.hexLong(hex, 0, 1),
+                        ClientRandomIndex.hexLong(hex, 0, 2),
+                        ClientRandomIndex.hexLong(hex, 0, 3));
+        long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : 0;
+        List<byte[]> groups = new ArrayList<byte[]>();
+        // Follow the links while the slots still hold the groups, newest first
+        while (sequence >= 0 && sequence >= next.get() - slots.length) {
+            Slot slot = slots[(int) (sequence % slots.length)];
+            synchronized (slot) {
+                if (slot.sequence != sequence || slot.time < cutoff) {
+                    break;
+                }
+                byte[] lines = new byte[slot.length];
+                System.arraycopy(slot.lines, 0, lines, 0, slot.length);
+                groups.add(lines);
+                // Racing writers can index out of order, never go forward
+                sequence = slot.previous < sequence ? slot.previous : -1;
+            }
+        }
+        for (int i = groups.size() - 1; i >= 0; i--) {
+            out.write(groups.get(i));
+        }
+        return groups.size();
+    }
+
+    /**
+     * The offset of the client random in the first key log line of the group, the second field of
+     * the NSS key log format, or -1 if the line has none, like the RSA ones.
+     */
+    static int clientRandomAt(byte[] buffer, int offset, int end) {
+        int lineStart = offset;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (buffer[lineStart] != '#') {
+                int space = lineStart;
+                while (space < lineEnd && buffer[space] != ' ') {
+                    space++;
+                }
+                int at = space + 1;
+                if (ClientRandomIndex.isHex(buffer, at, lineEnd)
+                        && (at + 64 == lineEnd || buffer[at + 64] == ' ')) {
+                    return at;
+                }
+                return -1;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() {}
+}
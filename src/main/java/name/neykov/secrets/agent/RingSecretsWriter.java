@@ -0,0 +1,224 @@
+package name.neykov.secrets.agent;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Appends the lines to a fixed size memory mapped ring file, overwriting the oldest ones, so
+ * writing is a few memory stores and the disk usage is bounded. Read it with the {@code tail}
+ * command of the CLI, which maps the same file.
+ *
+ * <p>The file is a {@value #HEADER_SIZE} byte header followed by the ring. The header holds {@link
+ * #MAGIC}, the ring capacity (a power of two) and a hint of the write position for readers. The
+ * ring holds records aligned to {@value #ALIGNMENT} bytes, each a header of the record position + 1
+ * (a long, so the zeroed file holds no records), the payload length and its CRC32 (ints), followed
+ * by the payload. A record never wraps around; the space left at the end of the ring is covered by
+ * a padding record with a negative length instead. Positions are absolute byte offsets that keep
+ * growing, the offset in the ring is the position modulo the capacity.
+ *
+ * <p>Producers reserve their records with a CAS on an in-memory position, so they never wait on
+ * each other, then publish each record by storing its position last. Readers check the position and
+ * CRC after copying a record to detect it being overwritten under them. The write position hint
+ * only moves forward but can lag behind the last records, a writer reopening the ring skips past
+ * the published records after it.
+ */
+public class RingSecretsWriter implements SecretsWriter {
+    private static final Logger log = Logger.getLogger(RingSecretsWriter.class.getName());
+
+    // Keep in sync with cli.RingTail
+    static final long MAGIC = 0x4e53534b52494e47L; // "NSSKRING"
+    static final int HEADER_SIZE = 64;
+    static final int CAPACITY_OFFSET = 8;
+    static final int CURSOR_OFFSET = 16;
+    static final int ALIGNMENT = 16;
+    static final int RECORD_HEADER_SIZE = 16;
+    static final int MIN_CAPACITY = 4096;
+
+    private final String path;
+    private final int capacity;
+    private final MappedByteBuffer ring;
+    private final AtomicLong cursor;
+    // The largest end of a record published, stored as the hint by one producer at a time
+    private final AtomicLong hint;
+    private final AtomicBoolean storingHint = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    // Absolute bulk puts came only in Java 13, so each thread writes through its own view
+    private final ThreadLocal<Scratch> scratch =
+            new ThreadLocal<Scratch>() {
+                @Override
+                protected Scratch initialValue() {
+                    return new Scratch(ring.duplicate());
+                }
+            };
+
+    private static final class Scratch {
+        final ByteBuffer view;
+        final CRC32 crc = new CRC32();
+        // Only updated as a memory barrier, see putRecord(), per thread to keep it uncontended
+        final AtomicLong fence = new AtomicLong();
+
+        Scratch(ByteBuffer view) {
+            this.view = view;
+        }
+    }
+
+    /**
+     * Maps the ring file, creating it if needed. An existing ring of the same size is appended to,
+     * so readers following it keep going across a re-attach.
+     */
+    public RingSecretsWriter(String path, int ringSize) {
+        this.path = path;
+        this.capacity = capacityFor(ringSize);
+        try {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                file.setLength(HEADER_SIZE + capacity);
+                ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            } finally {
+                // The mapping stays valid after closing the file
+                file.close();
+            }
+            long start = ring.getLong(CURSOR_OFFSET);
+            if (ring.getLong(0) != MAGIC || ring.getInt(CAPACITY_OFFSET) != capacity) {
+                start = 0;
+                for (int i = 0; i < capacity; i += 8) {
+                    ring.putLong(HEADER_SIZE + i, 0);
+                }
+                ring.putLong(CURSOR_OFFSET, 0);
+                ring.putInt(CAPACITY_OFFSET, capacity);
+                ring.putLong(0, MAGIC);
+            }
+            start = skipPublished(start);
+            cursor = new AtomicLong(start);
+            hint = new AtomicLong(start);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed mapping the secrets ring " + path, e);
+            throw new IllegalStateException("Failed mapping the secrets ring " + path, e);
+        }
+    }
+
+    /**
+     * Skips the records published from the position on, the hint can lag behind them. Bounded by
+     * the capacity, as the records a lap behind fail the position check anyway.
+     */
+    private long skipPublished(long start) {
+        long pos = start;
+        while (pos - start < capacity) {
+            int at = HEADER_SIZE + (int) (pos & (capacity - 1));
+            if (ring.getLong(at) != pos + 1) {
+                break;
+            }
+            int length = ring.getInt(at + 8);
+            int size = length < 0 ? -length : align(RECORD_HEADER_SIZE + length);
+            if (size <= 0 || size > capacity) {
+                break;
+            }
+            pos += size;
+        }
+        return pos;
+    }
+
+    /** The ring size rounded up to a power of two. */
+    static int capacityFor(int ringSize) {
+        int size = Math.max(ringSize, MIN_CAPACITY);
+        return Integer.bitCount(size) == 1 ? size : Integer.highestOneBit(size) << 1;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        int size = align(RECORD_HEADER_SIZE + length);
+        if (closed || size > capacity / 4) {
+            if (dropped.getAndIncrement() == 0) {
+                log.warning(
+                        "Dropping secrets, the ring is closed or they are larger than a quarter"
+                                + " of ringSize.");
+            }
+            return;
+        }
+        long pos;
+        int padding;
+        while (true) {
+            pos = cursor.get();
+            int ringOffset = (int) (pos & (capacity - 1));
+            padding = ringOffset + size > capacity ? capacity - ringOffset : 0;
+            if (cursor.compareAndSet(pos, pos + padding + size)) {
+                break;
+            }
+        }
+        Scratch current = scratch.get();
+        if (padding > 0) {
+            putRecord(current, pos, -padding, 0, null, 0);
+            pos += padding;
+        }
+        current.crc.reset();
+        current.crc.update(buffer, offset, length);
+        putRecord(current, pos, length, (int) current.crc.getValue(), buffer, offset);
+        advanceHint(pos + size);
+    }
+
+    /**
+     * Moves the hint for the readers forward to the end of the record. The producers store it one
+     * at a time, each the largest end so far, so it never goes back. A producer finding another one
+     * storing it leaves it behind until the next write.
+     */
+    private void advanceHint(long end) {
+        long current = hint.get();
+        while (end > current) {
+            if (hint.compareAndSet(current, end)) {
+                if (!storingHint.get() && storingHint.compareAndSet(false, true)) {
+                    ring.putLong(CURSOR_OFFSET, hint.get());
+                    storingHint.set(false);
+                }
+                return;
+            }
+            current = hint.get();
+        }
+    }
+
+    private void putRecord(
+            Scratch current, long pos, int length, int crc, byte[] payload, int offset) {
+        int at = HEADER_SIZE + (int) (pos & (capacity - 1));
+        ByteBuffer view = current.view;
+        view.putInt(at + 8, length);
+        view.putInt(at + 12, crc);
+        if (payload != null) {
+            view.position(at + RECORD_HEADER_SIZE);
+            view.put(payload, offset, length);
+        }
+        // The volatile store orders the stores above before the publishing one below
+        current.fence.set(pos);
+        view.putLong(at, pos + 1);
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ring.force();
+        if (dropped.get() > 0) {
+            log.info(
+                    "Secrets ring "
+                            + path
+                            + " closed. Dropped "
+                            + dropped.get()
+                            + " secret groups.");
+        }
+    }
+}
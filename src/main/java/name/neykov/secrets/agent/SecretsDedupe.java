@@ -0,0 +1,85 @@
+package name.neykov.secrets.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Skips the secrets logged recently already. Both the client and server side of a connection within
+ * the same process log the same secrets, and resumed sessions report the session's master secret
+ * again. The two TLS 1.2 callbacks of older JDKs never match each other, they log the master secret
+ * under different labels and keys: {@code RSA Session-ID:} and {@code CLIENT_RANDOM}.
+ *
+ * <p>Remembers the 64-bit fingerprints of the label, client random (or session ID) and secret of
+ * about {@code capacity} recent secrets, in an 8-way set associative table of primitive longs. Each
+ * set keeps its fingerprints newest first and drops the oldest, an LRU by insertion, under a lock
+ * of its own. Checked before encoding the lines, so a duplicate costs a hash of the secret. Two
+ * different secrets only collide with a chance of about {@code capacity / 2^64}.
+ */
+final class SecretsDedupe {
+    private static final int WAYS = 8;
+
+    private final long[] fingerprints;
+    private final Object[] locks;
+    private final int setMask;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    SecretsDedupe(int capacity) {
+        int sets = Integer.highestOneBit(Math.max(capacity / WAYS - 1, 1)) << 1;
+        this.setMask = sets - 1;
+        this.fingerprints = new long[sets * WAYS];
+        this.locks = new Object[sets];
+        for (int i = 0; i < sets; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /** Whether the secret wasn't seen recently, remembering it if so. */
+    boolean firstSeen(KeyLogLabel label, byte[] clientRandom, byte[] secret) {
+        long fingerprint = fingerprint(label, clientRandom, secret);
+        int set = (int) (fingerprint >>> 40) & setMask;
+        int first = set * WAYS;
+        synchronized (locks[set]) {
+            for (int i = first; i < first + WAYS; i++) {
+                if (fingerprints[i] == fingerprint) {
+                    duplicates.incrementAndGet();
+                    return false;
+                }
+            }
+            System.arraycopy(fingerprints, first, fingerprints, first + 1, WAYS - 1);
+            fingerprints[first] = fingerprint;
+            return true;
+        }
+    }
+
+    // FNV-1a and a final mix, never 0 which marks the empty entries
+    static long fingerprint(KeyLogLabel label, byte[] clientRandom, byte[] secret) {
+        long hash = 0xcbf29ce484222325L ^ label.ordinal();
+        hash = hash(hash, clientRandom);
+        hash = hash(hash, secret);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long hash(long hash, byte[] bytes) {
+        if (bytes == null) {
+            return hash;
+        }
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        // Separates the fields
+        return (hash ^ bytes.length) * 0x100000001b3L;
+    }
+
+    long getDuplicates() {
+        return duplicates.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Skipped " + duplicates.get() + " duplicate secrets.";
+    }
+}
@@ -0,0 +1,210 @@
+package name.neykov.secrets.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Rotates the secrets file by size and age for the file writers. The writers ask {@link #isDue}
+ * before appending a group of lines and call {@link #rotate} with the file closed, while holding
+ * the lock they append under, so a group is never split between segments nor lost in the rename.
+ * The age is only checked when writing, so quiet periods don't leave empty segments behind.
+ *
+ * <p>A rotated segment is renamed to {@code <secrets_file>.<yyyyMMdd-HHmmss.SSS>}, then compressed
+ * to a {@code .gz} file and the oldest segments over the limit deleted by a background thread.
+ */
+public class SecretsRotation {
+    private static final Logger log = Logger.getLogger(SecretsRotation.class.getName());
+    private static final String SEGMENT_FORMAT = "yyyyMMdd-HHmmss.SSS";
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private final File file;
+    private final long maxSize;
+    private final long maxAgeNanos;
+    private final int maxSegments;
+    private final boolean compress;
+    private final ExecutorService housekeeper;
+    private long openedAt = System.nanoTime();
+
+    /**
+     * Rotates {@code secretsFileName} once appending would take it over {@code maxSize} bytes or
+     * it's {@code maxAgeMinutes} old, 0 to not rotate on either. Keeps the latest {@code
+     * maxSegments} rotated segments, 0 for all.
+     */
+    public SecretsRotation(
+            String secretsFileName,
+            long maxSize,
+            int maxAgeMinutes,
+            int maxSegments,
+            boolean compress) {
+        this.file = new File(secretsFileName).getAbsoluteFile();
+        this.maxSize = maxSize;
+        this.maxAgeNanos = TimeUnit.MINUTES.toNanos(maxAgeMinutes);
+        this.maxSegments = maxSegments;
+        this.compress = compress;
+        this.housekeeper =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable task) {
+                                Thread thread = new Thread(task, "extract-tls-secrets-rotation");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+    }
+
+    /** Whether to rotate the file of {@code size} bytes before appending {@code length} more. */
+    public boolean isDue(long size, int length) {
+        if (size == 0) {
+            // A group larger than maxSize still goes in one piece to a fresh segment
+            return false;
+        }
+        return (maxSize > 0 && size + length > maxSize)
+                || (maxAgeNanos > 0 && System.nanoTime() - openedAt >= maxAgeNanos);
+    }
+
+    /**
+     * Renames the closed secrets file to a new segment and leaves the compression and clean up to
+     * the background thread. The caller holds the lock it appends under.
+     */
+    public synchronized void rotate() {
+        openedAt = System.nanoTime();
+        String stamp = new SimpleDateFormat(SEGMENT_FORMAT).format(new Date());
+        File segment = new File(file.getPath() + "." + stamp);
+        for (int i = 1; segment.exists() || compressed(segment).exists(); i++) {
+            segment = new File(file.getPath() + "." + stamp + "-" + i);
+        }
+        if (!file.renameTo(segment)) {
+            // Keep appending to the same file rather than failing the handshake
+            log.warning("Failed rotating " + file + " to " + segment);
+            return;
+        }
+        final File rotated = segment;
+        housekeeper.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (compress) {
+                            compress(rotated);
+                        }
+                        deleteOldSegments();
+                    }
+                });
+    }
+
+    private static File compressed(File segment) {
+        return new File(segment.getPath() + GZIP_SUFFIX);
+    }
+
+    private static void compress(File segment) {
+        File target = compressed(segment);
+        File partial = new File(target.getPath() + ".tmp");
+        try {
+            InputStream in = new FileInputStream(segment);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(partial));
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (!partial.renameTo(target)) {
+                throw new IOException("Failed renaming " + partial + " to " + target);
+            }
+            if (!segment.delete()) {
+                log.warning("Failed deleting " + segment + " after compressing it");
+            }
+        } catch (IOException e) {
+            // The uncompressed segment is kept
+            log.log(Level.WARNING, "Failed compressing " + segment, e);
+            partial.delete();
+        }
+    }
+
+    private void deleteOldSegments() {
+        if (maxSegments <= 0) {
+            return;
+        }
+        List<File> segments = listSegments();
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            File segment = segments.get(i);
+            if (!segment.delete()) {
+                log.warning("Failed deleting the old secrets segment " + segment);
+            }
+        }
+    }
+
+    /** The rotated segments of the secrets file, oldest first. */
+    List<File> listSegments() {
+        File[] files = file.getParentFile().listFiles();
+        List<File> segments = new ArrayList<File>();
+        if (files == null) {
+            return segments;
+        }
+        // The time stamps sort in the order the segments were rotated in
+        Arrays.sort(files);
+        String prefix = file.getName() + ".";
+        for (File candidate : files) {
+            String name = candidate.getName();
+            if (name.startsWith(prefix)
+                    && name.length() >= prefix.length() + SEGMENT_FORMAT.length()
+                    && isSegmentStamp(name, prefix.length())
+                    && !name.endsWith(".tmp")) {
+                segments.add(candidate);
+            }
+        }
+        return segments;
+    }
+
+    private static boolean isSegmentStamp(String name, int offset) {
+        for (int i = 0; i < SEGMENT_FORMAT.length(); i++) {
+            char expected = SEGMENT_FORMAT.charAt(i);
+            char c = name.charAt(offset + i);
+            if (Character.isLetter(expected) ? !Character.isDigit(c) : c != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Waits a little for the background compression to complete. */
+    public void close() {
+        housekeeper.shutdown();
+        try {
+            if (!housekeeper.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.info("Still compressing the rotated secrets of " + file + " in background.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package name.neykov.secrets.agent;
+
+import java.io.IOException;
+
+/** Destination for the key log lines produced by {@link MasterSecretCallback}. */
+public interface SecretsWriter {
+    /**
+     * Appends the encoded lines as a single group. Lines of one call are never interleaved with
+     * lines of another call. The buffer is reused by the caller once the method returns.
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /** Flushes any pending lines and releases the resources held by the writer. */
+    void close();
+}
@@ -0,0 +1,77 @@
+package name.neykov.secrets.agent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters updated from the handshake threads, split in stripes picked by the thread, so threads of
+ * different stripes don't fight over the same cache lines. The reads add up the stripes, they only
+ * happen for JMX, the {@code stats} command and the logs.
+ *
+ * <p>A thread updating several counters gets its {@link #stripe()} once and passes it along.
+ */
+final class StripedCounters {
+    // A power of two, at most 16, spreading the handshake threads of a busy server
+    static final int STRIPES =
+            Math.min(
+                    Integer.highestOneBit(
+                            Math.max(2 * Runtime.getRuntime().availableProcessors() - 1, 1)),
+                    16);
+    // Longs between the stripes, two cache lines as the adjacent line gets prefetched too
+    private static final int PADDING = 16;
+
+    private final int stride;
+    private final AtomicLongArray counters;
+
+    StripedCounters(int size) {
+        this.stride = size + PADDING;
+        this.counters = new AtomicLongArray(PADDING + STRIPES * stride);
+    }
+
+    /** The offset of the stripe of the current thread. */
+    int stripe() {
+        // Fibonacci hashing, the thread ids of a pool are consecutive
+        long id = Thread.currentThread().getId();
+        int index = (int) ((id * 0x9E3779B97F4A7C15L) >>> 60) & (STRIPES - 1);
+        return PADDING + index * stride;
+    }
+
+    void add(int stripe, int index, long delta) {
+        counters.addAndGet(stripe + index, delta);
+    }
+
+    void increment(int stripe, int index) {
+        counters.incrementAndGet(stripe + index);
+    }
+
+    /** Raises the counter of the stripe to {@code value}, read back by {@link #max}. */
+    void raise(int stripe, int index, long value) {
+        int i = stripe + index;
+        long max = counters.get(i);
+        while (value > max && !counters.compareAndSet(i, max, value)) {
+            max = counters.get(i);
+        }
+    }
+
+    long sum(int index) {
+        long sum = 0;
+        for (int i = PADDING + index; i < counters.length(); i += stride) {
+            sum += counters.get(i);
+        }
+        return sum;
+    }
+
+    long max(int index) {
+        long max = 0;
+        for (int i = PADDING + index; i < counters.length(); i += stride) {
+            max = Math.max(max, counters.get(i));
+        }
+        return max;
+    }
+
+    /** Zeroes the counters, racing updates can survive it. */
+    void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+}
@@ -3,14 +3,16 @@ package name.neykov.secrets.agent;
 import java.io.ByteArrayInputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javassist.CannotCompileException;
-import javassist.ClassClassPath;
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtMethod;
@@ -21,6 +23,10 @@ public class Transformer implements ClassFileTransformer {
     private static final AtomicBoolean bcjsseLogged = new AtomicBoolean(false);
     private static final AtomicBoolean ibmjsse2Logged = new AtomicBoolean(false);
 
+    // Shared between attaches, so re-attaching reuses the parsed and instrumented classes
+    private static final ClassPoolCache CLASS_POOLS = new ClassPoolCache();
+    private static final BytecodeCache INSTRUMENTED_CLASSES = new BytecodeCache();
+
     private static void logBcjsseDetected() {
         if (bcjsseLogged.compareAndSet(false, true)) {
             String version = getBcVersion();
@@ -53,30 +59,29 @@ public class Transformer implements ClassFileTransformer {
     }
 
     private abstract static class InjectCallback {
-        private final Set<String> handledClasses;
+        private final String[] handledClasses;
 
         public InjectCallback(String... handledClasses) {
-            this.handledClasses = new HashSet<String>(Arrays.asList(handledClasses));
-        }
-
-        public boolean handles(String className) {
-            return handledClasses.contains(className);
+            this.handledClasses = handledClasses;
         }
 
-        public byte[] transform(String className, byte[] classfileBuffer) {
-            if (handles(className)) {
-                try {
-                    ClassPool pool = new ClassPool();
-                    pool.appendSystemPath();
-                    // Needed for Java 9+
-                    pool.insertClassPath(new ClassClassPath(Transformer.class));
+        public byte[] transform(String className, ClassLoader loader, byte[] classfileBuffer) {
+            try {
+                ClassPool pool = CLASS_POOLS.get(loader);
+                // Javassist pools are not safe for concurrent modification
+                synchronized (pool) {
                     CtClass instrumentedClass =
                             pool.makeClass(new ByteArrayInputStream(classfileBuffer));
-                    instrumentClass(instrumentedClass);
-                    return instrumentedClass.toBytecode();
-                } catch (Throwable e) {
-                    log.log(Level.WARNING, "Failed instrumenting " + className, e);
+                    try {
+                        instrumentClass(instrumentedClass);
+                        return instrumentedClass.toBytecode();
+                    } finally {
+                        // Frozen classes can't be made again, drop it for the next retransform
+                        instrumentedClass.detach();
+                    }
                 }
+            } catch (Throwable e) {
+                log.log(Level.WARNING, "Failed instrumenting " + className, e);
             }
             return classfileBuffer;
         }
@@ -203,6 +208,37 @@ public class Transformer implements ClassFileTransformer {
                 new IbmKeyMaterialInjectCallback()
             };
 
+    // Keyed by the internal (slash separated) class name transform() gets from the JVM, so the
+    // classes that are not instrumented are rejected with a single lookup and no allocation.
+    private static final Map<String, InjectCallback> TARGETS;
+    // The same in binary (dot separated) form, for matching the already loaded classes
+    private static final Set<String> TARGET_NAMES;
+
+    static {
+        Map<String, InjectCallback> targets = new HashMap<String, InjectCallback>();
+        Set<String> targetNames = new HashSet<String>();
+        for (InjectCallback ic : TRANSFORMERS) {
+            for (String className : ic.handledClasses) {
+                targets.put(className.replace('.', '/'), ic);
+                targetNames.add(className);
+            }
+        }
+        TARGETS = Collections.unmodifiableMap(targets);
+        TARGET_NAMES = Collections.unmodifiableSet(targetNames);
+    }
+
+    // The filter of about 1 in 64 classes is timed, picked by the length of the class file so the
+    // rest pay a mask and a branch: no clock reads and no updates of counters shared by the
+    // threads.
+    // The lookup costs about as much as the two clock reads timing it, so their cost, measured
+    // once,
+    // is subtracted from the total.
+    private static final int TIMED_CLASSES_MASK = 63;
+    private static final int CLOCK_READS = 1000;
+    private static final long CLOCK_NANOS = clockNanos();
+    private final AtomicLong timedClasses = new AtomicLong();
+    private final AtomicLong filterNanos = new AtomicLong();
+
     @Override
     public byte[] transform(
             ClassLoader loader,
@@ -210,22 +246,63 @@ public class Transformer implements ClassFileTransformer {
             Class<?> classBeingRedefined,
             ProtectionDomain protectionDomain,
             byte[] classfileBuffer) {
-        String className = classPath.replace("/", ".");
-        // loader should be null (bootloader), so don't use it
-        for (InjectCallback ic : TRANSFORMERS) {
-            if (ic.handles(className)) {
-                return ic.transform(className, classfileBuffer);
+        // classPath is null for hidden and some generated classes; HashMap accepts a null key.
+        InjectCallback ic;
+        if ((classfileBuffer.length & TIMED_CLASSES_MASK) == 0) {
+            long start = System.nanoTime();
+            ic = TARGETS.get(classPath);
+            filterNanos.addAndGet(System.nanoTime() - start);
+            timedClasses.incrementAndGet();
+        } else {
+            ic = TARGETS.get(classPath);
+        }
+        if (ic == null) {
+            return classfileBuffer;
+        }
+        byte[] instrumented = INSTRUMENTED_CLASSES.get(classfileBuffer);
+        if (instrumented == null) {
+            // JSSE classes are in the boot loader (null), BouncyCastle can be anywhere
+            instrumented = ic.transform(classPath.replace('/', '.'), loader, classfileBuffer);
+            if (instrumented != classfileBuffer) {
+                INSTRUMENTED_CLASSES.put(classfileBuffer, instrumented);
             }
         }
-        return classfileBuffer;
+        return instrumented;
     }
 
-    public static boolean needsTransform(String className) {
-        for (InjectCallback ic : TRANSFORMERS) {
-            if (ic.handles(className)) {
-                return true;
-            }
+    /** The number of classes {@link #transform} timed the filter of since attaching, a sample. */
+    public long getTimedClasses() {
+        return timedClasses.get();
+    }
+
+    /**
+     * The time {@link #transform} spent deciding whether to instrument the timed classes, less the
+     * {@link #getClockNanos()} of each.
+     */
+    public long getFilterNanos() {
+        return Math.max(filterNanos.get() - timedClasses.get() * CLOCK_NANOS, 0);
+    }
+
+    /** The time between two consecutive {@code System.nanoTime()} calls, on average. */
+    public long getClockNanos() {
+        return CLOCK_NANOS;
+    }
+
+    private static long clockNanos() {
+        long start = System.nanoTime();
+        long end = start;
+        for (int i = 0; i < CLOCK_READS; i++) {
+            end = System.nanoTime();
         }
-        return false;
+        return (end - start) / CLOCK_READS;
+    }
+
+    /** Forgets the instrumented classes, for benchmarking the instrumentation itself. */
+    static void clearBytecodeCache() {
+        INSTRUMENTED_CLASSES.clear();
+    }
+
+    public static boolean needsTransform(String className) {
+        return TARGET_NAMES.contains(className);
     }
 }
@@ -1,18 +1,52 @@
 package name.neykov.secrets.cli;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import name.neykov.secrets.Java6Compat;
+import name.neykov.secrets.agent.AgentOptions;
+import name.neykov.secrets.agent.BinaryKeyLog;
 
 /** Client application that will load the agent in the target process at runtime. */
 public class AgentAttach {
     // Keep in sync with AgentMain.DEFAULT_SECRETS_FILE
     static final String DEFAULT_SECRETS_FILE = "tls-master-secrets.txt";
+    // Client randoms per lookup request, bounding the work of the agent on each
+    private static final int LOOKUP_BATCH_SIZE = 10000;
+    // AttachHelper loaded with tools.jar, when the attach API isn't on the class path
+    private static Class<?> toolsHelper;
 
     public static void main(String[] args) throws Exception {
+        int status = run(args, new File(System.getProperty("user.dir")));
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs the command, printing to System.out and System.err, and returns the exit status.
+     * Relative paths are resolved against workDir, the client's working directory when run by the
+     * daemon.
+     */
+    static int run(String[] args, File workDir) throws Exception {
         URL jarUrl = AgentAttach.class.getProtectionDomain().getCodeSource().getLocation();
         File jarFile = new File(jarUrl.toURI());
         if (!jarFile.getName().endsWith(".jar")) {
@@ -20,12 +54,58 @@ public class AgentAttach {
                     "The agent is not running from a jar file." + " Attachment will likely fail.");
         }
 
+        File replyFile = null;
+        // Where the agent dumps the secrets to print them from
+        File printedDump = null;
         try {
+            if (args.length > 0 && "client".equals(args[0])) {
+                // The rest is a command for the daemon, parsed by the daemon
+                return AttachDaemon.send(
+                        AttachDaemon.getStateFile(),
+                        Arrays.copyOfRange(args, 1, args.length),
+                        workDir);
+            }
             CliArguments cliArguments = CliArguments.parse(args);
+            if ("tail".equals(cliArguments.action)) {
+                tail(cliArguments.secretsPath, cliArguments.outputPath);
+                return 0;
+            } else if ("convert".equals(cliArguments.action)) {
+                convert(cliArguments, workDir);
+                return 0;
+            } else if ("lookup".equals(cliArguments.action)) {
+                lookup(jarUrl, jarFile, cliArguments.pid, readClientRandoms(cliArguments, workDir));
+                return 0;
+            } else if ("daemon".equals(cliArguments.action)) {
+                AttachDaemon daemon = new AttachDaemon(AttachDaemon.getStateFile());
+                daemon.start();
+                daemon.serve();
+                return 0;
+            }
             String listOrPid = "list".equals(cliArguments.action) ? "list" : cliArguments.pid;
             String attachOptions;
             if ("detach".equals(cliArguments.action)) {
-                attachOptions = "detach";
+                replyFile = createReplyFile();
+                attachOptions = "detach,reply=" + replyFile.getAbsolutePath();
+            } else if ("stats".equals(cliArguments.action)) {
+                replyFile = createReplyFile();
+                attachOptions = "stats,reply=" + replyFile.getAbsolutePath();
+            } else if ("config".equals(cliArguments.action)) {
+                replyFile = createReplyFile();
+                attachOptions = agentArgs("config", cliArguments.agentOptions, replyFile);
+            } else if ("dump".equals(cliArguments.action)) {
+                File dumpFile;
+                if (cliArguments.outputPath.isEmpty()) {
+                    printedDump = createReplyFile();
+                    dumpFile = printedDump;
+                } else {
+                    dumpFile = resolve(workDir, cliArguments.outputPath);
+                }
+                replyFile = createReplyFile();
+                attachOptions =
+                        "dump,"
+                                + dumpFile.getAbsolutePath()
+                                + ",reply="
+                                + replyFile.getAbsolutePath();
             } else if ("list".equals(cliArguments.action)) {
                 attachOptions = "";
             } else {
@@ -33,21 +113,297 @@ public class AgentAttach {
                         cliArguments.secretsPath.isEmpty()
                                 ? DEFAULT_SECRETS_FILE
                                 : cliArguments.secretsPath;
-                File secretsFile = new File(rawPath);
-                if (!secretsFile.isAbsolute()) {
-                    secretsFile = new File(System.getProperty("user.dir"), rawPath);
+                File secretsFile = resolve(workDir, rawPath);
+                if ("watch".equals(cliArguments.action)) {
+                    watch(
+                            jarUrl,
+                            jarFile,
+                            cliArguments.match,
+                            agentArgs(
+                                    secretsFile.getAbsolutePath(),
+                                    cliArguments.agentOptions,
+                                    null));
+                    return 0;
+                }
+                if (cliArguments.isMultiTarget()) {
+                    // A reply file per target, created by the helper
+                    attachAll(
+                            jarUrl,
+                            jarFile,
+                            cliArguments.pid,
+                            cliArguments.match,
+                            agentArgs(
+                                    secretsFile.getAbsolutePath(),
+                                    cliArguments.agentOptions,
+                                    null));
+                    return 0;
                 }
-                attachOptions = secretsFile.getAbsolutePath();
+                replyFile = createReplyFile();
+                attachOptions =
+                        agentArgs(
+                                secretsFile.getAbsolutePath(),
+                                cliArguments.agentOptions,
+                                replyFile);
             }
             handle(jarUrl, jarFile, listOrPid, attachOptions);
+            if (printedDump != null) {
+                // Keep stdout for the secrets
+                printReply(replyFile, System.err);
+                copy(printedDump, System.out);
+            } else if (replyFile != null) {
+                printReply(replyFile, System.out);
+            }
+            return 0;
         } catch (IllegalArgumentException e) {
             help(jarFile, e.getMessage());
-            System.exit(1);
+            return 1;
         } catch (FailureMessageException e) {
             for (String line : e.msg) {
                 System.err.println(line);
             }
-            System.exit(1);
+            if (replyFile != null && replyFile.length() > 0) {
+                // Why the agent failed, like options this version of the agent doesn't know
+                printReply(replyFile, System.err);
+            }
+            return 1;
+        } finally {
+            if (replyFile != null) {
+                replyFile.delete();
+            }
+            if (printedDump != null) {
+                printedDump.delete();
+            }
+        }
+    }
+
+    private static String agentArgs(String first, List<String> agentOptions, File replyFile) {
+        StringBuilder options = new StringBuilder(first);
+        for (String agentOption : agentOptions) {
+            options.append(',').append(agentOption);
+        }
+        if (replyFile != null) {
+            options.append(",reply=").append(replyFile.getAbsolutePath());
+        }
+        // Fail here on a typo, the agent would only report it in the target process log
+        AgentOptions.parse(options.toString());
+        return options.toString();
+    }
+
+    // Doesn't need the attach API, only the ring file
+    private static void tail(String ringPath, String outputPath) throws Exception {
+        RingTail tail;
+        try {
+            tail = new RingTail(new File(ringPath));
+        } catch (IOException e) {
+            throw new FailureMessageException("Can't read " + ringPath + ": " + e.getMessage());
+        }
+        OutputStream out =
+                outputPath.isEmpty()
+                        ? System.out
+                        : new BufferedOutputStream(new FileOutputStream(outputPath, true));
+        try {
+            tail.follow(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Converts the binary key log to NSS key log text, to the console or a new file. Reads the
+     * rotated segments compressed, and stdin given "-".
+     */
+    private static void convert(CliArguments cliArguments, File workDir) throws Exception {
+        String inputPath = cliArguments.secretsPath;
+        BinaryKeyLog log =
+                new BinaryKeyLog(
+                        AgentOptions.parse(
+                                Java6Compat.join(
+                                        ",", cliArguments.agentOptions.toArray(new String[0]))));
+        InputStream in;
+        try {
+            in =
+                    "-".equals(inputPath)
+                            ? System.in
+                            : new FileInputStream(resolve(workDir, inputPath));
+            if (inputPath.endsWith(".gz")) {
+                in = new GZIPInputStream(in);
+            }
+        } catch (IOException e) {
+            throw new FailureMessageException("Can't read " + inputPath + ": " + e.getMessage());
+        }
+        OutputStream out =
+                new BufferedOutputStream(
+                        cliArguments.outputPath.isEmpty()
+                                ? System.out
+                                : new FileOutputStream(resolve(workDir, cliArguments.outputPath)),
+                        64 * 1024);
+        try {
+            log.convert(in, out);
+        } catch (IOException e) {
+            throw new FailureMessageException(
+                    "Failed converting " + inputPath + ": " + e.getMessage() + ".",
+                    "Converted the " + log.getRecords() + " records before it.");
+        } finally {
+            out.flush();
+            if (!cliArguments.outputPath.isEmpty()) {
+                out.close();
+            }
+            if (in != System.in) {
+                in.close();
+            }
+        }
+        // Stdout may be the secrets
+        System.err.println(
+                "Converted "
+                        + log.getWritten()
+                        + " of "
+                        + log.getSecrets()
+                        + " secrets in "
+                        + log.getRecords()
+                        + " records.");
+    }
+
+    private static File resolve(File workDir, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(workDir, path);
+    }
+
+    private static List<String> readClientRandoms(CliArguments cliArguments, File workDir)
+            throws Exception {
+        List<String> clientRandoms = new ArrayList<String>();
+        for (String arg : cliArguments.clientRandoms) {
+            if (!arg.startsWith("@")) {
+                clientRandoms.add(arg);
+                continue;
+            }
+            String path = arg.substring(1);
+            BufferedReader in;
+            try {
+                in =
+                        new BufferedReader(
+                                new InputStreamReader(
+                                        new FileInputStream(resolve(workDir, path)), "UTF-8"));
+            } catch (IOException e) {
+                throw new FailureMessageException("Can't read " + path + ": " + e.getMessage());
+            }
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if (!CliArguments.isClientRandom(line)) {
+                        throw new FailureMessageException(
+                                "Expected a client random of 64 hex digits in "
+                                        + path
+                                        + ": "
+                                        + line);
+                    }
+                    clientRandoms.add(line);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return clientRandoms;
+    }
+
+    /**
+     * Looks up the secrets in batches, each a request file the agent reads the client randoms from,
+     * printing the secrets found to stdout and the outcome to stderr.
+     */
+    private static void lookup(URL jarUrl, File jarFile, String pid, List<String> clientRandoms)
+            throws Exception {
+        File requestFile = null;
+        File outputFile = null;
+        File replyFile = null;
+        try {
+            requestFile = createReplyFile();
+            outputFile = createReplyFile();
+            replyFile = createReplyFile();
+            for (int start = 0; start < clientRandoms.size(); start += LOOKUP_BATCH_SIZE) {
+                List<String> batch =
+                        clientRandoms.subList(
+                                start, Math.min(start + LOOKUP_BATCH_SIZE, clientRandoms.size()));
+                Writer request =
+                        new OutputStreamWriter(new FileOutputStream(requestFile), "US-ASCII");
+                try {
+                    for (String clientRandom : batch) {
+                        request.write(clientRandom);
+                        request.write('\n');
+                    }
+                } finally {
+                    request.close();
+                }
+                handle(
+                        jarUrl,
+                        jarFile,
+                        pid,
+                        "lookup,"
+                                + requestFile.getAbsolutePath()
+                                + ",output="
+                                + outputFile.getAbsolutePath()
+                                + ",reply="
+                                + replyFile.getAbsolutePath());
+                printReply(replyFile, System.err);
+                copy(outputFile, System.out);
+            }
+        } finally {
+            for (File file : new File[] {requestFile, outputFile, replyFile}) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    // The agent reports the outcome of the request, like the attach timings, in this file.
+    private static File createReplyFile() throws IOException {
+        // Deleted by the callers, deleteOnExit() would keep every path in a long running daemon
+        return File.createTempFile("extract-tls-secrets-", ".reply");
+    }
+
+    static String noReply(File replyFile) {
+        return "It may not see "
+                + replyFile.getParent()
+                + " of this process, for example from a container or with systemd's PrivateTmp."
+                + " Its log has the outcome.";
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the reply of the agent. The agent always replies, an empty or missing file means the
+     * target process can't see the file. The agent got loaded all the same, so only warn.
+     */
+    private static void printReply(File replyFile, PrintStream out) throws IOException {
+        if (replyFile.length() == 0) {
+            System.err.println("Warning: the target process didn't reply in " + replyFile + ".");
+            System.err.println(noReply(replyFile));
+            return;
+        }
+        BufferedReader in =
+                new BufferedReader(new InputStreamReader(new FileInputStream(replyFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.println(line);
+            }
+        } finally {
+            in.close();
         }
     }
 
@@ -55,20 +411,75 @@ public class AgentAttach {
         System.err.println(message + ".");
         System.out.println();
         System.out.println(
-                "Usage: java -jar " + jarFile.getName() + " attach <pid> [<secrets_file>]");
+                "Usage: java -jar "
+                        + jarFile.getName()
+                        + " attach <pid>[,<pid>...]|--match <regex> [<secrets_file>]"
+                        + " [--<option>=<value>...]");
+        System.out.println(
+                "       java -jar "
+                        + jarFile.getName()
+                        + " watch --match <regex> [<secrets_file>] [--<option>=<value>...]");
         System.out.println("       java -jar " + jarFile.getName() + " detach <pid>");
+        System.out.println(
+                "       java -jar " + jarFile.getName() + " config <pid> [--<option>=<value>...]");
+        System.out.println(
+                "       java -jar " + jarFile.getName() + " tail <ring_file> [<output_file>]");
+        System.out.println("       java -jar " + jarFile.getName() + " dump <pid> [<output_file>]");
+        System.out.println(
+                "       java -jar "
+                        + jarFile.getName()
+                        + " lookup <pid> <client_random>|@<file>...");
+        System.out.println("       java -jar " + jarFile.getName() + " stats <pid>");
+        System.out.println(
+                "       java -jar "
+                        + jarFile.getName()
+                        + " convert <binary_file>|- [<output_file>] [--<option>=<value>...]");
         System.out.println("       java -jar " + jarFile.getName() + " list");
+        System.out.println("       java -jar " + jarFile.getName() + " daemon");
+        System.out.println("       java -jar " + jarFile.getName() + " client <action> <args>...");
         System.out.println();
         System.out.println("Options:");
         System.out.println("  * attach - start logging secrets for the given process");
+        System.out.println(
+                "  * watch - keep running, attaching to the processes matching the regex"
+                        + " as they start");
         System.out.println("  * detach - stop logging secrets for the given process");
+        System.out.println(
+                "  * config - change the sampling options of an attached agent"
+                        + " and show its counters");
+        System.out.println(
+                "  * tail - follow the ring file of an agent attached with --writer=ring,"
+                        + " printing the secrets as they are logged");
+        System.out.println(
+                "  * dump - print or write out the secrets kept in memory by an agent"
+                        + " attached with --writer=memory");
+        System.out.println(
+                "  * lookup - print the secrets kept in memory for the given client randoms,"
+                        + " in hex, or listed one per line in a file");
+        System.out.println(
+                "  * stats - show the counters of an attached agent,"
+                        + " also exposed as a JMX MBean");
+        System.out.println(
+                "  * convert - turn a binary key log of --format=binary into NSS key log text,"
+                        + " keeping the secrets matching the filter options");
         System.out.println("  * list - shows available Java processes to attach to");
+        System.out.println(
+                "  * daemon - keep running, serving the commands of clients on a loopback"
+                        + " port without the JVM startup");
+        System.out.println("  * client - run the command by the daemon");
         System.out.println("  * pid - the process ID to attach to (required)");
+        System.out.println(
+                "  * regex - attach to all the processes with a name containing a match,"
+                        + " in parallel;");
+        System.out.println(
+                "            a {pid} in the secrets file is replaced by the ID of each process");
         System.out.println("  * secrets_file - file path to log the shared secrets to (optional);");
         System.out.println(
                 "                   if a relative path is used it's resolved against"
                         + " the current working folder;");
         System.out.println("                   default value is '" + DEFAULT_SECRETS_FILE + "'");
+        System.out.println("  * option - agent option, for example --writer=async;");
+        System.out.println("             see README.md for the available options");
     }
 
     private static void handle(URL jarUrl, File jarFile, String listOrPid, String secretsPath)
@@ -76,31 +487,107 @@ public class AgentAttach {
         if (isAttachApiAvailable()) {
             // Either Java 9 or tools.jar already on classpath
             AttachHelper.handle(jarFile.getAbsolutePath(), listOrPid, secretsPath);
+        } else if (!"list".equals(listOrPid) && LinuxAttach.isSupported() && !hasToolsFile()) {
+            // A JRE, there's no attach API to fall back to
+            try {
+                if (!LinuxAttach.loadAgent(listOrPid, jarFile.getAbsolutePath(), secretsPath)) {
+                    throw new FailureMessageException(
+                            "Failed to attach to java process " + listOrPid + ".",
+                            "No HotSpot JVM accepting attach requests with this ID found.");
+                }
+            } catch (IOException e) {
+                throw new FailureMessageException(
+                        "Failed to attach to java process "
+                                + listOrPid
+                                + ". Cause: "
+                                + e.getMessage()
+                                + ".");
+            }
+            printSuccess(listOrPid, secretsPath);
+        } else {
+            invokeHelper(jarUrl, "handle", jarFile.getAbsolutePath(), listOrPid, secretsPath);
+        }
+    }
+
+    // The details follow from the agent's reply
+    static void printSuccess(String pid, String attachOptions) {
+        if (attachOptions.equals("detach") || attachOptions.startsWith("detach,")) {
+            System.out.println("Successfully detached from process ID " + pid + ".");
+        } else if (attachOptions.startsWith("dump,") || attachOptions.startsWith("lookup,")) {
+            // Stdout is for the secrets
+            System.err.println("Successfully queried process ID " + pid + ".");
+        } else if (attachOptions.startsWith("stats,")) {
+            System.out.println("Successfully queried process ID " + pid + ".");
+        } else if (attachOptions.equals("config") || attachOptions.startsWith("config,")) {
+            System.out.println("Successfully configured process ID " + pid + ".");
+        } else {
+            System.out.println("Successfully attached to process ID " + pid + ".");
+        }
+    }
+
+    private static void attachAll(
+            URL jarUrl, File jarFile, String pids, String match, String attachOptions)
+            throws Exception {
+        if (isAttachApiAvailable()) {
+            AttachHelper.attachAll(jarFile.getAbsolutePath(), pids, match, attachOptions);
         } else {
+            invokeHelper(
+                    jarUrl, "attachAll", jarFile.getAbsolutePath(), pids, match, attachOptions);
+        }
+    }
+
+    private static void watch(URL jarUrl, File jarFile, String match, String attachOptions)
+            throws Exception {
+        if (isAttachApiAvailable()) {
+            AttachHelper.watch(jarFile.getAbsolutePath(), match, attachOptions);
+        } else {
+            invokeHelper(jarUrl, "watch", jarFile.getAbsolutePath(), match, attachOptions);
+        }
+    }
+
+    // Calls the static method of AttachHelper taking the given String arguments, with tools.jar
+    private static void invokeHelper(URL jarUrl, String method, String... args) throws Exception {
+        Class<?> helper = getToolsHelper(jarUrl);
+        Thread.currentThread().setContextClassLoader(helper.getClassLoader());
+
+        Class<?>[] types = new Class<?>[args.length];
+        Arrays.fill(types, String.class);
+        Method handleMethod = helper.getMethod(method, types);
+        try {
+            handleMethod.invoke(null, (Object[]) args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            // The cause class is loaded by "classLoader" and therefore a separate instance
+            // failing the equality test. It will not get caught by parent exception blocks.
+            if (cause.getClass().getName().equals(FailureMessageException.class.getName())) {
+                Field msgField = cause.getClass().getDeclaredField("msg");
+                msgField.setAccessible(true);
+                String[] msg = (String[]) msgField.get(cause);
+                throw new FailureMessageException(msg);
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    // Loaded once, the daemon reuses it for all the commands
+    private static synchronized Class<?> getToolsHelper(URL jarUrl) throws Exception {
+        if (toolsHelper == null) {
             File toolsFile = getToolsFile();
             URL toolsUrl = toolsFile.toURI().toURL();
             URL[] cp = new URL[] {jarUrl, toolsUrl};
             URLClassLoader classLoader = new URLClassLoader(cp, null);
-            Thread.currentThread().setContextClassLoader(classLoader);
-            Class<?> helper = classLoader.loadClass("name.neykov.secrets.cli.AttachHelper");
+            toolsHelper = classLoader.loadClass("name.neykov.secrets.cli.AttachHelper");
+        }
+        return toolsHelper;
+    }
 
-            Method handleMethod =
-                    helper.getMethod("handle", String.class, String.class, String.class);
-            try {
-                handleMethod.invoke(null, jarFile.getAbsolutePath(), listOrPid, secretsPath);
-            } catch (InvocationTargetException e) {
-                Throwable cause = e.getCause();
-                // The cause class is loaded by "classLoader" and therefore a separate instance
-                // failing the equality test. It will not get caught by parent exception blocks.
-                if (cause.getClass().getName().equals(FailureMessageException.class.getName())) {
-                    Field msgField = cause.getClass().getDeclaredField("msg");
-                    msgField.setAccessible(true);
-                    String[] msg = (String[]) msgField.get(cause);
-                    throw new FailureMessageException(msg);
-                } else {
-                    throw e;
-                }
-            }
+    private static boolean hasToolsFile() {
+        try {
+            getToolsFile();
+            return true;
+        } catch (FailureMessageException e) {
+            return false;
         }
     }
 
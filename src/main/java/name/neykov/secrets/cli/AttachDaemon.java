@@ -0,0 +1,359 @@
+package name.neykov.secrets.cli;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import name.neykov.secrets.Java6Compat;
+
+/**
+ * Keeps a warmed up CLI running on a loopback socket, so the commands of scripts skip the JVM
+ * startup, the tools.jar class loader and the attach provider initialization. The port and a random
+ * token are written to a state file readable only by the user, the token keeps the other users of
+ * the machine from attaching to the processes as this one.
+ *
+ * <p>The protocol is line based UTF-8 text, simple enough for {@code nc}. The first line is the
+ * token. A {@code cd <dir>} line sets the directory relative paths are resolved against for the
+ * following commands. Any other line is a command with the same arguments as the CLI, separated by
+ * tabs if the line has any, otherwise by spaces. Each line the command prints is sent back prefixed
+ * by {@code out } or {@code err }, followed by {@code exit <status>}. Commands of several
+ * connections run one at a time, each can attach to many processes in parallel.
+ */
+class AttachDaemon {
+    private static final String STATE_FILE = ".extract-tls-secrets-daemon";
+    private static final String OUT = "out ";
+    private static final String ERR = "err ";
+    private static final String EXIT = "exit ";
+    // Long running or only making sense in the client
+    private static final Set<String> UNSUPPORTED =
+            new HashSet<String>(Arrays.asList("daemon", "client", "watch", "tail"));
+    // The commands print to System.out and System.err, redirected for the one running
+    private static final Object COMMAND_LOCK = new Object();
+
+    private final File stateFile;
+    private ServerSocket server;
+    private String token;
+
+    AttachDaemon(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    static File getStateFile() {
+        return new File(System.getProperty("user.home"), STATE_FILE);
+    }
+
+    /** Listens on an ephemeral loopback port and writes it with a new token to the state file. */
+    void start() throws IOException, FailureMessageException {
+        int running = runningPort(stateFile);
+        if (running > 0) {
+            throw new FailureMessageException(
+                    "A daemon is already listening on port " + running + ", see " + stateFile);
+        }
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : secret) {
+            hex.append(Character.forDigit((b >>> 4) & 0x0F, 16))
+                    .append(Character.forDigit(b & 0x0F, 16));
+        }
+        token = hex.toString();
+        writeState();
+        Runtime.getRuntime()
+                .addShutdownHook(
+                        new Thread(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        deleteState();
+                                    }
+                                }));
+        System.err.println(
+                "Listening on 127.0.0.1:" + getPort() + ", the port and token are in " + stateFile);
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    private void writeState() throws IOException {
+        stateFile.delete();
+        if (!stateFile.createNewFile()) {
+            throw new IOException("Failed creating " + stateFile);
+        }
+        // Owner only, before it holds the token
+        stateFile.setReadable(false, false);
+        stateFile.setWritable(false, false);
+        stateFile.setReadable(true, true);
+        stateFile.setWritable(true, true);
+        Writer out = new OutputStreamWriter(new FileOutputStream(stateFile), "UTF-8");
+        try {
+            out.write(getPort() + " " + token + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void deleteState() {
+        try {
+            // Unless replaced by another daemon in the meantime
+            if (stateFile.exists() && token.equals(readState(stateFile)[1])) {
+                stateFile.delete();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static String[] readState(File stateFile) throws IOException {
+        BufferedReader in =
+                new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+        try {
+            String line = in.readLine();
+            String[] state = line != null ? line.trim().split(" ") : new String[0];
+            if (state.length != 2) {
+                throw new IOException("Unexpected content in " + stateFile);
+            }
+            return state;
+        } finally {
+            in.close();
+        }
+    }
+
+    // The port of the daemon of the state file if still listening, 0 for a stale or missing file
+    private static int runningPort(File stateFile) {
+        try {
+            int port = Integer.parseInt(readState(stateFile)[0]);
+            new Socket(InetAddress.getByName("127.0.0.1"), port).close();
+            return port;
+        } catch (IOException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Accepts connections until closed, serving each from a thread of its own. */
+    void serve() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.err.println("Failed accepting a connection: " + e.getMessage());
+                }
+                continue;
+            }
+            Thread connection =
+                    new Thread(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    handle(socket);
+                                }
+                            },
+                            "extract-tls-secrets-connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    void close() throws IOException {
+        server.close();
+        deleteState();
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader in =
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            OutputStream out = socket.getOutputStream();
+            String line = in.readLine();
+            if (line == null
+                    || !MessageDigest.isEqual(
+                            token.getBytes("UTF-8"), line.trim().getBytes("UTF-8"))) {
+                reply(out, ERR + "Invalid token, see " + stateFile + ".");
+                reply(out, EXIT + 1);
+                return;
+            }
+            File workDir = new File(System.getProperty("user.dir"));
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith("cd ")) {
+                    workDir = new File(line.substring(3));
+                    continue;
+                }
+                int status = execute(split(line), workDir, out);
+                reply(out, EXIT + status);
+            }
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static String[] split(String line) {
+        String trimmed = line.trim();
+        return trimmed.indexOf('\t') >= 0 ? trimmed.split("\t") : trimmed.split(" +");
+    }
+
+    private static void reply(OutputStream out, String line) throws IOException {
+        synchronized (out) {
+            out.write((line + "\n").getBytes("UTF-8"));
+            out.flush();
+        }
+    }
+
+    private static int execute(String[] args, File workDir, OutputStream out) throws IOException {
+        if (UNSUPPORTED.contains(args[0])) {
+            reply(out, ERR + "The '" + args[0] + "' action isn't supported by the daemon.");
+            return 1;
+        }
+        if ("convert".equals(args[0]) && Arrays.asList(args).contains("-")) {
+            // Would read the daemon's own stdin, not the client's
+            reply(out, ERR + "The daemon can't convert stdin, pass the binary file instead.");
+            return 1;
+        }
+        synchronized (COMMAND_LOCK) {
+            PrintStream originalOut = System.out;
+            PrintStream originalErr = System.err;
+            LinePrefixStream stdout = new LinePrefixStream(out, OUT);
+            LinePrefixStream stderr = new LinePrefixStream(out, ERR);
+            System.setOut(new PrintStream(stdout, true, "UTF-8"));
+            System.setErr(new PrintStream(stderr, true, "UTF-8"));
+            try {
+                return AgentAttach.run(args, workDir);
+            } catch (Exception e) {
+                System.err.println("Failed running the command: " + e);
+                return 1;
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                System.setOut(originalOut);
+                System.setErr(originalErr);
+                stdout.close();
+                stderr.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the command by the daemon, printing its output. Returns the exit status of the command.
+     */
+    static int send(File stateFile, String[] args, File workDir)
+            throws IOException, FailureMessageException {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("'client' action requires a command to send");
+        }
+        for (String arg : args) {
+            if (arg.indexOf('\t') >= 0 || arg.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("Tabs and new lines can't be sent: " + arg);
+            }
+        }
+        if (!stateFile.exists()) {
+            throw new FailureMessageException(
+                    "No daemon running, start one with the 'daemon' action.");
+        }
+        String[] state = readState(stateFile);
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(state[0]));
+        } catch (ConnectException e) {
+            throw new FailureMessageException(
+                    "No daemon listening on port " + state[0] + ", start one with 'daemon'.");
+        }
+        try {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            out.write(state[1] + "\n");
+            out.write("cd " + workDir.getAbsolutePath() + "\n");
+            out.write(Java6Compat.join("\t", args) + "\n");
+            out.flush();
+            socket.shutdownOutput();
+            BufferedReader in =
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(OUT)) {
+                    System.out.println(line.substring(OUT.length()));
+                } else if (line.startsWith(ERR)) {
+                    System.err.println(line.substring(ERR.length()));
+                } else if (line.startsWith(EXIT)) {
+                    return Integer.parseInt(line.substring(EXIT.length()));
+                }
+            }
+            throw new FailureMessageException("The daemon closed the connection.");
+        } finally {
+            socket.close();
+        }
+    }
+
+    /** Sends each line written as a reply line with the prefix, the incomplete one on close. */
+    static final class LinePrefixStream extends OutputStream {
+        private final OutputStream out;
+        private final String prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LinePrefixStream(OutputStream out, String prefix) {
+            this.out = out;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                sendLine();
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        private void sendLine() throws IOException {
+            synchronized (out) {
+                out.write(prefix.getBytes("UTF-8"));
+                line.writeTo(out);
+                out.write('\n');
+            }
+            line.reset();
+        }
+
+        // Only sends complete lines, PrintStream flushes after every write
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (line.size() > 0) {
+                sendLine();
+            }
+            out.flush();
+        }
+    }
+}
@@ -5,9 +5,28 @@ import com.sun.tools.attach.AgentLoadException;
 import com.sun.tools.attach.AttachNotSupportedException;
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 /**
  * A companion to AgentAttach that needs to be loaded in a different class loader, due to the
@@ -21,26 +40,35 @@ import java.lang.reflect.Field;
  * fallback implementing the attach api.
  */
 public class AttachHelper {
+    // Attaching mostly waits for the targets to respond, so more threads than cores are fine
+    private static final int ATTACH_THREADS = 8;
+    private static final String ROW_FORMAT = "%-8s %-7s %10s  %-30s %s";
+    // How often watch lists the running processes
+    private static final long WATCH_INTERVAL_MS = 1000;
+    // Attempts to attach to a new process before giving up on it
+    private static final int WATCH_ATTEMPTS = 3;
+
+    private static final class AttachResult {
+        final boolean ok;
+        final String row;
+
+        AttachResult(boolean ok, String row) {
+            this.ok = ok;
+            this.row = row;
+        }
+    }
+
     public static void handle(String jarPath, String pid, String attachOptions)
             throws FailureMessageException {
         if (isWindows()) {
             loadAttachLibrary();
         }
         if (pid.equals("list")) {
-            System.out.print(AttachHelper.list());
+            System.out.print(AttachHelper.list(VirtualMachine.list()));
         } else {
             try {
                 AttachHelper.loadagent(pid, jarPath, attachOptions);
-                if ("detach".equals(attachOptions)) {
-                    System.out.println("Successfully detached from process ID " + pid + ".");
-                } else {
-                    System.out.println(
-                            "Successfully attached to process ID "
-                                    + pid
-                                    + ". Logging to "
-                                    + attachOptions
-                                    + ".");
-                }
+                AgentAttach.printSuccess(pid, attachOptions);
             } catch (IllegalStateException e) {
                 String msg =
                         e.getMessage() != null
@@ -51,25 +79,347 @@ public class AttachHelper {
         }
     }
 
+    /**
+     * Attaches to the comma separated process IDs, or all the processes with a display name
+     * matching the regex if given, {@value #ATTACH_THREADS} at a time. Prints a line per process
+     * with the outcome and the time it took. A "{pid}" in the options is replaced by the process ID
+     * of each target, for example to give each its own secrets file.
+     */
+    public static void attachAll(String jarPath, String pids, String match, String attachOptions)
+            throws FailureMessageException {
+        if (isWindows()) {
+            loadAttachLibrary();
+        }
+        // A single snapshot for the matching and the names of the processes
+        List<VirtualMachineDescriptor> vms = VirtualMachine.list();
+        Map<String, String> names = names(vms);
+        List<String> targets = new ArrayList<String>();
+        if (match != null) {
+            Pattern pattern = Pattern.compile(match);
+            String self = selfPid();
+            for (VirtualMachineDescriptor vm : vms) {
+                if (!vm.id().equals(self) && pattern.matcher(vm.displayName()).find()) {
+                    targets.add(vm.id());
+                }
+            }
+            if (targets.isEmpty()) {
+                throw new FailureMessageException(
+                        "No Java process matches '" + match + "'. Running Java processes:",
+                        list(vms));
+            }
+        } else {
+            targets.addAll(Arrays.asList(pids.split(",")));
+        }
+
+        ExecutorService pool =
+                Executors.newFixedThreadPool(Math.min(targets.size(), ATTACH_THREADS));
+        List<Future<AttachResult>> results = new ArrayList<Future<AttachResult>>();
+        for (String target : targets) {
+            results.add(pool.submit(attachTask(jarPath, target, names, attachOptions)));
+        }
+        pool.shutdown();
+
+        System.out.println(
+                String.format(Locale.ROOT, ROW_FORMAT, "PID", "RESULT", "TIME", "NAME", "MESSAGE"));
+        int failed = 0;
+        for (Future<AttachResult> result : results) {
+            AttachResult done = get(result);
+            if (!done.ok) {
+                failed++;
+            }
+            System.out.println(done.row);
+        }
+        if (failed > 0) {
+            throw new FailureMessageException(
+                    "Failed attaching to " + failed + " of " + targets.size() + " processes.");
+        }
+    }
+
+    /**
+     * Runs until interrupted, attaching to the processes with a display name matching the regex
+     * once each, including the ones already running. The new processes are found by listing the
+     * hsperfdata directory the JVMs create a file named by their PID in, a directory read every
+     * {@value #WATCH_INTERVAL_MS} ms, and only looking up the names once a new PID shows up. A new
+     * process is attached to after it's been running for an interval, so it had the time to set up
+     * the attach listener, and retried up to {@value #WATCH_ATTEMPTS} times.
+     */
+    public static void watch(String jarPath, String match, String attachOptions)
+            throws FailureMessageException {
+        if (isWindows()) {
+            loadAttachLibrary();
+        }
+        Pattern pattern = Pattern.compile(match);
+        String self = selfPid();
+        File perfData =
+                new File(
+                        System.getProperty("java.io.tmpdir"),
+                        "hsperfdata_" + System.getProperty("user.name"));
+        // Seen once and not attached to yet, by the failed attempts
+        Map<String, Integer> pending = new HashMap<String, Integer>();
+        // Attached to, not matching or given up on
+        Set<String> done = new HashSet<String>();
+        done.add(self);
+        ExecutorService pool = Executors.newFixedThreadPool(ATTACH_THREADS);
+        System.err.println("Watching for Java processes matching '" + match + "'.");
+        System.out.println(
+                String.format(Locale.ROOT, ROW_FORMAT, "PID", "RESULT", "TIME", "NAME", "MESSAGE"));
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<String> running = runningPids(perfData);
+                // Forget the exited processes, their PIDs can get reused
+                done.retainAll(running);
+                done.add(self);
+                pending.keySet().retainAll(running);
+                List<String> due = new ArrayList<String>();
+                for (String pid : running) {
+                    if (done.contains(pid)) {
+                        continue;
+                    }
+                    if (pending.containsKey(pid)) {
+                        due.add(pid);
+                    } else {
+                        pending.put(pid, 0);
+                    }
+                }
+                if (!due.isEmpty()) {
+                    attachDue(jarPath, pattern, attachOptions, due, pending, done, pool);
+                }
+                Thread.sleep(WATCH_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void attachDue(
+            String jarPath,
+            Pattern pattern,
+            String attachOptions,
+            List<String> due,
+            Map<String, Integer> pending,
+            Set<String> done,
+            ExecutorService pool) {
+        Map<String, String> names = names(VirtualMachine.list());
+        Map<String, Future<AttachResult>> results =
+                new LinkedHashMap<String, Future<AttachResult>>();
+        for (String pid : due) {
+            String name = names.get(pid);
+            if (name == null || name.isEmpty()) {
+                // Still starting, try again on the next rounds, but not forever: each round
+                // lists the processes
+                retry(pid, pending, done);
+                continue;
+            }
+            if (!pattern.matcher(name).find()) {
+                done.add(pid);
+                pending.remove(pid);
+                continue;
+            }
+            results.put(pid, pool.submit(attachTask(jarPath, pid, names, attachOptions)));
+        }
+        for (Map.Entry<String, Future<AttachResult>> result : results.entrySet()) {
+            String pid = result.getKey();
+            AttachResult outcome;
+            try {
+                outcome = get(result.getValue());
+            } catch (RuntimeException e) {
+                // Keep watching the other processes
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                outcome = result(false, pid, System.nanoTime(), names.get(pid), "" + cause);
+            }
+            if (outcome.ok) {
+                System.out.println(outcome.row);
+                done.add(pid);
+                pending.remove(pid);
+            } else if (!retry(pid, pending, done)) {
+                System.out.println(outcome.row);
+            }
+        }
+    }
+
+    // Counts a failed attempt, returns false once the process is given up on
+    private static boolean retry(String pid, Map<String, Integer> pending, Set<String> done) {
+        int attempts = pending.get(pid) + 1;
+        if (attempts >= WATCH_ATTEMPTS) {
+            done.add(pid);
+            pending.remove(pid);
+            return false;
+        }
+        pending.put(pid, attempts);
+        return true;
+    }
+
+    // The PIDs of the JVMs of the current user, from the hsperfdata directory if available
+    private static Set<String> runningPids(File perfData) {
+        Set<String> pids = new HashSet<String>();
+        String[] files = perfData.list();
+        if (files == null) {
+            // Not HotSpot or -XX:-UsePerfData, fall back to the attach providers
+            pids.addAll(names(VirtualMachine.list()).keySet());
+            return pids;
+        }
+        for (String file : files) {
+            if (isNumber(file)) {
+                pids.add(file);
+            }
+        }
+        return pids;
+    }
+
+    private static boolean isNumber(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, String> names(List<VirtualMachineDescriptor> vms) {
+        Map<String, String> names = new HashMap<String, String>();
+        for (VirtualMachineDescriptor vm : vms) {
+            names.put(vm.id(), vm.displayName());
+        }
+        return names;
+    }
+
+    private static String selfPid() {
+        return ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    }
+
+    private static Callable<AttachResult> attachTask(
+            final String jarPath,
+            final String pid,
+            final Map<String, String> names,
+            final String attachOptions) {
+        return new Callable<AttachResult>() {
+            @Override
+            public AttachResult call() throws IOException {
+                long start = System.nanoTime();
+                // Only for display, the listing misses the JVMs in other containers, of other
+                // users and the ones with -XX:-UsePerfData, which can be attached to all the same
+                String name = names.containsKey(pid) ? names.get(pid) : "";
+                File replyFile = File.createTempFile("extract-tls-secrets-", ".reply");
+                try {
+                    String options =
+                            attachOptions.replace("{pid}", pid)
+                                    + ",reply="
+                                    + replyFile.getAbsolutePath();
+                    Exception failure = tryLoadAgent(pid, jarPath, options);
+                    if (failure != null) {
+                        // The agent replies why it failed, if it got to it
+                        String message =
+                                replyFile.length() > 0
+                                        ? readMessages(replyFile)
+                                        : "" + failure.getMessage();
+                        return result(false, pid, start, name, message);
+                    }
+                    if (replyFile.length() == 0) {
+                        // Loaded all the same
+                        return result(
+                                true,
+                                pid,
+                                start,
+                                name,
+                                "No reply. " + AgentAttach.noReply(replyFile));
+                    }
+                    return result(true, pid, start, name, readMessages(replyFile));
+                } finally {
+                    replyFile.delete();
+                }
+            }
+        };
+    }
+
+    private static AttachResult result(
+            boolean ok, String pid, long start, String name, String message) {
+        String time = String.format(Locale.ROOT, "%.1f ms", (System.nanoTime() - start) / 1e6);
+        // The main class or jar, without the arguments
+        String shortName = name.split(" ", 2)[0];
+        return new AttachResult(
+                ok,
+                String.format(
+                        Locale.ROOT,
+                        ROW_FORMAT,
+                        pid,
+                        ok ? "ok" : "failed",
+                        time,
+                        shortName,
+                        message));
+    }
+
+    private static AttachResult get(Future<AttachResult> result) {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed attaching", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while attaching", e);
+        }
+    }
+
+    // The messages of the agent's reply on a single line, without the phases
+    private static String readMessages(File replyFile) throws IOException {
+        BufferedReader in =
+                new BufferedReader(new InputStreamReader(new FileInputStream(replyFile), "UTF-8"));
+        try {
+            StringBuilder messages = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("Phases:")) {
+                messages.append(messages.length() > 0 ? " " : "").append(line);
+            }
+            return messages.toString();
+        } finally {
+            in.close();
+        }
+    }
+
     private static void loadagent(String pid, String jarPath, String options) {
+        Exception failure = tryLoadAgent(pid, jarPath, options);
+        if (failure != null) {
+            throw error(pid, failure);
+        }
+    }
+
+    // Null on success, the failure otherwise
+    private static Exception tryLoadAgent(String pid, String jarPath, String options) {
+        if (LinuxAttach.isSupported()) {
+            try {
+                if (LinuxAttach.loadAgent(pid, jarPath, options)) {
+                    return null;
+                }
+            } catch (IOException e) {
+                return e;
+            }
+        }
         try {
             VirtualMachine vm = VirtualMachine.attach(pid);
-            vm.loadAgent(jarPath, options);
-            vm.detach();
+            try {
+                vm.loadAgent(jarPath, options);
+            } finally {
+                vm.detach();
+            }
+            return null;
         } catch (AgentLoadException e) {
-            throw error(pid, e);
+            return e;
         } catch (AgentInitializationException e) {
-            throw error(pid, e);
+            return e;
         } catch (IOException e) {
-            throw error(pid, e);
+            return e;
         } catch (AttachNotSupportedException e) {
-            throw error(pid, e);
+            return e;
         }
     }
 
-    private static String list() {
+    private static String list(List<VirtualMachineDescriptor> vms) {
         StringBuilder msg = new StringBuilder();
-        for (VirtualMachineDescriptor vm : VirtualMachine.list()) {
+        for (VirtualMachineDescriptor vm : vms) {
             msg.append("  ").append(vm.id()).append(" ").append(vm.displayName()).append("\n");
         }
         return msg.toString();
@@ -78,19 +428,21 @@ public class AttachHelper {
     private static IllegalStateException error(String pid, Exception e) {
         StringBuilder msg =
                 new StringBuilder("Failed to attach to java process ").append(pid).append(".");
-        if (!pidExists(pid)) {
+        // A single snapshot for both the check and the listing
+        List<VirtualMachineDescriptor> vms = VirtualMachine.list();
+        if (!pidExists(vms, pid)) {
             msg.append("\n\nNo Java process with ID ")
                     .append(pid)
                     .append(" found. Running Java processes:\n");
-            msg.append(list());
+            msg.append(list(vms));
         } else {
             msg.append(" Cause: ").append(e.getMessage()).append(".");
         }
         return new IllegalStateException(msg.toString(), e);
     }
 
-    private static boolean pidExists(String pid) {
-        for (VirtualMachineDescriptor vm : VirtualMachine.list()) {
+    private static boolean pidExists(List<VirtualMachineDescriptor> vms, String pid) {
+        for (VirtualMachineDescriptor vm : vms) {
             if (vm.id().equals(pid)) {
                 return true;
             }
@@ -1,16 +1,78 @@
 package name.neykov.secrets.cli;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import name.neykov.secrets.agent.AgentOptions;
+
 class CliArguments {
+    // The agent options that apply to the conversion of a binary key log
+    private static final List<String> CONVERT_OPTIONS =
+            Arrays.asList("label", "peer", "port", "protocol", "cipherSuite", "comments");
+
     final String action;
 
     final String pid;
 
     final String secretsPath;
 
+    // Agent options in "<name>=<value>" form, passed with "--<name>=<value>" on the command line
+    final List<String> agentOptions;
+
+    // Where "tail", "dump" and "convert" write the secrets to, empty for stdout
+    final String outputPath;
+
+    // The client randoms in hex, or "@<file>" listing them, to "lookup"
+    final List<String> clientRandoms;
+
+    // Attach to the processes with a display name matching the regex instead of a PID, or null
+    final String match;
+
     CliArguments(String action, String pid, String secretsPath) {
+        this(action, pid, secretsPath, Collections.<String>emptyList());
+    }
+
+    CliArguments(String action, String pid, String secretsPath, List<String> agentOptions) {
+        this(action, pid, secretsPath, agentOptions, "");
+    }
+
+    CliArguments(
+            String action,
+            String pid,
+            String secretsPath,
+            List<String> agentOptions,
+            String outputPath) {
+        this(action, pid, secretsPath, agentOptions, outputPath, Collections.<String>emptyList());
+    }
+
+    CliArguments(
+            String action,
+            String pid,
+            String secretsPath,
+            List<String> agentOptions,
+            String outputPath,
+            List<String> clientRandoms) {
+        this(action, pid, secretsPath, agentOptions, outputPath, clientRandoms, null);
+    }
+
+    CliArguments(
+            String action,
+            String pid,
+            String secretsPath,
+            List<String> agentOptions,
+            String outputPath,
+            List<String> clientRandoms,
+            String match) {
+        this.match = match;
+        this.clientRandoms = clientRandoms;
         this.action = action;
         this.pid = pid;
         this.secretsPath = secretsPath;
+        this.agentOptions = agentOptions;
+        this.outputPath = outputPath;
     }
 
     static CliArguments parse(String[] args) {
@@ -22,45 +84,206 @@ class CliArguments {
                 throw new IllegalArgumentException("'list' action does not take any arguments");
             }
             return new CliArguments("list", null, "");
+        } else if ("daemon".equals(args[0])) {
+            if (args.length > 1) {
+                throw new IllegalArgumentException("'daemon' action does not take any arguments");
+            }
+            return new CliArguments("daemon", null, "");
         } else if ("detach".equals(args[0])) {
             if (args.length != 2) {
                 throw new IllegalArgumentException(
                         "'detach' action requires exactly one argument: the process ID");
             }
             return new CliArguments("detach", args[1], "");
+        } else if ("stats".equals(args[0])) {
+            if (args.length != 2) {
+                throw new IllegalArgumentException(
+                        "'stats' action requires exactly one argument: the process ID");
+            }
+            return new CliArguments("stats", args[1], "");
         } else if ("attach".equals(args[0])) {
-            if (args.length < 2 || args.length > 3) {
+            if (args.length < 2) {
                 throw new IllegalArgumentException(
                         "'attach' action requires a process ID and an optional secrets file path");
             }
-            return new CliArguments("attach", args[1], args.length == 3 ? args[2] : "");
+            return parseTarget("attach", args, 1);
+        } else if ("watch".equals(args[0])) {
+            CliArguments watch = parseTarget("watch", args, 1);
+            if (watch.match == null) {
+                throw new IllegalArgumentException(
+                        "'watch' action requires '--match <regex>' instead of a process ID");
+            }
+            return watch;
+        } else if ("tail".equals(args[0])) {
+            if (args.length < 2 || args.length > 3) {
+                throw new IllegalArgumentException(
+                        "'tail' action requires a ring file path and an optional output file path");
+            }
+            return new CliArguments(
+                    "tail",
+                    null,
+                    args[1],
+                    Collections.<String>emptyList(),
+                    args.length > 2 ? args[2] : "");
+        } else if ("convert".equals(args[0])) {
+            return parseConvert(args);
+        } else if ("dump".equals(args[0])) {
+            if (args.length < 2 || args.length > 3) {
+                throw new IllegalArgumentException(
+                        "'dump' action requires a process ID and an optional output file path");
+            }
+            return new CliArguments(
+                    "dump",
+                    args[1],
+                    "",
+                    Collections.<String>emptyList(),
+                    args.length > 2 ? args[2] : "");
+        } else if ("lookup".equals(args[0])) {
+            if (args.length < 3) {
+                throw new IllegalArgumentException(
+                        "'lookup' action requires a process ID and the client randoms to look up");
+            }
+            List<String> clientRandoms = new ArrayList<String>();
+            for (int i = 2; i < args.length; i++) {
+                if (!args[i].startsWith("@") && !isClientRandom(args[i])) {
+                    throw new IllegalArgumentException(
+                            "Expected a client random of 64 hex digits or @<file>: " + args[i]);
+                }
+                clientRandoms.add(args[i]);
+            }
+            return new CliArguments(
+                    "lookup", args[1], "", Collections.<String>emptyList(), "", clientRandoms);
+        } else if ("config".equals(args[0])) {
+            if (args.length < 2) {
+                throw new IllegalArgumentException(
+                        "'config' action requires a process ID and the options to change");
+            }
+            CliArguments config = parseTarget("config", args, 1);
+            if (!config.secretsPath.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "'config' action does not take a secrets file: " + config.secretsPath);
+            }
+            if (config.isMultiTarget()) {
+                throw new IllegalArgumentException(
+                        "'config' action takes a single process ID: " + config.pid);
+            }
+            for (String option : config.agentOptions) {
+                if (!AgentOptions.RUNTIME_OPTIONS.contains(
+                        option.substring(0, option.indexOf('=')))) {
+                    throw new IllegalArgumentException(
+                            "'config' action only changes the options "
+                                    + AgentOptions.RUNTIME_OPTIONS
+                                    + ": --"
+                                    + option);
+                }
+            }
+            return config;
         } else {
-            String pid = null;
-            String secretPath = null;
+            return parseTarget("attach", args, 0);
+        }
+    }
 
-            for (String arg : args) {
-                if (arg.startsWith("-")) {
-                    throw new IllegalArgumentException("Unrecognised named parameter " + arg);
-                } else {
-                    if (pid == null) {
-                        pid = arg;
-                    } else if (secretPath == null) {
-                        secretPath = arg;
-                    } else {
-                        throw new IllegalArgumentException(
-                                "Too many positional parameters: " + arg);
-                    }
+    // convert <binary_file> [<output_file>] [--<option>=<value>...]
+    private static CliArguments parseConvert(String[] args) {
+        List<String> positional = new ArrayList<String>();
+        List<String> options = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 3 || !CONVERT_OPTIONS.contains(arg.substring(2, eq))) {
+                    throw new IllegalArgumentException(
+                            "'convert' action only takes the options "
+                                    + CONVERT_OPTIONS
+                                    + ": "
+                                    + arg);
                 }
+                options.add(arg.substring(2));
+            } else {
+                positional.add(arg);
             }
-            if (pid == null) {
-                throw new IllegalArgumentException("The required 'pid' argument is missing");
-            }
-            if (secretPath == null) {
-                secretPath = "";
+        }
+        if (positional.isEmpty() || positional.size() > 2) {
+            throw new IllegalArgumentException(
+                    "'convert' action requires a binary key log path"
+                            + " and an optional output file path");
+        }
+        return new CliArguments(
+                "convert",
+                null,
+                positional.get(0),
+                options,
+                positional.size() > 1 ? positional.get(1) : "");
+    }
+
+    /** Whether attaching to several processes, by --match or a comma separated list of PIDs. */
+    boolean isMultiTarget() {
+        return match != null || (pid != null && pid.indexOf(',') >= 0);
+    }
+
+    static boolean isClientRandom(String value) {
+        if (value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    private static CliArguments parseTarget(String action, String[] args, int start) {
+        String pid = null;
+        String secretPath = null;
+        String match = null;
+        List<String> agentOptions = new ArrayList<String>();
 
-            return new CliArguments("attach", pid, secretPath);
+        for (int i = start; i < args.length; i++) {
+            String arg = args[i];
+            if ("--match".equals(arg)) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(
+                            "'--match' requires a regular expression of the process names");
+                }
+                match = args[++i];
+                try {
+                    Pattern.compile(match);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid '--match' regular expression " + match, e);
+                }
+            } else if (arg.startsWith("-")) {
+                if (!arg.startsWith("--") || arg.indexOf('=') < 3) {
+                    throw new IllegalArgumentException("Unrecognised named parameter " + arg);
+                }
+                agentOptions.add(arg.substring(2));
+            } else {
+                if (pid == null && match == null) {
+                    pid = arg;
+                } else if (secretPath == null) {
+                    secretPath = arg;
+                } else {
+                    throw new IllegalArgumentException("Too many positional parameters: " + arg);
+                }
+            }
+        }
+        if (pid == null && match == null) {
+            throw new IllegalArgumentException("The required 'pid' argument is missing");
         }
+        if (pid != null && match != null) {
+            throw new IllegalArgumentException(
+                    "Either a process ID or '--match' is allowed, not both: " + pid);
+        }
+        if (pid != null && (pid.startsWith(",") || pid.endsWith(",") || pid.contains(",,"))) {
+            throw new IllegalArgumentException("Empty process ID in " + pid);
+        }
+        if (secretPath == null) {
+            secretPath = "";
+        }
+
+        return new CliArguments(
+                action, pid, secretPath, agentOptions, "", Collections.<String>emptyList(), match);
     }
 
     @Override
@@ -80,7 +303,19 @@ class CliArguments {
         if (pid != null ? !pid.equals(that.pid) : that.pid != null) {
             return false;
         }
-        return secretsPath.equals(that.secretsPath);
+        if (!secretsPath.equals(that.secretsPath)) {
+            return false;
+        }
+        if (!agentOptions.equals(that.agentOptions)) {
+            return false;
+        }
+        if (!outputPath.equals(that.outputPath)) {
+            return false;
+        }
+        if (!clientRandoms.equals(that.clientRandoms)) {
+            return false;
+        }
+        return match != null ? match.equals(that.match) : that.match == null;
     }
 
     @Override
@@ -95,6 +330,16 @@ class CliArguments {
                 + ", secretsPath='"
                 + secretsPath
                 + '\''
+                + ", agentOptions="
+                + agentOptions
+                + ", outputPath='"
+                + outputPath
+                + '\''
+                + ", clientRandoms="
+                + clientRandoms
+                + ", match='"
+                + match
+                + '\''
                 + '}';
     }
 }
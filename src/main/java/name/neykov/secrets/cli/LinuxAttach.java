@@ -0,0 +1,329 @@
+package name.neykov.secrets.cli;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Loads the agent into a HotSpot JVM on Linux without the attach API, for JREs without the
+ * jdk.attach module or tools.jar, and without its start up and process listing. Implements the
+ * handshake of the JDK's own Linux attach provider:
+ *
+ * <ol>
+ *   <li>create the {@code .attach_pid<pid>} trigger file in the working directory of the target, or
+ *       its temporary directory
+ *   <li>send it SIGQUIT, which makes the JVM start the attach listener on seeing the trigger file
+ *   <li>connect to the {@code .java_pid<pid>} UNIX socket the listener creates in {@code /tmp}
+ *   <li>send the {@code load} command of protocol version 1 with the {@code instrument} library and
+ *       {@code <jar>=<options>}, and read back the status
+ * </ol>
+ *
+ * <p>Both paths and the PID are the ones seen by the target, which can be in other mount and PID
+ * namespaces, like in a container: the files are reached through {@code /proc/<pid>/root} and
+ * {@code /proc/<pid>/cwd}, and the PID is the innermost one of {@code NSpid}.
+ *
+ * <p>UNIX domain socket channels come with Java 16, they're used through reflection to keep the
+ * class loadable on older Java, where {@link #isSupported} is false and the attach API remains the
+ * only way.
+ */
+final class LinuxAttach {
+    // As sun.tools.attach.attachTimeout
+    private static final long ATTACH_TIMEOUT_MS = 10000;
+    private static final long MAX_POLL_MS = 100;
+    private static final int SIGQUIT = 3;
+    private static final String PROTOCOL_VERSION = "1";
+    private static final String RETURN_CODE = "return code: ";
+
+    private LinuxAttach() {}
+
+    static boolean isSupported() {
+        if (!System.getProperty("os.name").startsWith("Linux")) {
+            return false;
+        }
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads the agent jar with the options into the process. Returns false without touching the
+     * process if it doesn't look like a HotSpot JVM accepting attach requests, leaving it to the
+     * attach API to find out why. Throws an IOException if the handshake or the agent fail.
+     */
+    static boolean loadAgent(String pid, String jarPath, String options) throws IOException {
+        if (!isNumber(pid)) {
+            return false;
+        }
+        File proc = new File("/proc", pid);
+        String nsPid = innermostPid(proc, pid);
+        File tmp = new File(proc, "root/tmp");
+        if (!tmp.isDirectory()) {
+            // No access to the root of the process, assume it's the same as ours
+            tmp = new File("/tmp");
+        }
+        File socket = new File(tmp, ".java_pid" + nsPid);
+        if (!socket.exists()) {
+            // SIGQUIT terminates the processes that don't handle it
+            if (!hasPerfData(tmp, nsPid) || !catchesSigquit(proc)) {
+                return false;
+            }
+            startAttachListener(proc, tmp, pid, nsPid, socket);
+        }
+        String response = execute(socket, "load", "instrument", "false", jarPath + "=" + options);
+        checkResponse(response);
+        return true;
+    }
+
+    private static void startAttachListener(
+            File proc, File tmp, String pid, String nsPid, File socket) throws IOException {
+        // The JVM looks in its working directory first, which might not be writable
+        File trigger = new File(proc, "cwd/.attach_pid" + nsPid);
+        if (!createTrigger(trigger)) {
+            trigger = new File(tmp, ".attach_pid" + nsPid);
+            if (!createTrigger(trigger)) {
+                throw new IOException("Can't create the attach trigger file " + trigger);
+            }
+        }
+        try {
+            sendSigquit(pid);
+            long deadline = System.nanoTime() + ATTACH_TIMEOUT_MS * 1000000L;
+            long poll = 1;
+            while (!socket.exists()) {
+                if (System.nanoTime() > deadline) {
+                    throw new IOException(
+                            "The attach listener didn't start within "
+                                    + ATTACH_TIMEOUT_MS
+                                    + " ms, is the process started with"
+                                    + " -XX:+DisableAttachMechanism?");
+                }
+                sleep(poll);
+                poll = Math.min(poll * 2, MAX_POLL_MS);
+            }
+        } finally {
+            trigger.delete();
+        }
+    }
+
+    private static boolean createTrigger(File trigger) {
+        try {
+            // An existing one works as well
+            return trigger.createNewFile() || trigger.exists();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void sendSigquit(String pid) throws IOException {
+        // No API for signals, the kill of the shell is there even in the slim images
+        Process kill =
+                new ProcessBuilder("sh", "-c", "kill -" + SIGQUIT + " " + pid)
+                        .redirectErrorStream(true)
+                        .start();
+        try {
+            String output = read(kill.getInputStream()).trim();
+            if (kill.waitFor() != 0) {
+                throw new IOException("Failed sending SIGQUIT to " + pid + ": " + output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending SIGQUIT to " + pid);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the attach listener");
+        }
+    }
+
+    // The PID in the innermost PID namespace, the one the JVM names its files by
+    static String innermostPid(File proc, String pid) throws IOException {
+        String nsPid = statusField(proc, "NSpid:");
+        if (nsPid == null) {
+            // Before Linux 4.1, or no such process
+            return pid;
+        }
+        String[] pids = nsPid.trim().split("\\s+");
+        return pids[pids.length - 1];
+    }
+
+    private static boolean catchesSigquit(File proc) throws IOException {
+        String caught = statusField(proc, "SigCgt:");
+        return caught != null && (Long.parseLong(caught.trim(), 16) & (1L << (SIGQUIT - 1))) != 0;
+    }
+
+    // The JVMs, unless started with -XX:-UsePerfData, have a file named by their PID there
+    private static boolean hasPerfData(File tmp, String nsPid) {
+        File[] dirs = tmp.listFiles();
+        if (dirs == null) {
+            return false;
+        }
+        for (File dir : dirs) {
+            if (dir.getName().startsWith("hsperfdata_") && new File(dir, nsPid).isFile()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String statusField(File proc, String name) throws IOException {
+        File status = new File(proc, "status");
+        if (!status.canRead()) {
+            return null;
+        }
+        BufferedReader in =
+                new BufferedReader(new InputStreamReader(new FileInputStream(status), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(name)) {
+                    return line.substring(name.length());
+                }
+            }
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Sends the command and its arguments, each null terminated, and reads the whole response
+    private static String execute(File socket, String... command) throws IOException {
+        SocketChannel channel = connect(socket);
+        try {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            writeString(request, PROTOCOL_VERSION);
+            for (String part : command) {
+                writeString(request, part);
+            }
+            OutputStream out = Channels.newOutputStream(channel);
+            request.writeTo(out);
+            out.flush();
+            return read(Channels.newInputStream(channel));
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) throws IOException {
+        out.write(value.getBytes("UTF-8"));
+        out.write(0);
+    }
+
+    // SocketChannel.open(StandardProtocolFamily.UNIX).connect(UnixDomainSocketAddress.of(path))
+    private static SocketChannel connect(File socket) throws IOException {
+        try {
+            Class<?> familyClass = Class.forName("java.net.ProtocolFamily");
+            Object unix =
+                    Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+            SocketAddress address =
+                    (SocketAddress)
+                            Class.forName("java.net.UnixDomainSocketAddress")
+                                    .getMethod("of", String.class)
+                                    .invoke(null, socket.getPath());
+            SocketChannel channel =
+                    (SocketChannel)
+                            SocketChannel.class.getMethod("open", familyClass).invoke(null, unix);
+            try {
+                channel.connect(address);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Failed opening a UNIX socket", e.getCause());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("UNIX sockets not supported", e);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("UNIX sockets not supported", e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("UNIX sockets not supported", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("UNIX sockets not supported", e);
+        }
+    }
+
+    /**
+     * Checks the response to the load command: the status of the command on the first line, then
+     * the return code of the agent, as {@code return code: <n>} since Java 9 and a plain number
+     * before, or the error.
+     */
+    static void checkResponse(String response) throws IOException {
+        String[] lines = response.split("\n", 3);
+        if (lines[0].isEmpty()) {
+            throw new IOException("Target VM did not respond");
+        }
+        if (!lines[0].equals("0")) {
+            String detail = lines.length > 1 ? response.substring(lines[0].length() + 1) : "";
+            throw new IOException(
+                    "Command failed in target VM with status "
+                            + lines[0]
+                            + (detail.trim().isEmpty() ? "" : ": " + detail.trim()));
+        }
+        String result = lines.length > 1 ? lines[1].trim() : "";
+        if (result.startsWith(RETURN_CODE)) {
+            result = result.substring(RETURN_CODE.length());
+        }
+        boolean negative = result.startsWith("-");
+        if (!isNumber(negative ? result.substring(1) : result)) {
+            throw new IOException(result.isEmpty() ? "Target VM did not respond" : result);
+        }
+        if (!result.equals("0")) {
+            throw new IOException(agentFailure(result));
+        }
+    }
+
+    // The messages of the attach API for the return codes of the instrument library
+    private static String agentFailure(String returnCode) {
+        if ("-4".equals(returnCode)) {
+            return "Insufficient memory";
+        } else if ("100".equals(returnCode)) {
+            return "Agent JAR not found or no Agent-Class attribute";
+        } else if ("101".equals(returnCode)) {
+            return "Unable to add JAR file to system class path";
+        } else if ("102".equals(returnCode)) {
+            return "Agent JAR loaded but agent failed to initialize";
+        }
+        return "Failed to load agent - unknown reason: " + returnCode;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private static boolean isNumber(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,182 @@
+package name.neykov.secrets.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Follows the memory mapped ring file written by the agent with {@code writer=ring}, copying the
+ * records to an output stream as they get published. See RingSecretsWriter for the file format.
+ *
+ * <p>The agent overwrites the oldest records when the ring is full. If this reader falls that far
+ * behind, it reports the loss and skips ahead to the oldest record still in the ring.
+ */
+class RingTail {
+    // Keep in sync with agent.RingSecretsWriter
+    static final long MAGIC = 0x4e53534b52494e47L; // "NSSKRING"
+    static final int HEADER_SIZE = 64;
+    static final int CAPACITY_OFFSET = 8;
+    static final int CURSOR_OFFSET = 16;
+    static final int ALIGNMENT = 16;
+    static final int RECORD_HEADER_SIZE = 16;
+
+    private static final long MIN_POLL_MS = 1;
+    private static final long MAX_POLL_MS = 100;
+
+    private final File file;
+    private final MappedByteBuffer ring;
+    private final ByteBuffer view;
+    private final int capacity;
+    private final CRC32 crc = new CRC32();
+    private byte[] record = new byte[1024];
+    private long position;
+    private long lost;
+
+    RingTail(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                throw new IOException(file + " is not a secrets ring");
+            }
+            ring = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        view = ring.duplicate();
+        capacity = ring.getInt(CAPACITY_OFFSET);
+        if (ring.getLong(0) != MAGIC || (long) capacity + HEADER_SIZE != ring.capacity()) {
+            throw new IOException(file + " is not a secrets ring");
+        }
+        position = oldestRecord();
+    }
+
+    /** Copies the records to the output until interrupted. */
+    void follow(OutputStream out) throws IOException, InterruptedException {
+        long pollMs = MIN_POLL_MS;
+        while (!Thread.currentThread().isInterrupted()) {
+            if (poll(out) > 0) {
+                pollMs = MIN_POLL_MS;
+            } else {
+                out.flush();
+                Thread.sleep(pollMs);
+                pollMs = Math.min(pollMs * 2, MAX_POLL_MS);
+            }
+        }
+    }
+
+    /** Copies the records published since the last call, returns their number. */
+    int poll(OutputStream out) throws IOException {
+        int count = 0;
+        while (true) {
+            int at = HEADER_SIZE + (int) (position & (capacity - 1));
+            if (ring.getLong(at) != position + 1) {
+                // Either not published yet, or overwritten if the writer is a lap ahead
+                if (cursor() - position > capacity && skipToOldest()) {
+                    continue;
+                }
+                return count;
+            }
+            int length = ring.getInt(at + 8);
+            if (length < 0) {
+                // Padding up to the end of the ring
+                position += -length;
+                continue;
+            }
+            if (length > capacity) {
+                if (skipToOldest()) {
+                    continue;
+                }
+                return count;
+            }
+            final int checksum = ring.getInt(at + 12);
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            view.position(at + RECORD_HEADER_SIZE);
+            view.get(record, 0, length);
+            crc.reset();
+            crc.update(record, 0, length);
+            // Overwritten while copying
+            if (ring.getLong(at) != position + 1
+                    || (int) crc.getValue() != checksum
+                    || cursor() - position > capacity) {
+                if (skipToOldest()) {
+                    continue;
+                }
+                return count;
+            }
+            out.write(record, 0, length);
+            position += align(RECORD_HEADER_SIZE + length);
+            count++;
+        }
+    }
+
+    /** The number of bytes of records overwritten before they could be read. */
+    long getLost() {
+        return lost;
+    }
+
+    private long cursor() {
+        return ring.getLong(CURSOR_OFFSET);
+    }
+
+    /** Returns false if the write position hint hasn't caught up yet, to retry later. */
+    private boolean skipToOldest() {
+        long oldest = oldestRecord();
+        if (oldest <= position) {
+            return false;
+        }
+        lost += oldest - position;
+        System.err.println(
+                "Fell behind the writer of "
+                        + file
+                        + ", lost "
+                        + (oldest - position)
+                        + " bytes of records.");
+        position = oldest;
+        return true;
+    }
+
+    /**
+     * Finds the oldest record still in the ring: the first aligned position after the ring's worth
+     * of bytes before the write position that holds a record with a valid checksum. Skips a little
+     * more, as the writer can be filling the start of that range already.
+     */
+    private long oldestRecord() {
+        long cursor = cursor();
+        for (long candidate = Math.max(0, cursor - capacity + capacity / 8);
+                candidate < cursor;
+                candidate += ALIGNMENT) {
+            int at = HEADER_SIZE + (int) (candidate & (capacity - 1));
+            if (ring.getLong(at) != candidate + 1) {
+                continue;
+            }
+            int length = ring.getInt(at + 8);
+            if (length < 0 || isIntact(at, length)) {
+                return candidate;
+            }
+        }
+        return cursor;
+    }
+
+    private boolean isIntact(int at, int length) {
+        if (at + RECORD_HEADER_SIZE + length > ring.capacity()) {
+            return false;
+        }
+        crc.reset();
+        for (int i = 0; i < length; i++) {
+            crc.update(ring.get(at + RECORD_HEADER_SIZE + i));
+        }
+        return (int) crc.getValue() == ring.getInt(at + 12);
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
@@ -0,0 +1,263 @@
+package name.neykov.secrets;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Drives concurrent client/server SSLEngine handshakes in memory, without sockets, and reports the
+ * throughput and latency percentiles. Run it with and without -javaagent to get the cost of the
+ * agent per handshake, see src/test/load/handshake-load.sh.
+ *
+ * <p>Usage: {@code HandshakeLoad <protocol> [<threads> [<seconds> [<warmup_seconds>]]]}, with the
+ * key material in -Dkeystore.file and the trust store in -Djavax.net.ssl.trustStore, same as {@link
+ * TestServer} and {@link TestClient}.
+ */
+public class HandshakeLoad {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String provider = System.getProperty("provider");
+        if ("BCJSSE".equals(provider)) {
+            BcjsseSetup.register();
+        }
+        String protocol = args[0];
+        int threads =
+                args.length > 1
+                        ? Integer.parseInt(args[1])
+                        : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int warmupSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        SSLContext ctx = createContext(provider);
+
+        // Check the setup before starting the workers
+        new Worker(ctx, protocol).handshake();
+
+        long start = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Worker> workers = new ArrayList<Worker>();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(ctx, protocol);
+            workers.add(worker);
+            worker.launch(start, end, done);
+        }
+        done.await();
+
+        int count = 0;
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                throw worker.failure;
+            }
+            count += worker.count;
+        }
+        long[] latencies = new long[count];
+        int pos = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, pos, worker.count);
+            pos += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(
+                String.format(
+                        Locale.ROOT,
+                        "%s %s %s threads=%d: %.1f handshakes/s,"
+                                + " p50 %.1f us, p99 %.1f us, p999 %.1f us (%d handshakes)",
+                        provider != null ? provider : "JSSE",
+                        protocol,
+                        isAgentLoaded() ? "agent" : "no-agent",
+                        threads,
+                        count / (double) seconds,
+                        percentile(latencies, 0.50),
+                        percentile(latencies, 0.99),
+                        percentile(latencies, 0.999),
+                        count));
+    }
+
+    private static SSLContext createContext(String provider) throws Exception {
+        String keystoreFile = System.getProperty("keystore.file");
+        char[] password = "password".toCharArray();
+
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(keystoreFile);
+        try {
+            ks.load(in, password);
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory kmf;
+        SSLContext ctx;
+        if ("BCJSSE".equals(provider)) {
+            kmf = KeyManagerFactory.getInstance("PKIX", provider);
+            ctx = SSLContext.getInstance("TLS", provider);
+        } else {
+            kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            ctx = SSLContext.getInstance("TLS");
+        }
+        kmf.init(ks, password);
+        ctx.init(kmf.getKeyManagers(), null, null);
+        return ctx;
+    }
+
+    private static boolean isAgentLoaded() {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-javaagent:")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** In microseconds. */
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1000.0;
+    }
+
+    private static class Worker extends Thread {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final SSLContext ctx;
+        private final String[] protocols;
+        private final ByteBuffer clientToServer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer serverToClient = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer appData = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private long start;
+        private long end;
+        private CountDownLatch done;
+
+        long[] latencies = new long[1024];
+        int count;
+        Exception failure;
+
+        Worker(SSLContext ctx, String protocol) {
+            super("handshake-load");
+            this.ctx = ctx;
+            this.protocols = new String[] {protocol};
+            setDaemon(true);
+        }
+
+        void launch(long start, long end, CountDownLatch done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long handshakeStart = System.nanoTime();
+                    handshake();
+                    long handshakeEnd = System.nanoTime();
+                    if (handshakeEnd > end) {
+                        break;
+                    }
+                    if (handshakeStart >= start) {
+                        record(handshakeEnd - handshakeStart);
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+
+        void handshake() throws SSLException {
+            SSLEngine client = ctx.createSSLEngine("localhost", 443);
+            client.setUseClientMode(true);
+            client.setEnabledProtocols(protocols);
+            SSLEngine server = ctx.createSSLEngine();
+            server.setUseClientMode(false);
+            server.setEnabledProtocols(protocols);
+            clientToServer.clear();
+            serverToClient.clear();
+
+            client.beginHandshake();
+            server.beginHandshake();
+            while (isHandshaking(client) || isHandshaking(server)) {
+                boolean progress = step(client, serverToClient, clientToServer);
+                progress |= step(server, clientToServer, serverToClient);
+                if (!progress) {
+                    throw new SSLException(
+                            "Handshake stalled, client "
+                                    + client.getHandshakeStatus()
+                                    + ", server "
+                                    + server.getHandshakeStatus());
+                }
+            }
+            // The engines share the context and the peer, so the next client would resume the
+            // cached session with an abbreviated handshake, measure full ones instead
+            client.getSession().invalidate();
+            server.getSession().invalidate();
+        }
+
+        private static boolean isHandshaking(SSLEngine engine) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+        }
+
+        /** Advances the engine by one operation, returns false if it's waiting for the peer. */
+        private boolean step(SSLEngine engine, ByteBuffer in, ByteBuffer out) throws SSLException {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            SSLEngineResult result;
+            if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                return true;
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                result = engine.wrap(EMPTY, out);
+            } else if (status == HandshakeStatus.NEED_UNWRAP
+                    // Java 9+ DTLS status, not expected for TLS but harmless to handle
+                    || "NEED_UNWRAP_AGAIN".equals(status.name())) {
+                in.flip();
+                try {
+                    appData.clear();
+                    result = engine.unwrap(in, appData);
+                } finally {
+                    in.compact();
+                }
+            } else {
+                return false;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("Engine closed during handshake: " + result);
+            }
+            return result.bytesConsumed() > 0
+                    || result.bytesProduced() > 0
+                    || result.getHandshakeStatus() != status;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package name.neykov.secrets.agent;
+
+@SuppressWarnings("unused")
+public class TestAgentOptions {
+
+    @SuppressWarnings("unused")
+    public void testSecretsPath() {
+        assert "".equals(AgentOptions.parse(null).getSecretsPath());
+        assert "".equals(AgentOptions.parse("").getSecretsPath());
+        assert "/tmp/secrets.log".equals(AgentOptions.parse("/tmp/secrets.log").getSecretsPath());
+        assert "/tmp/a,b.log".equals(AgentOptions.parse("/tmp/a,b.log").getSecretsPath());
+        assert "/tmp/a=b.log".equals(AgentOptions.parse("/tmp/a=b.log").getSecretsPath());
+        assert "C:\\secrets.log".equals(AgentOptions.parse("C:\\secrets.log").getSecretsPath());
+        assert "/tmp/secrets.log"
+                .equals(AgentOptions.parse("/tmp/secrets.log,writer=async").getSecretsPath());
+        assert "".equals(AgentOptions.parse("writer=async").getSecretsPath());
+        assert "/data/a,b=c/keys.log"
+                .equals(AgentOptions.parse("/data/a,b=c/keys.log").getSecretsPath());
+        AgentOptions dirs = AgentOptions.parse("C:\\a,b=c\\keys.log,writer=async");
+        assert "C:\\a,b=c\\keys.log".equals(dirs.getSecretsPath()) : dirs.getSecretsPath();
+        assert AgentOptions.WRITER_ASYNC.equals(dirs.getWriter());
+        fail("/tmp/secrets.log,rotat=10");
+    }
+
+    @SuppressWarnings("unused")
+    public void testWriterOptions() {
+        AgentOptions defaults = AgentOptions.parse("/tmp/secrets.log");
+        assert AgentOptions.WRITER_SYNC.equals(defaults.getWriter());
+
+        AgentOptions options =
+                AgentOptions.parse(
+                        "/tmp/secrets.log,writer=async,queueCapacity=16,batchSize=4,"
+                                + "flushIntervalMs=5,overflow=drop");
+        assert AgentOptions.WRITER_ASYNC.equals(options.getWriter());
+        assert options.getQueueCapacity() == 16;
+        assert options.getBatchSize() == 4;
+        assert options.getFlushIntervalMs() == 5;
+        assert options.getOverflow() == AsyncSecretsWriter.Overflow.DROP;
+
+        AgentOptions ring = AgentOptions.parse("/tmp/secrets.ring,writer=ring,ringSize=65536");
+        assert AgentOptions.WRITER_RING.equals(ring.getWriter());
+        assert ring.getRingSize() == 65536;
+
+        assert !defaults.isRotating();
+        assert defaults.isCompress();
+        AgentOptions rotate =
+                AgentOptions.parse(
+                        "/tmp/secrets.log,rotateSize=1048576,rotateIntervalMin=60,maxSegments=5,"
+                                + "compress=false");
+        assert rotate.isRotating();
+        assert rotate.getRotateSize() == 1048576;
+        assert rotate.getRotateIntervalMin() == 60;
+        assert rotate.getMaxSegments() == 5;
+        assert !rotate.isCompress();
+
+        AgentOptions memory = AgentOptions.parse("writer=memory,storeEntries=100,storeMinutes=30");
+        assert AgentOptions.WRITER_MEMORY.equals(memory.getWriter());
+        assert memory.getStoreEntries() == 100;
+        assert memory.getStoreMinutes() == 30;
+        assert defaults.getStoreMinutes() == 0;
+
+        fail("/tmp/secrets.log,writer=fast");
+        fail("/tmp/secrets.log,batchSize=0");
+        fail("/tmp/secrets.log,batchSize=many");
+        fail("/tmp/secrets.log,overflow=never");
+        fail("/tmp/secrets.log,rotateSize=-1");
+        assert AgentOptions.parse("/tmp/secrets.log,writer=async,rotateSize=1024").isRotating();
+        fail("/tmp/secrets.ring,writer=ring,rotateSize=1024");
+        fail("/tmp/secrets.fifo,writer=fifo,rotateIntervalMin=60");
+        fail("/tmp/secrets.fifo,writer=fifo,overflow=block");
+        fail("writer=memory,maxSegments=5");
+        fail("/tmp/secrets.ring,writer=ring,compress=false");
+        fail("/tmp/secrets.log,compress=yes");
+        fail("/tmp/secrets.log,unknown=1");
+
+        assert AgentOptions.FORMAT_NSS.equals(AgentOptions.parse("/tmp/s.log").getFormat());
+        assert AgentOptions.FORMAT_BINARY.equals(
+                AgentOptions.parse("/tmp/s.bin,format=binary,writer=ring").getFormat());
+        fail("/tmp/secrets.log,format=pcap");
+        fail("/tmp/secrets.fifo,format=binary,writer=fifo");
+        fail("format=binary,writer=memory");
+    }
+
+    @SuppressWarnings("unused")
+    public void testCommand() {
+        assert AgentOptions.parse("/tmp/secrets.log").getCommand() == null;
+        assert AgentOptions.parse("/tmp/secrets.log").getReplyPath() == null;
+
+        AgentOptions detach = AgentOptions.parse("detach");
+        assert AgentOptions.COMMAND_DETACH.equals(detach.getCommand());
+        assert "".equals(detach.getSecretsPath());
+
+        AgentOptions reply = AgentOptions.parse("detach,reply=/tmp/agent.reply");
+        assert AgentOptions.COMMAND_DETACH.equals(reply.getCommand());
+        assert "/tmp/agent.reply".equals(reply.getReplyPath());
+
+        AgentOptions dump = AgentOptions.parse("dump,/tmp/a,b.txt,reply=/tmp/agent.reply");
+        assert AgentOptions.COMMAND_DUMP.equals(dump.getCommand());
+        assert "/tmp/a,b.txt".equals(dump.getSecretsPath());
+
+        AgentOptions lookup = AgentOptions.parse("lookup,/tmp/request,output=/tmp/found");
+        assert AgentOptions.COMMAND_LOOKUP.equals(lookup.getCommand());
+        assert "/tmp/request".equals(lookup.getSecretsPath());
+        assert "/tmp/found".equals(lookup.getOutputPath());
+
+        AgentOptions stats = AgentOptions.parse("stats,reply=/tmp/agent.reply");
+        assert AgentOptions.COMMAND_STATS.equals(stats.getCommand());
+        assert "".equals(stats.getSecretsPath());
+
+        AgentOptions attach = AgentOptions.parse("/tmp/detach,reply=/tmp/agent.reply");
+        assert attach.getCommand() == null;
+        assert "/tmp/detach".equals(attach.getSecretsPath());
+    }
+
+    @SuppressWarnings("unused")
+    public void testCaptureOptions() {
+        AgentOptions defaults = AgentOptions.parse("/tmp/secrets.log");
+        assert defaults.getSample() == 1;
+        assert defaults.getRateLimit() == 0;
+        assert !defaults.isGiven("sample");
+
+        AgentOptions config = AgentOptions.parse("config,sample=10,reply=/tmp/agent.reply");
+        assert AgentOptions.COMMAND_CONFIG.equals(config.getCommand());
+        assert config.getSample() == 10;
+        assert config.isGiven("sample");
+        assert !config.isGiven("rateLimit");
+        assert AgentOptions.parse("rateLimit=100").getRateLimit() == 100;
+        assert AgentOptions.parse("rateLimit=0").getRateLimit() == 0;
+
+        fail("/tmp/secrets.log,sample=0");
+        fail("config,sample=10,writer=async");
+        fail("/tmp/secrets.log,rateLimit=-1");
+
+        assert defaults.getDedupe() == 0;
+        assert AgentOptions.parse("dedupe=65536").getDedupe() == 65536;
+        fail("/tmp/secrets.log,dedupe=-1");
+
+        assert defaults.isComments();
+        assert !AgentOptions.parse("comments=false").isComments();
+        fail("/tmp/secrets.log,comments=no");
+
+        assert defaults.getLatencyLogMinutes() == 0;
+        assert AgentOptions.parse("/tmp/secrets.log").isLatency();
+        assert !AgentOptions.parse("latency=false").isLatency();
+        assert AgentOptions.parse("latency=false,latencyLogMinutes=15").isLatency();
+        assert AgentOptions.parse("latencyLogMinutes=15").getLatencyLogMinutes() == 15;
+        assert AgentOptions.parse("latencyLogMinutes=15").isLatency();
+        fail("/tmp/secrets.log,latencyLogMinutes=-1");
+    }
+
+    private static void fail(String agentArgs) {
+        try {
+            AgentOptions options = AgentOptions.parse(agentArgs);
+            assert false : agentArgs;
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
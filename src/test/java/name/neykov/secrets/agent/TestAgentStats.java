@@ -0,0 +1,100 @@
+package name.neykov.secrets.agent;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+@SuppressWarnings("unused")
+public class TestAgentStats {
+
+    @SuppressWarnings("unused")
+    public void testCounters() {
+        AgentStats stats = new AgentStats(new CaptureGate());
+        stats.reset(null, null);
+        stats.captured(CaptureHook.ON_KEY_DERIVATION);
+        stats.captured(CaptureHook.ON_KEY_DERIVATION);
+        stats.captured(CaptureHook.ON_BC_MASTER_SECRET);
+        stats.failed(CaptureHook.ON_IBM_KEY_MATERIAL);
+        stats.filtered();
+        stats.written(2, 100, 5);
+        stats.written(1, 50, 3);
+
+        assert stats.isAttached();
+        assert stats.getCaptured() == 3;
+        assert stats.getSunJsseCaptured() == 2;
+        assert stats.getBcJsseCaptured() == 1;
+        assert stats.getIbmJsse2Captured() == 0;
+        assert stats.getCapturedByHook().get("onKeyDerivation") == 2;
+        assert stats.getHookFailures() == 1;
+        assert stats.getHookFailuresByHook().get("onIbmKeyMaterial") == 1;
+        assert stats.getFiltered() == 1;
+        assert stats.getSecretsWritten() == 3;
+        assert stats.getBytesWritten() == 150;
+        assert stats.getWrites() == 2;
+        assert stats.getWriteNanos() == 8;
+        assert stats.getMaxWriteNanos() == 5;
+        assert stats.toString().contains("CapturedByHook.onKeyDerivation: 2");
+        assert stats.getDropped() == 0;
+        assert stats.getQueueDepth() == 0;
+        assert stats.toString().contains("QueueDepth: 0");
+
+        stats.detached();
+        assert !stats.isAttached();
+        assert stats.getCaptured() == 3;
+        stats.reset(new SecretsDedupe(16), null);
+        assert stats.getCaptured() == 0;
+        assert stats.getDuplicates() == 0;
+    }
+
+    @SuppressWarnings("unused")
+    public void testCountersAcrossThreads() throws Exception {
+        final AgentStats stats = new AgentStats(new CaptureGate());
+        stats.reset(null, null);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int nanos = i + 1;
+            threads[i] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            for (int j = 0; j < 1000; j++) {
+                                stats.captured(CaptureHook.ON_KEY_DERIVATION);
+                                stats.written(1, 10, nanos);
+                            }
+                        }
+                    };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert stats.getCaptured() == 8000;
+        assert stats.getSecretsWritten() == 8000;
+        assert stats.getBytesWritten() == 80000;
+        assert stats.getWrites() == 8000;
+        assert stats.getWriteNanos() == 36000;
+        assert stats.getMaxWriteNanos() == 8;
+    }
+
+    @SuppressWarnings("unused")
+    public void testMBean() throws Exception {
+        AgentStats stats = new AgentStats(new CaptureGate());
+        stats.reset(null, null);
+        stats.captured(CaptureHook.ON_CALCULATE_KEYS);
+        stats.register();
+        // Registering again replaces the previous instance
+        stats.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(AgentStats.OBJECT_NAME);
+        try {
+            assert Long.valueOf(1).equals(server.getAttribute(name, "SunJsseCaptured"));
+            assert Boolean.TRUE.equals(server.getAttribute(name, "Attached"));
+            TabularData byHook = (TabularData) server.getAttribute(name, "CapturedByHook");
+            assert byHook.size() == CaptureHook.values().length;
+        } finally {
+            stats.unregister();
+        }
+        assert !server.isRegistered(name);
+    }
+}
@@ -0,0 +1,106 @@
+package name.neykov.secrets.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+@SuppressWarnings("unused")
+public class TestAsyncSecretsWriter {
+
+    @SuppressWarnings("unused")
+    public void testPipeReconnects() throws Exception {
+        File fifo = File.createTempFile("secrets-", ".fifo");
+        fifo.delete();
+        if (!mkfifo(fifo)) {
+            // Not a POSIX system
+            return;
+        }
+        try {
+            AsyncSecretsWriter writer = AsyncSecretsWriter.toPipe(fifo.getPath(), 4, 1, 1);
+            // No reader yet, the queue buffers a few lines and the rest are dropped
+            for (int i = 0; i < 8; i++) {
+                write(writer, "first " + i);
+            }
+            long dropped = writer.getDropped();
+            assert dropped > 0;
+            BufferedReader reader = open(fifo);
+            for (int i = 0; i < 8 - dropped; i++) {
+                assert reader.readLine().startsWith("first ");
+            }
+            reader.close();
+
+            // The reader went away, the next write fails and the writer waits for another one
+            write(writer, "lost");
+            for (int i = 0; i < 500 && writer.getDropped() == dropped; i++) {
+                Thread.sleep(10);
+            }
+            assert writer.getDropped() == dropped + 1 : writer.getDropped();
+            write(writer, "second 0");
+            write(writer, "second 1");
+            reader = open(fifo);
+            assert "second 0".equals(reader.readLine());
+            assert "second 1".equals(reader.readLine());
+            reader.close();
+
+            // Closing doesn't wait for a reader
+            write(writer, "never read");
+            long start = System.nanoTime();
+            writer.close();
+            assert System.nanoTime() - start < 4000000000L;
+            assert writer.getDropped() == dropped + 2 : writer.getDropped();
+        } finally {
+            fifo.delete();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void testCountsFailedWrites() throws Exception {
+        // A file can't be a directory, so opening the secrets file fails
+        File parent = File.createTempFile("secrets-", ".log");
+        try {
+            String file = new File(parent, "secrets.log").getPath();
+            AsyncSecretsWriter writer =
+                    new AsyncSecretsWriter(file, 16, 1, 1, AsyncSecretsWriter.Overflow.DROP);
+            write(writer, "batched");
+            for (int i = 0; i < 500 && writer.getDropped() < 1; i++) {
+                Thread.sleep(10);
+            }
+            // Larger than the batch buffer, written on its own
+            StringBuilder large = new StringBuilder();
+            while (large.length() <= 64 * 1024) {
+                large.append("CLIENT_RANDOM 0123456789abcdef");
+            }
+            write(writer, large.toString());
+            for (int i = 0; i < 500 && writer.getDropped() < 2; i++) {
+                Thread.sleep(10);
+            }
+            writer.close();
+            assert writer.getDropped() == 2 : writer.getDropped();
+        } finally {
+            parent.delete();
+        }
+    }
+
+    private static boolean mkfifo(File fifo) {
+        try {
+            Process process = new ProcessBuilder("mkfifo", fifo.getPath()).start();
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static BufferedReader open(File fifo) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(fifo), "US-ASCII"));
+    }
+
+    private static void write(SecretsWriter writer, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes("US-ASCII");
+        writer.write(bytes, 0, bytes.length);
+    }
+}
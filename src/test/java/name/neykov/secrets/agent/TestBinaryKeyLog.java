@@ -0,0 +1,123 @@
+package name.neykov.secrets.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@SuppressWarnings("unused")
+public class TestBinaryKeyLog {
+    private static final byte[] CLIENT_RANDOM = filled(32, 1);
+    private static final byte[] SECRET = filled(48, 2);
+
+    @SuppressWarnings("unused")
+    public void testConvertsToSameText() throws IOException {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        KeyLogEntry entry = KeyLogEntry.get();
+        for (int i = 0; i < 3; i++) {
+            fill(entry, i);
+            entry.encodeBinary(i != 2);
+            binary.write(entry.buffer(), 0, entry.length());
+            fill(entry, i);
+            entry.encode(i != 2);
+            text.write(entry.buffer(), 0, entry.length());
+        }
+        entry.clear();
+        // Secrets of 48 bytes with a 32 byte client random, under 40% of the text with the comments
+        assert binary.size() * 5 < text.size() * 2 : binary.size() + " " + text.size();
+
+        BinaryKeyLog log = new BinaryKeyLog(AgentOptions.parse(""));
+        assert text.toString("UTF-8").equals(convert(log, binary.toByteArray()));
+        assert log.getRecords() == 3;
+        assert log.getSecrets() == 9;
+        assert log.getWritten() == 9;
+    }
+
+    @SuppressWarnings("unused")
+    public void testFilters() throws IOException {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        KeyLogEntry entry = KeyLogEntry.get();
+        for (int i = 0; i < 3; i++) {
+            fill(entry, i);
+            entry.encodeBinary(true);
+            binary.write(entry.buffer(), 0, entry.length());
+        }
+        entry.clear();
+
+        BinaryKeyLog labels =
+                new BinaryKeyLog(
+                        AgentOptions.parse("label=CLIENT_TRAFFIC_SECRET_0,comments=false"));
+        String converted = convert(labels, binary.toByteArray());
+        assert converted.split("\n").length == 3 : converted;
+        assert converted.startsWith("CLIENT_TRAFFIC_SECRET_0 0101") : converted;
+        assert labels.getWritten() == 3;
+
+        // Only the session details have a peer
+        BinaryKeyLog peer = new BinaryKeyLog(AgentOptions.parse("peer=example.com"));
+        converted = convert(peer, binary.toByteArray());
+        assert converted.startsWith("# ") : converted;
+        assert converted.contains(" Peer: example.com:443, CipherSuite: TLS_AES_256_GCM_SHA384");
+        assert peer.getWritten() == 3 : peer.getWritten();
+    }
+
+    @SuppressWarnings("unused")
+    public void testRejectsMalformedInput() throws IOException {
+        KeyLogEntry entry = KeyLogEntry.get();
+        fill(entry, 0);
+        entry.encodeBinary(true);
+        byte[] record = Arrays.copyOf(entry.buffer(), entry.length());
+        entry.clear();
+
+        fails("CLIENT_RANDOM 01 02\n".getBytes("US-ASCII"), "the input is text");
+        fails(Arrays.copyOf(record, record.length - 1), "Truncated record at byte 0");
+        byte[] twice = new byte[record.length * 2];
+        System.arraycopy(record, 0, twice, 0, record.length);
+        System.arraycopy(record, 0, twice, record.length, record.length);
+        // An unknown label in the second record
+        twice[twice.length - SECRET.length - 2] = 100;
+        fails(twice, "Malformed record at byte " + record.length + ", unknown label 100");
+    }
+
+    private static void fails(byte[] input, String expected) {
+        try {
+            convert(new BinaryKeyLog(AgentOptions.parse("")), input);
+            assert false : expected;
+        } catch (IOException e) {
+            assert e.getMessage().contains(expected) : e.getMessage();
+        }
+    }
+
+    private static String convert(BinaryKeyLog log, byte[] binary) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        log.convert(new ByteArrayInputStream(binary), out);
+        return out.toString("UTF-8");
+    }
+
+    // TLS 1.3 groups of SunJSSE and BCJSSE
+    private static void fill(KeyLogEntry entry, int kind) {
+        entry.clear();
+        entry.setTime(1700000000123L);
+        if (kind == 0) {
+            entry.setSessionDetails("example.com", 443, "TLS_AES_256_GCM_SHA384", "TLSv1.3");
+        } else {
+            entry.setBcDetails(0x1302, "TLSv1.3");
+        }
+        entry.setClientRandom(CLIENT_RANDOM);
+        if (kind == 0) {
+            entry.addSecret(KeyLogLabel.CLIENT_HANDSHAKE_TRAFFIC_SECRET, SECRET);
+            entry.addSecret(KeyLogLabel.SERVER_HANDSHAKE_TRAFFIC_SECRET, SECRET);
+        }
+        entry.addSecret(KeyLogLabel.CLIENT_TRAFFIC_SECRET_0, SECRET);
+        if (kind != 0) {
+            entry.addSecret(KeyLogLabel.SERVER_TRAFFIC_SECRET_0, SECRET);
+            entry.addSecret(KeyLogLabel.EXPORTER_SECRET, SECRET);
+        }
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
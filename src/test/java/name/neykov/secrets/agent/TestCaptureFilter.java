@@ -0,0 +1,142 @@
+package name.neykov.secrets.agent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import javax.net.ssl.SSLSession;
+
+@SuppressWarnings("unused")
+public class TestCaptureFilter {
+
+    @SuppressWarnings("unused")
+    public void testProviderAndLabels() {
+        CaptureFilter any = new CaptureFilter();
+        assert any.matches(CaptureFilter.PROVIDER_BC_JSSE, KeyLogLabel.CLIENT_RANDOM.mask);
+        assert any.emits(KeyLogLabel.EXPORTER_SECRET);
+        assert !any.checksConnection();
+
+        CaptureFilter filter = options("provider=sunjsse,label=CLIENT_TRAFFIC_SECRET_0");
+        assert filter.matches(
+                CaptureFilter.PROVIDER_SUN_JSSE, KeyLogLabel.CLIENT_TRAFFIC_SECRET_0.mask);
+        assert !filter.matches(
+                CaptureFilter.PROVIDER_BC_JSSE, KeyLogLabel.CLIENT_TRAFFIC_SECRET_0.mask);
+        assert !filter.matches(CaptureFilter.PROVIDER_SUN_JSSE, KeyLogLabel.EXPORTER_SECRET.mask);
+        assert filter.matches(
+                CaptureFilter.PROVIDER_SUN_JSSE,
+                CaptureFilter.mask(
+                        KeyLogLabel.CLIENT_TRAFFIC_SECRET_0, KeyLogLabel.EXPORTER_SECRET));
+        assert filter.emits(KeyLogLabel.CLIENT_TRAFFIC_SECRET_0);
+        assert !filter.emits(KeyLogLabel.SERVER_TRAFFIC_SECRET_0);
+        assert !filter.checksConnection();
+
+        fail("provider=Conscrypt");
+        fail("label=CLIENT_RANDOM_0");
+    }
+
+    @SuppressWarnings("unused")
+    public void testPeer() {
+        CaptureFilter filter =
+                options("peer=api.example.com,peer=*.internal,peer=10.1.0.0/16,peer=2001:db8::/32");
+        assert filter.checksConnection();
+        assert filter.matchesConnection(session("API.example.com", 443, "TLSv1.3"));
+        assert !filter.matchesConnection(session("www.example.com", 443, "TLSv1.3"));
+        assert filter.matchesConnection(session("db.internal", 443, "TLSv1.3"));
+        assert !filter.matchesConnection(session("internal", 443, "TLSv1.3"));
+        assert filter.matchesConnection(session("10.1.200.3", 443, "TLSv1.3"));
+        assert !filter.matchesConnection(session("10.2.0.1", 443, "TLSv1.3"));
+        assert filter.matchesConnection(session("2001:db8:0:1::5", 443, "TLSv1.3"));
+        assert !filter.matchesConnection(session("2001:db9::5", 443, "TLSv1.3"));
+        assert !filter.matchesConnection(session(null, -1, "TLSv1.3"));
+        assert !filter.matchesConnection(bc(0x1301, "TLS 1.3"));
+
+        fail("peer=10.0.0.0/33");
+        fail("peer=example.com/8");
+        fail("peer=10.0.0.0/x");
+    }
+
+    @SuppressWarnings("unused")
+    public void testPortProtocolCipherSuite() {
+        CaptureFilter filter =
+                options(
+                        "port=443,protocol=TLSv1.3,cipherSuite=TLS_AES_128_GCM_SHA256,"
+                                + "cipherSuite=0x1302");
+        assert filter.matchesConnection(session("example.com", 443, "TLSv1.3"));
+        assert !filter.matchesConnection(session("example.com", 8443, "TLSv1.3"));
+        assert !filter.matchesConnection(session("example.com", 443, "TLSv1.2"));
+        // BCJSSE doesn't report the peer
+        assert !filter.matchesConnection(bc(0x1302, "TLS 1.3"));
+
+        CaptureFilter bcFilter = options("protocol=tls1.3,cipherSuite=0x1302");
+        assert bcFilter.matchesConnection(bc(0x1302, "TLS 1.3"));
+        assert !bcFilter.matchesConnection(bc(0x1301, "TLS 1.3"));
+        assert !bcFilter.matchesConnection(bc(0x1302, "TLS 1.2"));
+        assert !bcFilter.matchesConnection(KeyLogEntry.get());
+
+        fail("port=0");
+        fail("port=70000");
+        fail("cipherSuite=0xZZ");
+    }
+
+    @SuppressWarnings("unused")
+    public void testParseAddress() {
+        assert CaptureFilter.parseAddress("192.168.0.1").length == 4;
+        assert CaptureFilter.parseAddress("::1").length == 16;
+        assert CaptureFilter.parseAddress("[::ffff:10.0.0.1]").length == 16;
+        assert CaptureFilter.parseAddress("fe80::1%eth0").length == 16;
+        assert CaptureFilter.parseAddress("1:2:3:4:5:6:7:8").length == 16;
+        assert CaptureFilter.parseAddress("example.com") == null;
+        assert CaptureFilter.parseAddress("256.0.0.1") == null;
+        assert CaptureFilter.parseAddress("1.2.3") == null;
+        assert CaptureFilter.parseAddress("1::2::3") == null;
+        assert CaptureFilter.parseAddress("1:2:3:4:5:6:7:8:9") == null;
+        assert CaptureFilter.parseAddress("12345::") == null;
+    }
+
+    private static CaptureFilter options(String agentArgs) {
+        return AgentOptions.parse(agentArgs).getFilter();
+    }
+
+    private static KeyLogEntry session(String peerHost, int peerPort, String protocol) {
+        KeyLogEntry entry = KeyLogEntry.get();
+        entry.setSessionDetails(sslSession(peerHost, peerPort, protocol));
+        return entry;
+    }
+
+    private static KeyLogEntry bc(int cipherSuite, String protocol) {
+        KeyLogEntry entry = KeyLogEntry.get();
+        entry.setBcDetails(cipherSuite, protocol);
+        return entry;
+    }
+
+    private static SSLSession sslSession(
+            final String peerHost, final int peerPort, final String protocol) {
+        return (SSLSession)
+                Proxy.newProxyInstance(
+                        SSLSession.class.getClassLoader(),
+                        new Class<?>[] {SSLSession.class},
+                        new InvocationHandler() {
+                            @Override
+                            public Object invoke(Object proxy, Method method, Object[] args) {
+                                String name = method.getName();
+                                if ("getPeerHost".equals(name)) {
+                                    return peerHost;
+                                } else if ("getPeerPort".equals(name)) {
+                                    return peerPort;
+                                } else if ("getProtocol".equals(name)) {
+                                    return protocol;
+                                } else if ("getCipherSuite".equals(name)) {
+                                    return "TLS_AES_128_GCM_SHA256";
+                                }
+                                throw new UnsupportedOperationException(name);
+                            }
+                        });
+    }
+
+    private static void fail(String agentArgs) {
+        try {
+            AgentOptions options = AgentOptions.parse(agentArgs);
+            assert false : agentArgs;
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
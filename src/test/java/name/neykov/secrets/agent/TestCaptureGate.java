@@ -0,0 +1,56 @@
+package name.neykov.secrets.agent;
+
+@SuppressWarnings("unused")
+public class TestCaptureGate {
+
+    @SuppressWarnings("unused")
+    public void testUnlimited() {
+        CaptureGate gate = new CaptureGate();
+        for (int i = 0; i < 100; i++) {
+            assert gate.capture(new Object());
+        }
+        assert gate.getSampledOut() == 0;
+        assert gate.getRateLimited() == 0;
+    }
+
+    @SuppressWarnings("unused")
+    public void testSample() {
+        CaptureGate gate = new CaptureGate();
+        gate.setLimits(4, 0);
+        Object[] handshakes = new Object[100];
+        boolean[] decisions = new boolean[handshakes.length];
+        for (int i = 0; i < handshakes.length; i++) {
+            handshakes[i] = new Object();
+            decisions[i] = gate.capture(handshakes[i]);
+        }
+        assert gate.getCaptured() == 25 : gate;
+        assert gate.getSampledOut() == 75 : gate;
+
+        // Later callbacks of the same handshake get the same answer, without counting again
+        for (int i = 0; i < handshakes.length; i++) {
+            assert gate.capture(handshakes[i]) == decisions[i];
+        }
+        assert gate.getCaptured() + gate.getSampledOut() == 100 : gate;
+    }
+
+    @SuppressWarnings("unused")
+    public void testRateLimit() {
+        CaptureGate gate = new CaptureGate();
+        gate.setLimits(1, 10);
+        int captured = 0;
+        for (int i = 0; i < 100; i++) {
+            if (gate.capture(new Object())) {
+                captured++;
+            }
+        }
+        // A second worth of handshakes, plus what refilled while looping
+        assert captured >= 10 && captured < 20 : gate;
+        assert gate.getRateLimited() == 100 - captured : gate;
+
+        gate.setLimits(1, 0);
+        assert gate.capture(new Object());
+
+        gate.reset();
+        assert gate.getCaptured() == 0 && gate.getRateLimited() == 0;
+    }
+}
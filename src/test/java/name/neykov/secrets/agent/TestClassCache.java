@@ -0,0 +1,56 @@
+package name.neykov.secrets.agent;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+@SuppressWarnings("unused")
+public class TestClassCache {
+
+    @SuppressWarnings("unused")
+    public void testComputesOncePerClass() {
+        CountingCache cache = new CountingCache();
+        assert "java.lang.String".equals(cache.lookup(String.class));
+        assert "java.lang.String".equals(cache.lookup(String.class));
+        assert cache.lookup(Integer.class) == null;
+        assert cache.lookup(Integer.class) == null;
+        assert cache.computed == 2;
+        assert "name.neykov.secrets.agent.TestClassCache".equals(cache.lookup(getClass()));
+        assert "name.neykov.secrets.agent.TestClassCache".equals(cache.lookup(getClass()));
+        assert cache.computed == 3;
+    }
+
+    @SuppressWarnings("unused")
+    public void testReleasesClassLoaders() throws Exception {
+        CountingCache cache = new CountingCache();
+        WeakReference<ClassLoader> loader = lookupInOwnLoader(cache);
+        for (int i = 0; i < 10 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assert loader.get() == null;
+        cache.lookup(String.class);
+        assert cache.size() == 1;
+    }
+
+    private static WeakReference<ClassLoader> lookupInOwnLoader(CountingCache cache)
+            throws Exception {
+        URL classes = TestClassCache.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[] {classes}, null);
+        Class<?> type = loader.loadClass(TestClassCache.class.getName());
+        assert type != TestClassCache.class;
+        cache.lookup(type);
+        assert cache.size() == 1;
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+    private static final class CountingCache extends ClassCache<String> {
+        int computed;
+
+        @Override
+        protected String compute(Class<?> type) {
+            computed++;
+            return type == Integer.class ? null : type.getName();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package name.neykov.secrets.agent;
+
+@SuppressWarnings("unused")
+public class TestClientRandomIndex {
+
+    @SuppressWarnings("unused")
+    public void testPutAndGet() {
+        ClientRandomIndex index = new ClientRandomIndex(16);
+        assert index.get(1, 2, 3, 4) == -1;
+        assert index.put(1, 2, 3, 4, 10) == -1;
+        assert index.put(1, 2, 3, 5, 11) == -1;
+        assert index.get(1, 2, 3, 4) == 10;
+        assert index.put(1, 2, 3, 4, 12) == 10;
+        assert index.get(1, 2, 3, 4) == 12;
+        assert index.get(1, 2, 3, 5) == 11;
+        assert index.get(2, 2, 3, 4) == -1;
+    }
+
+    @SuppressWarnings("unused")
+    public void testEvictsOldest() {
+        ClientRandomIndex index = new ClientRandomIndex(8);
+        for (int i = 0; i < 100; i++) {
+            index.put(i, i * 7, i * 13, i * 31, i);
+        }
+        assert index.get(99, 99 * 7, 99 * 13, 99 * 31) == 99;
+        assert index.get(0, 0, 0, 0) == -1;
+        int kept = 0;
+        for (int i = 0; i < 100; i++) {
+            if (index.get(i, i * 7, i * 13, i * 31) == i) {
+                kept++;
+            }
+        }
+        // Two sets of 8 entries
+        assert kept == 16 : kept;
+    }
+
+    @SuppressWarnings("unused")
+    public void testHex() {
+        byte[] line =
+                "CLIENT_RANDOM 0000000000000001ffffffffffffffff00000000000000100123456789ABCDEF x"
+                        .getBytes();
+        assert ClientRandomIndex.isHex(line, 14, line.length);
+        assert !ClientRandomIndex.isHex(line, 13, line.length);
+        assert ClientRandomIndex.hexLong(line, 14, 0) == 1;
+        assert ClientRandomIndex.hexLong(line, 14, 1) == -1;
+        assert ClientRandomIndex.hexLong(line, 14, 2) == 16;
+        assert ClientRandomIndex.hexLong(line, 14, 3) == 0x0123456789ABCDEFL;
+        assert MemorySecretsWriter.clientRandomAt(line, 0, line.length) == 14;
+    }
+}
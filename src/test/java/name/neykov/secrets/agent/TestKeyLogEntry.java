@@ -0,0 +1,46 @@
+package name.neykov.secrets.agent;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+@SuppressWarnings("unused")
+public class TestKeyLogEntry {
+
+    @SuppressWarnings("unused")
+    public void testDate() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ");
+        long now = System.currentTimeMillis();
+        long[] times = {now, now + 1, now + 999, now + 1000, now - 1000, 5, 0, -1, -1001};
+        KeyLogEntry entry = KeyLogEntry.get();
+        for (long time : times) {
+            int end = entry.putDate(time, 0);
+            String date = new String(entry.buffer(), 0, end, "US-ASCII");
+            assert format.format(new Date(time)).equals(date) : time + " " + date;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void testComments() throws Exception {
+        KeyLogEntry entry = KeyLogEntry.get();
+        fill(entry);
+        entry.encode(true);
+        String withComments = new String(entry.buffer(), 0, entry.length(), "US-ASCII");
+        assert withComments.startsWith("# ") : withComments;
+        assert withComments.contains(" BCJSSE CipherSuite: 0x1301, Protocol: TLSv1.3");
+        assert withComments.contains("CLIENT_TRAFFIC_SECRET_0 0102 0A0B");
+
+        fill(entry);
+        entry.encode(false);
+        String withoutComments = new String(entry.buffer(), 0, entry.length(), "US-ASCII");
+        assert withoutComments.startsWith("CLIENT_TRAFFIC_SECRET_0 0102 0A0B") : withoutComments;
+        assert withComments.endsWith(withoutComments);
+        entry.clear();
+    }
+
+    private static void fill(KeyLogEntry entry) {
+        entry.clear();
+        entry.setBcDetails(0x1301, "TLSv1.3");
+        entry.setClientRandom(new byte[] {1, 2});
+        entry.addSecret(KeyLogLabel.CLIENT_TRAFFIC_SECRET_0, new byte[] {10, 11});
+    }
+}
@@ -0,0 +1,45 @@
+package name.neykov.secrets.agent;
+
+@SuppressWarnings("unused")
+public class TestLatencyHistograms {
+
+    @SuppressWarnings("unused")
+    public void testBuckets() {
+        assert LatencyHistograms.bucket(0) == 0;
+        assert LatencyHistograms.bucket(999) == 0;
+        assert LatencyHistograms.bucket(1000) == 1;
+        assert LatencyHistograms.bucket(1999) == 1;
+        assert LatencyHistograms.bucket(2000) == 2;
+        assert LatencyHistograms.bucket(3999) == 2;
+        assert LatencyHistograms.bucket(4000) == 3;
+        assert LatencyHistograms.bucket(Long.MAX_VALUE) == LatencyHistograms.BUCKETS - 1;
+    }
+
+    @SuppressWarnings("unused")
+    public void testReport() {
+        LatencyHistograms histograms = new LatencyHistograms();
+        assert "No captured callbacks timed yet.".equals(histograms.toString());
+        assert !histograms.isRecorded();
+        for (int i = 0; i < 99; i++) {
+            histograms.record(CaptureHook.ON_KEY_DERIVATION, 1000, 1500, 1600, 4000);
+        }
+        histograms.record(CaptureHook.ON_KEY_DERIVATION, 0, 500, 600, 100000);
+        int total = LatencyHistograms.TOTAL;
+        assert histograms.getCount(CaptureHook.ON_KEY_DERIVATION, total, 2) == 99;
+        assert histograms.getCount(CaptureHook.ON_KEY_DERIVATION, total, 7) == 1;
+        assert histograms.getCount(CaptureHook.ON_MASTER_SECRET, total, 2) == 0;
+        assert histograms.isRecorded();
+
+        String report = histograms.toString();
+        assert report.startsWith("onKeyDerivation reflection: 100 calls, mean 0.5 us") : report;
+        assert report.contains(
+                        "onKeyDerivation total: 100 calls, mean 4.0 us, p50 <4 us, p99 <4 us,"
+                                + " max <128 us [<4 us: 99, <128 us: 1]")
+                : report;
+        assert !report.contains("onMasterSecret");
+
+        histograms.reset();
+        assert histograms.getCount(CaptureHook.ON_KEY_DERIVATION, total, 2) == 0;
+        assert !histograms.isRecorded();
+    }
+}
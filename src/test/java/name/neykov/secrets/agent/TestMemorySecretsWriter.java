@@ -0,0 +1,116 @@
+package name.neykov.secrets.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+@SuppressWarnings("unused")
+public class TestMemorySecretsWriter {
+
+    @SuppressWarnings("unused")
+    public void testKeepsLatestEntries() throws IOException {
+        MemorySecretsWriter writer = new MemorySecretsWriter(3, 0);
+        assert "".equals(dump(writer, 0));
+        write(writer, "CLIENT_RANDOM 01 aa\n");
+        write(writer, "CLIENT_RANDOM 02 bb\nCLIENT_RANDOM 03 cc\n");
+        assert "CLIENT_RANDOM 01 aa\nCLIENT_RANDOM 02 bb\nCLIENT_RANDOM 03 cc\n"
+                .equals(dump(writer, 2));
+        write(writer, "CLIENT_RANDOM 04 dd\n");
+        write(writer, "CLIENT_RANDOM 05 ee\n");
+        assert "CLIENT_RANDOM 02 bb\nCLIENT_RANDOM 03 cc\nCLIENT_RANDOM 04 dd\nCLIENT_RANDOM 05 ee\n"
+                .equals(dump(writer, 3));
+    }
+
+    @SuppressWarnings("unused")
+    public void testDropsOldEntries() throws Exception {
+        MemorySecretsWriter writer = new MemorySecretsWriter(10, 50);
+        write(writer, "CLIENT_RANDOM 01 aa\n");
+        Thread.sleep(100);
+        write(writer, "CLIENT_RANDOM 02 bb\n");
+        assert "CLIENT_RANDOM 02 bb\n".equals(dump(writer, 1));
+    }
+
+    @SuppressWarnings("unused")
+    public void testConcurrentWrites() throws Exception {
+        final MemorySecretsWriter writer = new MemorySecretsWriter(64, 0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int i = 0; i < 1000; i++) {
+                                    write(writer, "CLIENT_RANDOM " + id + " " + i + "\n");
+                                }
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        String kept = dump(writer, 64);
+        for (String line : kept.split("\n")) {
+            assert line.matches("CLIENT_RANDOM [0-3] [0-9]+") : line;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void testLookup() throws IOException {
+        String first = random('1');
+        String second = random('2');
+        MemorySecretsWriter writer = new MemorySecretsWriter(4, 0);
+        write(writer, "# SSLSession: x\nCLIENT_HANDSHAKE_TRAFFIC_SECRET " + first + " aa\n");
+        write(writer, "CLIENT_RANDOM " + second + " bb\n");
+        write(writer, "SERVER_HANDSHAKE_TRAFFIC_SECRET " + first + " cc\n");
+        write(writer, "RSA Session-ID:01 Master-Key:dd\n");
+        assert ("# SSLSession: x\nCLIENT_HANDSHAKE_TRAFFIC_SECRET "
+                        + first
+                        + " aa\nSERVER_HANDSHAKE_TRAFFIC_SECRET "
+                        + first
+                        + " cc\n")
+                .equals(lookup(writer, first.toUpperCase(), 2));
+        assert ("CLIENT_RANDOM " + second + " bb\n").equals(lookup(writer, second, 1));
+        assert "".equals(lookup(writer, random('3'), 0));
+        assert "".equals(lookup(writer, "01", 0));
+
+        // Overwritten by the ring
+        write(writer, "CLIENT_RANDOM " + random('4') + " ee\n");
+        write(writer, "CLIENT_RANDOM " + random('5') + " ff\n");
+        assert ("SERVER_HANDSHAKE_TRAFFIC_SECRET " + first + " cc\n")
+                .equals(lookup(writer, first, 1));
+        assert "".equals(lookup(writer, second, 0));
+    }
+
+    private static String random(char digit) {
+        StringBuilder random = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            random.append(i % 2 == 0 ? digit : 'a');
+        }
+        return random.toString();
+    }
+
+    private static String lookup(MemorySecretsWriter writer, String clientRandom, int expectedCount)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int count = writer.lookup(clientRandom, out);
+        assert count == expectedCount : count;
+        return out.toString("US-ASCII");
+    }
+
+    private static String dump(MemorySecretsWriter writer, int expectedCount) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int count = writer.dump(out);
+        assert count == expectedCount : count;
+        return out.toString("US-ASCII");
+    }
+
+    private static void write(MemorySecretsWriter writer, String lines) throws IOException {
+        byte[] bytes = lines.getBytes("US-ASCII");
+        writer.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,35 @@
+package name.neykov.secrets.agent;
+
+@SuppressWarnings("unused")
+public class TestSecretsDedupe {
+    private static final byte[] RANDOM = new byte[] {1, 2, 3, 4};
+    private static final byte[] SECRET = new byte[] {5, 6, 7, 8};
+
+    @SuppressWarnings("unused")
+    public void testSkipsDuplicates() {
+        SecretsDedupe dedupe = new SecretsDedupe(64);
+        assert dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, RANDOM, SECRET);
+        assert !dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, RANDOM, SECRET.clone());
+        assert dedupe.firstSeen(KeyLogLabel.EXPORTER_SECRET, RANDOM, SECRET);
+        assert dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, RANDOM, new byte[] {5, 6, 7, 9});
+        assert dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, new byte[] {1, 2, 3}, SECRET);
+        assert dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, null, SECRET);
+        assert !dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, null, SECRET);
+        assert dedupe.getDuplicates() == 2;
+        assert "Skipped 2 duplicate secrets.".equals(dedupe.toString());
+    }
+
+    @SuppressWarnings("unused")
+    public void testForgetsOldest() {
+        SecretsDedupe dedupe = new SecretsDedupe(16);
+        for (int i = 0; i < 1000; i++) {
+            assert dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, RANDOM, secret(i));
+        }
+        assert !dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, RANDOM, secret(999));
+        assert dedupe.firstSeen(KeyLogLabel.CLIENT_RANDOM, RANDOM, secret(0));
+    }
+
+    private static byte[] secret(int i) {
+        return new byte[] {(byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+    }
+}
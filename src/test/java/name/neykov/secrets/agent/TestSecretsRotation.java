@@ -0,0 +1,138 @@
+package name.neykov.secrets.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+@SuppressWarnings("unused")
+public class TestSecretsRotation {
+
+    @SuppressWarnings("unused")
+    public void testConcurrentWritesKeepWholeLines() throws Exception {
+        File dir = createTempDir();
+        try {
+            String path = new File(dir, "secrets.log").getPath();
+            SecretsRotation rotation = new SecretsRotation(path, 4096, 0, 0, true);
+            final SecretsWriter writer = new FileSecretsWriter(path, rotation);
+            writeConcurrently(writer, 4, 500);
+            writer.close();
+
+            List<File> segments = rotation.listSegments();
+            assert segments.size() > 10 : segments;
+            Set<String> lines = new HashSet<String>();
+            int count = 0;
+            for (File segment : segments) {
+                assert segment.getName().endsWith(".gz") : segment;
+                assert segment.length() < 4096;
+                count += readLines(new GZIPInputStream(new FileInputStream(segment)), lines);
+            }
+            count += readLines(new FileInputStream(path), lines);
+            assert count == 4 * 500 : count;
+            assert lines.size() == 4 * 500;
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void testAsyncWriterKeepsMaxSegments() throws Exception {
+        File dir = createTempDir();
+        try {
+            String path = new File(dir, "secrets.log").getPath();
+            SecretsRotation rotation = new SecretsRotation(path, 1024, 0, 3, false);
+            SecretsWriter writer =
+                    new AsyncSecretsWriter(
+                            path, 16, 4, 1, AsyncSecretsWriter.Overflow.BLOCK, rotation);
+            writeConcurrently(writer, 1, 200);
+            writer.close();
+
+            List<File> segments = rotation.listSegments();
+            assert segments.size() == 3 : segments;
+            Set<String> lines = new HashSet<String>();
+            for (File segment : segments) {
+                assert !segment.getName().endsWith(".gz") : segment;
+                readLines(new FileInputStream(segment), lines);
+            }
+            readLines(new FileInputStream(path), lines);
+            // The newest lines are kept
+            assert lines.contains("CLIENT_RANDOM 0 199 " + PAYLOAD);
+            assert !lines.contains("CLIENT_RANDOM 0 0 " + PAYLOAD);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static final String PAYLOAD =
+            "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private static void writeConcurrently(
+            final SecretsWriter writer, int threadCount, final int lineCount)
+            throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int id = t;
+            threads[t] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int i = 0; i < lineCount; i++) {
+                                    byte[] line =
+                                            ("CLIENT_RANDOM " + id + " " + i + " " + PAYLOAD + "\n")
+                                                    .getBytes("US-ASCII");
+                                    writer.write(line, 0, line.length);
+                                }
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    // Returns the number of lines read, checking each is whole
+    private static int readLines(InputStream in, Set<String> lines) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        int count = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                assert line.startsWith("CLIENT_RANDOM ") && line.endsWith(PAYLOAD) : line;
+                lines.add(line);
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("secrets-", ".d");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Can't create " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,115 @@
+package name.neykov.secrets.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SuppressWarnings("unused")
+public class TestAttachDaemon {
+
+    @SuppressWarnings("unused")
+    public void testCommands() throws Exception {
+        File stateFile = File.createTempFile("daemon-", ".state");
+        final AttachDaemon daemon = new AttachDaemon(stateFile);
+        daemon.start();
+        Thread serving =
+                new Thread(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                daemon.serve();
+                            }
+                        });
+        serving.setDaemon(true);
+        serving.start();
+        try {
+            assert stateFile.exists();
+            if (File.separatorChar == '/') {
+                String permissions = permissions(stateFile);
+                assert permissions.startsWith("-rw-------") : permissions;
+            }
+
+            // The arguments are checked as by the CLI, the usage goes to out
+            List<String> reply = send(daemon, daemon.getToken(), "detach");
+            assert reply.contains(
+                            "err 'detach' action requires exactly one argument: the process ID.")
+                    : reply;
+            assert reply.get(reply.size() - 1).equals("exit 1") : reply;
+            assert reply.contains("out Options:") : reply;
+
+            reply = send(daemon, daemon.getToken(), "watch\t--match\tApp");
+            assert reply.equals(
+                            Arrays.asList(
+                                    "err The 'watch' action isn't supported by the daemon.",
+                                    "exit 1"))
+                    : reply;
+
+            reply = send(daemon, daemon.getToken(), "convert\t-");
+            assert reply.equals(
+                            Arrays.asList(
+                                    "err The daemon can't convert stdin, pass the binary file"
+                                            + " instead.",
+                                    "exit 1"))
+                    : reply;
+
+            reply = send(daemon, "wrong", "list");
+            assert reply.get(0).startsWith("err Invalid token") : reply;
+            assert reply.size() == 2 : reply;
+        } finally {
+            daemon.close();
+        }
+        assert !stateFile.exists();
+    }
+
+    @SuppressWarnings("unused")
+    public void testSplit() {
+        assert Arrays.equals(
+                new String[] {"attach", "1234", "/tmp/a b.txt"},
+                AttachDaemon.split("attach\t1234\t/tmp/a b.txt\n"));
+        assert Arrays.equals(
+                new String[] {"attach", "1234", "/tmp/x.txt"},
+                AttachDaemon.split(" attach  1234 /tmp/x.txt"));
+    }
+
+    private static List<String> send(AttachDaemon daemon, String token, String command)
+            throws IOException {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), daemon.getPort());
+        try {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            out.write(token + "\n" + command + "\n");
+            out.flush();
+            socket.shutdownOutput();
+            BufferedReader in =
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            socket.close();
+        }
+    }
+
+    // The mode column of ls -l, like -rw-------, portable across the unix-likes
+    private static String permissions(File file) throws Exception {
+        Process ls = new ProcessBuilder("ls", "-l", file.getAbsolutePath()).start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(ls.getInputStream(), "UTF-8"));
+        try {
+            String line = in.readLine();
+            ls.waitFor();
+            return line == null ? "" : line;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package name.neykov.secrets.cli;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 @SuppressWarnings("unused")
 public class TestCliArguments {
 
@@ -7,6 +11,8 @@ public class TestCliArguments {
     public void testParseArguments() {
         fail(new String[] {});
         pass(new String[] {"list"}, "list", null, "");
+        pass(new String[] {"daemon"}, "daemon", null, "");
+        fail(new String[] {"daemon", "1234"});
         pass(new String[] {"1234"}, "attach", "1234", "");
         pass(new String[] {"1234", "secrets.txt"}, "attach", "1234", "secrets.txt");
         fail(new String[] {"1234", "secrets.txt", "extra"});
@@ -20,6 +26,139 @@ public class TestCliArguments {
         fail(new String[] {"detach", "1234", "extra"});
     }
 
+    @SuppressWarnings("unused")
+    public void testAgentOptions() {
+        pass(
+                new String[] {"1234", "--writer=async"},
+                "attach",
+                "1234",
+                "",
+                Arrays.asList("writer=async"));
+        pass(
+                new String[] {"attach", "1234", "secrets.txt", "--writer=async", "--batchSize=10"},
+                "attach",
+                "1234",
+                "secrets.txt",
+                Arrays.asList("writer=async", "batchSize=10"));
+        fail(new String[] {"attach", "1234", "-writer=async"});
+        fail(new String[] {"attach", "1234", "--writer"});
+        fail(new String[] {"attach", "1234", "--=async"});
+        fail(new String[] {"attach", "--writer=async"});
+    }
+
+    @SuppressWarnings("unused")
+    public void testConfig() {
+        pass(
+                new String[] {"config", "1234", "--sample=10", "--rateLimit=100"},
+                "config",
+                "1234",
+                "",
+                Arrays.asList("sample=10", "rateLimit=100"));
+        pass(new String[] {"config", "1234"}, "config", "1234", "");
+        fail(new String[] {"config"});
+        fail(new String[] {"config", "--sample=10"});
+        fail(new String[] {"config", "1234", "secrets.txt", "--sample=10"});
+        fail(new String[] {"config", "1234", "--sample=10", "--writer=async"});
+    }
+
+    @SuppressWarnings("unused")
+    public void testTail() {
+        CliArguments tail = CliArguments.parse(new String[] {"tail", "secrets.ring"});
+        assert new CliArguments("tail", null, "secrets.ring", Collections.<String>emptyList(), "")
+                .equals(tail);
+        CliArguments tailToFile =
+                CliArguments.parse(new String[] {"tail", "secrets.ring", "secrets.txt"});
+        assert "secrets.txt".equals(tailToFile.outputPath) : tailToFile;
+        fail(new String[] {"tail"});
+        fail(new String[] {"tail", "secrets.ring", "secrets.txt", "extra"});
+    }
+
+    @SuppressWarnings("unused")
+    public void testDump() {
+        pass(new String[] {"dump", "1234"}, "dump", "1234", "");
+        CliArguments dumpToFile = CliArguments.parse(new String[] {"dump", "1234", "keys.txt"});
+        assert "keys.txt".equals(dumpToFile.outputPath) : dumpToFile;
+        fail(new String[] {"dump"});
+        fail(new String[] {"dump", "1234", "keys.txt", "extra"});
+    }
+
+    @SuppressWarnings("unused")
+    public void testMultiTarget() {
+        pass(new String[] {"attach", "12,34"}, "attach", "12,34", "");
+        assert CliArguments.parse(new String[] {"attach", "12,34"}).isMultiTarget();
+        assert !CliArguments.parse(new String[] {"attach", "12"}).isMultiTarget();
+        fail(new String[] {"attach", "12,"});
+        fail(new String[] {"attach", "12,,34"});
+
+        CliArguments match =
+                CliArguments.parse(
+                        new String[] {
+                            "attach",
+                            "--match",
+                            "com\\.example\\..*",
+                            "/tmp/{pid}.txt",
+                            "--writer=async"
+                        });
+        assert "com\\.example\\..*".equals(match.match) : match;
+        assert match.pid == null;
+        assert "/tmp/{pid}.txt".equals(match.secretsPath);
+        assert Arrays.asList("writer=async").equals(match.agentOptions);
+        assert match.isMultiTarget();
+        assert CliArguments.parse(new String[] {"--match", "App"}).isMultiTarget();
+        fail(new String[] {"attach", "--match"});
+        fail(new String[] {"attach", "--match", "("});
+        fail(new String[] {"attach", "1234", "--match", "App"});
+        fail(new String[] {"config", "12,34", "--sample=10"});
+    }
+
+    @SuppressWarnings("unused")
+    public void testWatch() {
+        CliArguments watch =
+                CliArguments.parse(new String[] {"watch", "--match", "App", "/tmp/{pid}.txt"});
+        assert "watch".equals(watch.action);
+        assert "App".equals(watch.match);
+        assert "/tmp/{pid}.txt".equals(watch.secretsPath);
+        fail(new String[] {"watch"});
+        fail(new String[] {"watch", "1234"});
+        fail(new String[] {"watch", "/tmp/secrets.txt"});
+    }
+
+    @SuppressWarnings("unused")
+    public void testConvert() {
+        CliArguments convert =
+                CliArguments.parse(
+                        new String[] {
+                            "convert", "secrets.bin", "--label=EXPORTER_SECRET", "secrets.log"
+                        });
+        assert "convert".equals(convert.action);
+        assert "secrets.bin".equals(convert.secretsPath);
+        assert "secrets.log".equals(convert.outputPath);
+        assert Arrays.asList("label=EXPORTER_SECRET").equals(convert.agentOptions);
+        assert "".equals(CliArguments.parse(new String[] {"convert", "-"}).outputPath);
+        fail(new String[] {"convert"});
+        fail(new String[] {"convert", "a.bin", "b.log", "c.log"});
+        fail(new String[] {"convert", "a.bin", "--writer=async"});
+    }
+
+    @SuppressWarnings("unused")
+    public void testStats() {
+        pass(new String[] {"stats", "1234"}, "stats", "1234", "");
+        fail(new String[] {"stats"});
+        fail(new String[] {"stats", "1234", "extra"});
+    }
+
+    @SuppressWarnings("unused")
+    public void testLookup() {
+        String clientRandom = "0123456789abcdef0123456789ABCDEF0123456789abcdef0123456789abcdef";
+        CliArguments lookup =
+                CliArguments.parse(new String[] {"lookup", "1234", clientRandom, "@randoms.txt"});
+        assert "1234".equals(lookup.pid);
+        assert Arrays.asList(clientRandom, "@randoms.txt").equals(lookup.clientRandoms);
+        fail(new String[] {"lookup", "1234"});
+        fail(new String[] {"lookup", "1234", "0123"});
+        fail(new String[] {"lookup", "1234", clientRandom.replace('0', 'x')});
+    }
+
     @SuppressWarnings("unused")
     public void testSecretsPath() {
         assert "secrets.txt".equals(new CliArguments("attach", "1234", "secrets.txt").secretsPath);
@@ -32,6 +171,17 @@ public class TestCliArguments {
         assert expectedArg.equals(actualArgs) : actualArgs;
     }
 
+    private static void pass(
+            String[] args,
+            String action,
+            String pid,
+            String secretsPath,
+            List<String> agentOptions) {
+        CliArguments actualArgs = CliArguments.parse(args);
+        CliArguments expectedArg = new CliArguments(action, pid, secretsPath, agentOptions);
+        assert expectedArg.equals(actualArgs) : actualArgs;
+    }
+
     private static void fail(String[] args) {
         try {
             CliArguments actualArgs = CliArguments.parse(args);
@@ -0,0 +1,62 @@
+package name.neykov.secrets.cli;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+@SuppressWarnings("unused")
+public class TestLinuxAttach {
+
+    @SuppressWarnings("unused")
+    public void testCheckResponse() throws IOException {
+        // Java 9 and later, then Java 8
+        LinuxAttach.checkResponse("0\nreturn code: 0\n");
+        LinuxAttach.checkResponse("0\n0\n");
+        fails("0\nreturn code: 102\n", "Agent JAR loaded but agent failed to initialize");
+        fails("0\n100\n", "Agent JAR not found or no Agent-Class attribute");
+        fails("0\nreturn code: -4\n", "Insufficient memory");
+        fails("0\n7\n", "unknown reason: 7");
+        fails("", "Target VM did not respond");
+        fails("0\n", "Target VM did not respond");
+        fails("0\ninstrument library not found\n", "instrument library not found");
+        fails("101\nOperation not supported\n", "status 101: Operation not supported");
+    }
+
+    @SuppressWarnings("unused")
+    public void testInnermostPid() throws IOException {
+        File proc = File.createTempFile("proc-", "");
+        proc.delete();
+        proc.mkdir();
+        File status = new File(proc, "status");
+        try {
+            // Not there before Linux 4.1
+            assert "4321".equals(LinuxAttach.innermostPid(proc, "4321"));
+            write(status, "Name:\tjava\nNSpid:\t4321\n");
+            assert "4321".equals(LinuxAttach.innermostPid(proc, "4321"));
+            // In a container
+            write(status, "Name:\tjava\nNSpid:\t4321\t17\t1\nNSpgid:\t4321\t17\t1\n");
+            assert "1".equals(LinuxAttach.innermostPid(proc, "4321"));
+        } finally {
+            status.delete();
+            proc.delete();
+        }
+    }
+
+    private static void fails(String response, String expected) {
+        try {
+            LinuxAttach.checkResponse(response);
+            assert false : response;
+        } catch (IOException e) {
+            assert e.getMessage().contains(expected) : e.getMessage();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package name.neykov.secrets.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import name.neykov.secrets.agent.RingSecretsWriter;
+
+@SuppressWarnings("unused")
+public class TestRingTail {
+
+    @SuppressWarnings("unused")
+    public void testFollowAcrossWrapAround() throws IOException {
+        File file = File.createTempFile("secrets-", ".ring");
+        try {
+            RingSecretsWriter writer = new RingSecretsWriter(file.getPath(), 4096);
+            RingTail tail = new RingTail(file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StringBuilder expected = new StringBuilder();
+            // Each line is under a quarter of the ring, together they go around it several times
+            for (int i = 0; i < 200; i++) {
+                String line = "CLIENT_RANDOM " + i + " " + pad(i % 50) + "\n";
+                expected.append(line);
+                write(writer, line);
+                if (i % 3 == 0) {
+                    tail.poll(out);
+                }
+            }
+            tail.poll(out);
+            writer.close();
+            assert expected.toString().equals(out.toString("US-ASCII"));
+            assert tail.getLost() == 0;
+        } finally {
+            file.delete();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void testStartsAtOldestRecordAndReportsLoss() throws IOException {
+        File file = File.createTempFile("secrets-", ".ring");
+        try {
+            RingSecretsWriter writer = new RingSecretsWriter(file.getPath(), 4096);
+            // 32 byte records, going around the ring once and a half
+            for (int i = 0; i < 200; i++) {
+                write(writer, "first " + i + "\n");
+            }
+            RingTail tail = new RingTail(file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            tail.poll(out);
+            String retained = out.toString("US-ASCII");
+            assert retained.endsWith("first 199\n") : retained;
+            assert !retained.contains("first 0\n") : retained;
+            assert retained.startsWith("first ") : retained;
+
+            // Lap the reader
+            for (int i = 0; i < 1000; i++) {
+                write(writer, "second " + i + "\n");
+            }
+            write(writer, "last\n");
+            out.reset();
+            tail.poll(out);
+            assert tail.getLost() > 0;
+            assert out.toString("US-ASCII").endsWith("last\n");
+            writer.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void testConcurrentProducers() throws Exception {
+        File file = File.createTempFile("secrets-", ".ring");
+        try {
+            final RingSecretsWriter writer = new RingSecretsWriter(file.getPath(), 1024 * 1024);
+            final int threads = 8;
+            final int lines = 2000;
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> producers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                final int producer = t;
+                Thread thread =
+                        new Thread(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        try {
+                                            start.await();
+                                            for (int i = 0; i < lines; i++) {
+                                                write(writer, producer + " " + i + "\n");
+                                            }
+                                        } catch (Exception e) {
+                                            throw new IllegalStateException(e);
+                                        }
+                                    }
+                                });
+                thread.start();
+                producers.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : producers) {
+                thread.join();
+            }
+            writer.close();
+
+            RingTail tail = new RingTail(file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assert tail.poll(out) == threads * lines;
+            Set<String> seen = new HashSet<String>();
+            int[] next = new int[threads];
+            for (String line : out.toString("US-ASCII").split("\n")) {
+                assert seen.add(line) : line;
+                String[] parts = line.split(" ");
+                int producer = Integer.parseInt(parts[0]);
+                // In the order of each producer
+                assert Integer.parseInt(parts[1]) == next[producer]++ : line;
+            }
+            assert seen.size() == threads * lines;
+            assert tail.getLost() == 0;
+
+            // The hint ends up at the end of the last record, reopening appends after it
+            RingSecretsWriter reopened = new RingSecretsWriter(file.getPath(), 1024 * 1024);
+            write(reopened, "reopened\n");
+            reopened.close();
+            out.reset();
+            assert tail.poll(out) == 1;
+            assert "reopened\n".equals(out.toString("US-ASCII"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void testReopenSkipsRecordsPastHint() throws IOException {
+        File file = File.createTempFile("secrets-", ".ring");
+        try {
+            RingSecretsWriter writer = new RingSecretsWriter(file.getPath(), 4096);
+            write(writer, "first\n");
+            write(writer, "second\n");
+            writer.close();
+            // A hint left behind by racing producers
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(RingTail.CURSOR_OFFSET);
+                raf.writeLong(0);
+            } finally {
+                raf.close();
+            }
+
+            RingSecretsWriter reopened = new RingSecretsWriter(file.getPath(), 4096);
+            write(reopened, "third\n");
+            reopened.close();
+            RingTail tail = new RingTail(file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            tail.poll(out);
+            assert "first\nsecond\nthird\n".equals(out.toString("US-ASCII"))
+                    : out.toString("US-ASCII");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(RingSecretsWriter writer, String line) throws IOException {
+        byte[] bytes = line.getBytes("US-ASCII");
+        writer.write(bytes, 0, bytes.length);
+    }
+
+    private static String pad(int length) {
+        StringBuilder pad = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            pad.append('x');
+        }
+        return pad.toString();
+    }
+}
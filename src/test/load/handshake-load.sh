@@ -0,0 +1,47 @@
+#!/bin/bash
+
+# Measures the cost of the agent per TLS handshake. Runs name.neykov.secrets.HandshakeLoad for
+# each provider and protocol, once without and once with the agent.
+#
+# Usage: handshake-load.sh [<threads> [<seconds> [<warmup_seconds>]]]
+# Expects a "mvn package" build. Set JAVA_HOME to select the JVM and AGENT_OPTIONS to pass agent
+# options (for example ",writer=async").
+
+set -e
+
+CWD="$( cd "$(dirname "$0")" ; pwd -P )"
+ROOT=$( cd "$CWD/../../.." && pwd )
+TARGET="$ROOT/target"
+LOAD_TMP="$TARGET/load"
+JAVA="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+KEYTOOL="${JAVA_HOME:+$JAVA_HOME/bin/}keytool"
+JAR_PATH=$(ls "$TARGET"/extract-tls-secrets-*.jar | grep -v -e sources -e javadoc | head -1)
+
+PROVIDERS="JSSE BCJSSE"
+PROTOCOLS="TLSv1.2 TLSv1.3"
+
+mkdir -p "$LOAD_TMP"
+if [ ! -f "$LOAD_TMP/keystore" ]; then
+  "$KEYTOOL" -genkey -noprompt -alias server -dname "CN=localhost, OU=Unit, O=Company, L=Sofia, ST=Unknown, C=BG" \
+    -storepass password -keypass password -keyalg RSA -keystore "$LOAD_TMP/keystore" -deststoretype pkcs12 \
+    -ext SAN=dns:localhost
+  "$KEYTOOL" -exportcert -alias server -keystore "$LOAD_TMP/keystore" -storepass password -file "$LOAD_TMP/server.crt"
+  "$KEYTOOL" -importcert -noprompt -alias server -file "$LOAD_TMP/server.crt" \
+    -keystore "$LOAD_TMP/truststore" -storepass password -deststoretype jks
+fi
+
+cp="$TARGET/test-classes:$(ls "$TARGET"/test-lib/*.jar | tr '\n' ':')"
+
+for provider in $PROVIDERS; do
+  for protocol in $PROTOCOLS; do
+    for agent in "" "-javaagent:$JAR_PATH=$LOAD_TMP/secrets.txt$AGENT_OPTIONS"; do
+      rm -f "$LOAD_TMP/secrets.txt"
+      "$JAVA" $agent -cp "$cp" \
+        -Dprovider=$provider \
+        -Dkeystore.file="$LOAD_TMP/keystore" \
+        -Djavax.net.ssl.trustStore="$LOAD_TMP/truststore" \
+        -Djavax.net.ssl.trustStorePassword=password \
+        name.neykov.secrets.HandshakeLoad $protocol "$@"
+    done
+  done
+done